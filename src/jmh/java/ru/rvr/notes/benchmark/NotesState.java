@@ -0,0 +1,133 @@
+package ru.rvr.notes.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import ru.rvr.notes.NotesApplication;
+import ru.rvr.notes.controller.NoteController;
+import ru.rvr.notes.entity.Note;
+import ru.rvr.notes.entity.Tag;
+import ru.rvr.notes.repository.NoteRepository;
+import ru.rvr.notes.repository.TagRepository;
+
+import javax.naming.directory.InvalidAttributesException;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Application started on H2 file database seeded with specified number of notes.
+ * Database of every size is kept in target/jmh and seeded only once,
+ * notes created by benchmarks, their changes and contents are deleted after trial.
+ */
+@State(Scope.Benchmark)
+public class NotesState {
+    static final int WORDS = 1000;
+    static final int TAGS = 100;
+    static final int DAYS = 365;
+    private static final int WORDS_PER_NOTE = 10;
+    private static final int TAGS_PER_NOTE = 3;
+    private static final int SEED_CHUNK = 1000;
+
+    @Param({"10000", "100000", "1000000"})
+    public int notes;
+
+    ConfigurableApplicationContext context;
+    NoteRepository noteRepository;
+    TagRepository tagRepository;
+    NoteController noteController;
+    List<Tag> tags;
+    LocalDateTime now;
+    private long maxNoteId;
+    private long maxChangeId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InvalidAttributesException, SQLException {
+        context = new SpringApplicationBuilder(NotesApplication.class).run(
+                "--notes.datasource.url=jdbc:h2:file:./target/jmh/notes-" + notes,
+                "--server.port=0",
+                "--logging.level.root=WARN",
+                "--spring.main.banner-mode=off");
+        noteRepository = context.getBean(NoteRepository.class);
+        tagRepository = context.getBean(TagRepository.class);
+        noteController = context.getBean(NoteController.class);
+        List<Tag> names = new ArrayList<>(TAGS);
+        for (int i = 0; i < TAGS; i++) {
+            names.add(new Tag(tag(i)));
+        }
+        tags = tagRepository.getPersistedTagsFromList(names);
+        now = LocalDateTime.now();
+        seed(notes - queryLong("select count(*) from note"));
+        maxNoteId = queryLong("select coalesce(max(id), 0) from note");
+        maxChangeId = queryLong("select coalesce(max(id), 0) from note_change");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        try (Connection connection = context.getBean(DataSource.class).getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("delete from note_tag where note_id > " + maxNoteId);
+            statement.executeUpdate("delete from note where id > " + maxNoteId);
+            // Long content of deleted notes and content replaced by updates
+            statement.executeUpdate("delete from note_body where id not in (select body_id from note where body_id is not null)");
+            statement.executeUpdate("delete from note_change where id > " + maxChangeId);
+        }
+        context.close();
+    }
+
+    static String word(int i) {
+        return "word" + i;
+    }
+
+    static String tag(int i) {
+        return "tag" + i;
+    }
+
+    /**
+     * Random text of known words, so every word is found by search
+     */
+    static String text(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            text.append(i == 0 ? "" : " ").append(word(random.nextInt(WORDS)));
+        }
+        return text.toString();
+    }
+
+    private long queryLong(String sql) throws SQLException {
+        try (Connection connection = context.getBean(DataSource.class).getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(sql)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    /**
+     * Saves notes with random words, tags and created time within last year
+     */
+    private void seed(long count) throws InvalidAttributesException {
+        Random random = new Random(count);
+        for (long from = 0; from < count; from += SEED_CHUNK) {
+            List<Note> chunk = new ArrayList<>(SEED_CHUNK);
+            for (long i = from; i < Math.min(from + SEED_CHUNK, count); i++) {
+                List<Tag> noteTags = new ArrayList<>(TAGS_PER_NOTE);
+                for (int j = 0; j < TAGS_PER_NOTE; j++) {
+                    Tag tag = tags.get(random.nextInt(TAGS));
+                    if (!noteTags.contains(tag)) {
+                        noteTags.add(tag);
+                    }
+                }
+                chunk.add(new Note(text(random, 2), text(random, WORDS_PER_NOTE),
+                        now.minusSeconds(random.nextInt(DAYS * 24 * 3600)), noteTags));
+            }
+            noteRepository.saveAll(chunk);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package ru.rvr.notes.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import ru.rvr.notes.entity.Note;
+import ru.rvr.notes.entity.Tag;
+
+import javax.naming.directory.InvalidAttributesException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries of notes and tags used by list endpoints
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ReadBenchmark {
+    private static final int LIMIT = 100;
+    private static final int TAGS_PER_REQUEST = 5;
+
+    @Benchmark
+    public List<Note> search(NotesState state) {
+        return state.noteRepository.getBySearch(NotesState.word(ThreadLocalRandom.current().nextInt(NotesState.WORDS)), LIMIT);
+    }
+
+    /**
+     * Table scan used before search index, baseline for {@link #search}
+     */
+    @Benchmark
+    public List<Note> substring(NotesState state) {
+        return state.noteRepository.getBySubstring(NotesState.word(ThreadLocalRandom.current().nextInt(NotesState.WORDS)), LIMIT);
+    }
+
+    @Benchmark
+    public List<Note> byTag(NotesState state) {
+        Tag tag = state.tags.get(ThreadLocalRandom.current().nextInt(state.tags.size()));
+        return state.noteRepository.getByTag(tag, null, LIMIT);
+    }
+
+    @Benchmark
+    public List<Note> sinceDateTime(NotesState state) {
+        return state.noteRepository.getSinceDateTime(state.now.minusDays(ThreadLocalRandom.current().nextInt(NotesState.DAYS)), null, LIMIT);
+    }
+
+    /**
+     * Resolution of tags of new note when all of them exist
+     */
+    @Benchmark
+    public List<Tag> persistedTags(NotesState state) throws InvalidAttributesException {
+        List<Tag> tags = new ArrayList<>(TAGS_PER_REQUEST);
+        for (int i = 0; i < TAGS_PER_REQUEST; i++) {
+            tags.add(new Tag(NotesState.tag(ThreadLocalRandom.current().nextInt(NotesState.TAGS))));
+        }
+        return state.tagRepository.getPersistedTagsFromList(tags);
+    }
+}
@@ -0,0 +1,102 @@
+package ru.rvr.notes.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.type.CollectionType;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import ru.rvr.notes.entity.Note;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serialization of note lists returned by list endpoints in every supported format.
+ * Object mappers are configured the same way as in application, json-gzip is json compressed as by server.
+ * Size of serialized list is printed on setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int notes;
+
+    @Param({"json", "json-gzip", "cbor", "smile"})
+    public String format;
+
+    private ObjectWriter writer;
+    private ObjectReader reader;
+    private boolean gzip;
+    private List<Note> list;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        Random random = new Random(notes);
+        LocalDateTime now = LocalDateTime.now();
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < notes; i++) {
+            json.append(i == 0 ? "" : ",").append(String.format(
+                    "{\"id\":%d,\"name\":\"%s\",\"content\":\"%s\",\"createdAt\":\"%s\",\"tags\":[{\"id\":%d,\"name\":\"%s\"}]}",
+                    i, NotesState.text(random, 2), NotesState.text(random, 10), now.minusSeconds(i),
+                    i % NotesState.TAGS, NotesState.tag(i % NotesState.TAGS)));
+        }
+        CollectionType type = objectMapper.getTypeFactory().constructCollectionType(List.class, Note.class);
+        list = objectMapper.readValue(json.append("]").toString(), type);
+
+        ObjectMapper formatMapper = mapper(format);
+        gzip = format.endsWith("-gzip");
+        writer = formatMapper.writerFor(type);
+        reader = formatMapper.readerFor(type);
+        bytes = serialize();
+        System.out.printf("%n%d notes in %s: %d bytes%n", notes, format, bytes.length);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        if (!gzip) {
+            return writer.writeValueAsBytes(list);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream gzipOut = new GZIPOutputStream(out)) {
+            writer.writeValue(gzipOut, list);
+        }
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public List<Note> deserialize() throws IOException {
+        if (!gzip) {
+            return reader.readValue(bytes);
+        }
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            return reader.readValue(in);
+        }
+    }
+
+    private static ObjectMapper mapper(String format) {
+        switch (format) {
+            case "cbor":
+                return Jackson2ObjectMapperBuilder.cbor().build();
+            case "smile":
+                return Jackson2ObjectMapperBuilder.smile().build();
+            default:
+                return Jackson2ObjectMapperBuilder.json().build();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package ru.rvr.notes.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import ru.rvr.notes.controller.BatchItemResult;
+import ru.rvr.notes.entity.Note;
+
+import javax.naming.directory.InvalidAttributesException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating and updating of notes the same way as endpoints do it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class WriteBenchmark {
+    private static final int INPUTS = 1000;
+    private static final int BATCH = 100;
+
+    private final List<Note> newNotes = new ArrayList<>(INPUTS);
+    private final List<Note> updatedNotes = new ArrayList<>(INPUTS);
+
+    /**
+     * Prepares request bodies. Updated notes are created by this benchmark, so seeded dataset is not changed
+     * and they are deleted with other created notes after trial.
+     */
+    @Setup(Level.Trial)
+    public void setUp(NotesState state) throws IOException, InvalidAttributesException {
+        ObjectMapper objectMapper = state.context.getBean(ObjectMapper.class);
+        Random random = new Random(INPUTS);
+        for (int i = 0; i < INPUTS; i++) {
+            newNotes.add(objectMapper.readValue(String.format("{\"name\":\"%s\",\"content\":\"%s\",\"tags\":[{\"name\":\"%s\"},{\"name\":\"%s\"}]}",
+                    NotesState.text(random, 2), NotesState.text(random, 10),
+                    NotesState.tag(random.nextInt(NotesState.TAGS)), NotesState.tag(random.nextInt(NotesState.TAGS))), Note.class));
+        }
+        List<Note> ownNotes = new ArrayList<>(INPUTS);
+        for (int i = 0; i < INPUTS; i++) {
+            ownNotes.add(new Note(NotesState.text(random, 2), NotesState.text(random, 10), state.now,
+                    Collections.singletonList(state.tags.get(random.nextInt(NotesState.TAGS)))));
+        }
+        for (Note note : state.noteRepository.saveAll(ownNotes)) {
+            StringBuilder tags = new StringBuilder();
+            note.getTags().forEach(tag -> tags.append(tags.length() == 0 ? "" : ",").append("{\"id\":").append(tag.getId()).append("}"));
+            updatedNotes.add(objectMapper.readValue(String.format("{\"id\":%d,\"name\":\"%s\",\"content\":\"%s\",\"tags\":[%s]}",
+                    note.getId(), NotesState.text(random, 2), NotesState.text(random, 10), tags), Note.class));
+        }
+    }
+
+    @Benchmark
+    public Note addNote(NotesState state) throws InvalidAttributesException {
+        return state.noteController.addNote(newNotes.get(ThreadLocalRandom.current().nextInt(newNotes.size())));
+    }
+
+    /**
+     * Adding notes by PUT /notes/batch, score is number of notes per second.
+     * Single note path of {@link #addNote} adds 1_000_000 / (its average time in microseconds) notes per second.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public List<BatchItemResult> addNotes(NotesState state) throws InvalidAttributesException {
+        int from = ThreadLocalRandom.current().nextInt(newNotes.size() - BATCH + 1);
+        return state.noteController.addNotes(newNotes.subList(from, from + BATCH));
+    }
+
+    @Benchmark
+    public Note updateNote(NotesState state) throws InvalidAttributesException {
+        return state.noteController.updateNote(updatedNotes.get(ThreadLocalRandom.current().nextInt(updatedNotes.size())), null).getBody();
+    }
+
+    /**
+     * Update with If-Match header, version is taken from second-level cache as client would take it from ETag
+     */
+    @Benchmark
+    public Note updateNoteIfMatch(NotesState state) throws InvalidAttributesException {
+        Note note = updatedNotes.get(ThreadLocalRandom.current().nextInt(updatedNotes.size()));
+        long version = state.noteRepository.getById(note.getId()).getVersion();
+        return state.noteController.updateNote(note, "\"" + version + "\"").getBody();
+    }
+}
@@ -0,0 +1,314 @@
+package ru.rvr.notes.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import ru.rvr.notes.NotesApplication;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Load generator for REST API.
+ * Starts the application on random port with H2 file database in target/loadtest, seeds it with notes
+ * and runs stages with increasing number of concurrent clients. Every client sends requests of the configured mix
+ * one after another without pause. Throughput, latency percentiles and errors are printed for every stage,
+ * so saturation point is where throughput stops growing while latency grows.
+ * <p>
+ * Options are passed as {@code --name=value}:
+ * <ul>
+ * <li>url - base url of already running application, the application is started by load test if not set</li>
+ * <li>notes - number of notes in database before test, 10000 by default</li>
+ * <li>clients - comma separated numbers of concurrent clients of stages, 1,4,16,64 by default</li>
+ * <li>warmup - seconds of warmup of every stage, not included in results, 5 by default</li>
+ * <li>duration - seconds of measurement of every stage, 20 by default</li>
+ * <li>mix - comma separated weights of operations, search:40,tag:20,tags:10,add:15,update:10,delete:5 by default</li>
+ * <li>notes.* - properties of started application, e.g. --notes.datasource.maximum-pool-size=20</li>
+ * </ul>
+ */
+public class LoadTest {
+    private static final int WORDS = 1000;
+    private static final int TAGS = 100;
+    private static final int SEED_BATCH = 1000;
+    private static final int KNOWN_NOTES = 10_000;
+    private static final int MAX_IDLE_CONNECTIONS = 10_000;
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    enum Operation {
+        SEARCH, TAG, TAGS, ADD, UPDATE, DELETE
+    }
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final String url;
+    private final List<Long> tagIds = new ArrayList<>();
+    // Ids of existing notes used by updates and deletes, 0 in slot means that note was deleted
+    private final AtomicLongArray noteIds = new AtomicLongArray(KNOWN_NOTES);
+    private int knownNotes;
+    private final Operation[] mix;
+
+    private LoadTest(String url, Operation[] mix) {
+        this.url = url;
+        this.mix = mix;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        List<String> applicationArgs = new ArrayList<>(Arrays.asList(
+                "--notes.datasource.url=jdbc:h2:file:./target/loadtest/db",
+                "--server.port=0",
+                "--logging.level.root=WARN",
+                "--spring.main.banner-mode=off"));
+        for (String arg : args) {
+            String[] option = arg.replaceFirst("^--", "").split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "");
+            if (option[0].startsWith("notes.")) {
+                applicationArgs.add(arg);
+            }
+        }
+        // Every client keeps its own connection alive, default limit of idle connections is 5 per host
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+        int notes = Integer.parseInt(options.getOrDefault("notes", "10000"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "20"));
+        ConfigurableApplicationContext context = null;
+        String url = options.get("url");
+        if (url == null) {
+            context = new SpringApplicationBuilder(NotesApplication.class).run(applicationArgs.toArray(new String[0]));
+            url = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+        }
+        try {
+            LoadTest loadTest = new LoadTest(url, parseMix(options.getOrDefault("mix", "search:40,tag:20,tags:10,add:15,update:10,delete:5")));
+            loadTest.prepare(notes);
+            for (String clients : options.getOrDefault("clients", "1,4,16,64").split(",")) {
+                loadTest.runStage(Integer.parseInt(clients.trim()), warmup, duration);
+            }
+        } finally {
+            if (context != null) {
+                context.close();
+            }
+        }
+    }
+
+    private static Operation[] parseMix(String value) {
+        List<Operation> mix = new ArrayList<>();
+        for (String item : value.split(",")) {
+            String[] weight = item.split(":");
+            Operation operation = Operation.valueOf(weight[0].trim().toUpperCase(Locale.ROOT));
+            for (int i = 0; i < Integer.parseInt(weight[1].trim()); i++) {
+                mix.add(operation);
+            }
+        }
+        return mix.toArray(new Operation[0]);
+    }
+
+    /**
+     * Adds notes up to required number and loads ids of tags and notes
+     */
+    private void prepare(int notes) throws IOException {
+        Random random = new Random(notes);
+        long existing = countNotes();
+        System.out.printf("Database has %d notes, seeding %d%n", existing, Math.max(0, notes - existing));
+        for (long from = existing; from < notes; from += SEED_BATCH) {
+            StringBuilder batch = new StringBuilder("[");
+            for (long i = from; i < Math.min(from + SEED_BATCH, notes); i++) {
+                batch.append(i == from ? "" : ",").append(noteJson(null, random));
+            }
+            request("PUT", "/notes/batch", batch.append("]").toString(), true);
+        }
+        for (JsonNode tag : objectMapper.readTree(request("GET", "/tags", null, true))) {
+            tagIds.add(tag.get("id").asLong());
+        }
+        for (JsonNode note : objectMapper.readTree(request("GET", "/notes?limit=" + KNOWN_NOTES, null, true))) {
+            noteIds.set(knownNotes++, note.get("id").asLong());
+        }
+    }
+
+    private long countNotes() throws IOException {
+        long count = 0;
+        String after = null;
+        do {
+            HttpURLConnection connection = open("GET", "/notes?limit=10000" + (after == null ? "" : "&after=" + after));
+            count += objectMapper.readTree(read(connection)).size();
+            after = connection.getHeaderField("X-Next-Cursor");
+        } while (after != null);
+        return count;
+    }
+
+    private void runStage(int clients, int warmup, int duration) throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+        long measureTo = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+        List<Future<Result>> futures = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            futures.add(executor.submit(() -> runClient(measureFrom, measureTo)));
+        }
+        Result total = new Result();
+        for (Future<Result> future : futures) {
+            total.add(future.get());
+        }
+        executor.shutdown();
+        total.print(clients, duration);
+    }
+
+    /**
+     * Sends requests until the end of stage, only requests started within measurement period are recorded
+     */
+    private Result runClient(long measureFrom, long measureTo) {
+        Result result = new Result();
+        Random random = ThreadLocalRandom.current();
+        while (true) {
+            Operation operation = mix[random.nextInt(mix.length)];
+            long start = System.nanoTime();
+            if (start >= measureTo) {
+                return result;
+            }
+            Boolean success;
+            try {
+                success = execute(operation, random);
+            } catch (IOException e) {
+                success = false;
+            }
+            if (success != null && start >= measureFrom) {
+                result.record(operation, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), success);
+            }
+        }
+    }
+
+    /**
+     * @return whether request succeeded, null if there is no note to update or delete and request wasn't sent
+     */
+    private Boolean execute(Operation operation, Random random) throws IOException {
+        switch (operation) {
+            case SEARCH:
+                return request("GET", "/notes/search/word" + random.nextInt(WORDS) + "?limit=20", null, false) != null;
+            case TAG:
+                return request("GET", "/notes/tag/" + tagIds.get(random.nextInt(tagIds.size())) + "?limit=100", null, false) != null;
+            case TAGS:
+                return request("GET", "/tags", null, false) != null;
+            case ADD: {
+                String response = request("PUT", "/notes", noteJson(null, random), false);
+                if (response != null && knownNotes > 0) {
+                    noteIds.set(random.nextInt(knownNotes), objectMapper.readTree(response).get("id").asLong());
+                }
+                return response != null;
+            }
+            case UPDATE: {
+                long id = knownNotes > 0 ? noteIds.get(random.nextInt(knownNotes)) : 0;
+                return id == 0 ? null : request("POST", "/notes", noteJson(id, random), false) != null;
+            }
+            case DELETE: {
+                long id = knownNotes > 0 ? noteIds.getAndSet(random.nextInt(knownNotes), 0) : 0;
+                return id == 0 ? null : request("DELETE", "/notes", "{\"id\":" + id + "}", false) != null;
+            }
+            default:
+                throw new IllegalArgumentException(operation.name());
+        }
+    }
+
+    private String noteJson(Long id, Random random) {
+        return String.format("{%s\"name\":\"%s\",\"content\":\"%s\",\"tags\":[{\"name\":\"tag%d\"},{\"name\":\"tag%d\"}]}",
+                id == null ? "" : "\"id\":" + id + ",", text(random, 2), text(random, 10), random.nextInt(TAGS), random.nextInt(TAGS));
+    }
+
+    private static String text(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            text.append(i == 0 ? "" : " ").append("word").append(random.nextInt(WORDS));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Sends request and reads whole response, so connection is reused
+     *
+     * @param required throw exception on error status instead of returning null
+     * @return response body or null on error status
+     */
+    private String request(String method, String path, String body, boolean required) throws IOException {
+        HttpURLConnection connection = open(method, path);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        if (connection.getResponseCode() >= 400) {
+            InputStream error = connection.getErrorStream();
+            String message = error == null ? "" : readFully(error);
+            if (required) {
+                throw new IOException(String.format("%s %s failed with %d: %s", method, path, connection.getResponseCode(), message));
+            }
+            return null;
+        }
+        return read(connection);
+    }
+
+    private HttpURLConnection open(String method, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Accept", "application/json");
+        return connection;
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException {
+        return readFully(connection.getInputStream());
+    }
+
+    private static String readFully(InputStream input) throws IOException {
+        try (InputStream stream = input) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read = stream.read(buffer); read >= 0; read = stream.read(buffer)) {
+                output.write(buffer, 0, read);
+            }
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Latencies and errors of one client, merged after stage
+     */
+    private static class Result {
+        private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+        private final Map<Operation, Long> errors = new EnumMap<>(Operation.class);
+
+        void record(Operation operation, long micros, boolean success) {
+            latencies.computeIfAbsent(operation, key -> new Histogram(MAX_LATENCY_MICROS, 3))
+                    .recordValue(Math.min(micros, MAX_LATENCY_MICROS));
+            if (!success) {
+                errors.merge(operation, 1L, Long::sum);
+            }
+        }
+
+        void add(Result other) {
+            other.latencies.forEach((operation, histogram) ->
+                    latencies.computeIfAbsent(operation, key -> new Histogram(MAX_LATENCY_MICROS, 3)).add(histogram));
+            other.errors.forEach((operation, count) -> errors.merge(operation, count, Long::sum));
+        }
+
+        void print(int clients, int duration) {
+            Histogram all = new Histogram(MAX_LATENCY_MICROS, 3);
+            latencies.values().forEach(all::add);
+            System.out.printf("%nClients: %d, throughput: %.1f req/s, errors: %d%n",
+                    clients, (double) all.getTotalCount() / duration, errors.values().stream().mapToLong(Long::longValue).sum());
+            System.out.printf("%-10s %10s %10s %10s %10s %10s %10s%n", "operation", "requests", "errors", "p50 ms", "p95 ms", "p99 ms", "max ms");
+            latencies.forEach((operation, histogram) -> printRow(operation.name().toLowerCase(Locale.ROOT), histogram, errors.getOrDefault(operation, 0L)));
+            printRow("all", all, errors.values().stream().mapToLong(Long::longValue).sum());
+        }
+
+        private static void printRow(String name, Histogram histogram, long errors) {
+            System.out.printf("%-10s %10d %10d %10.2f %10.2f %10.2f %10.2f%n", name, histogram.getTotalCount(), errors,
+                    histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(95) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0, histogram.getMaxValue() / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package ru.rvr.notes.loadtest;
+
+import ru.rvr.notes.NotesApplication;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures time to first request of the application.
+ * Every run starts the application in a new JVM with H2 file database in target/startup
+ * and measures time from process start until {@code GET /notes?limit=1} is answered.
+ * Database is created by the first run, so other runs start with existing schema as production instances do.
+ * <p>
+ * Options are passed as {@code --name=value}:
+ * <ul>
+ * <li>runs - number of measured starts, 5 by default</li>
+ * <li>timeout - seconds to wait for the first response of every start, 120 by default</li>
+ * <li>other options are passed to the application, e.g. --spring.profiles.active=fast-startup</li>
+ * </ul>
+ */
+public class StartupBenchmark {
+    private static final long POLL_MILLIS = 10;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        List<String> applicationArgs = new ArrayList<>(Arrays.asList(
+                "--notes.datasource.url=jdbc:h2:file:./target/startup/db",
+                "--logging.level.root=WARN",
+                "--spring.main.banner-mode=off"));
+        for (String arg : args) {
+            String[] option = arg.replaceFirst("^--", "").split("=", 2);
+            if (option[0].equals("runs") || option[0].equals("timeout")) {
+                options.put(option[0], option.length > 1 ? option[1] : "");
+            } else {
+                applicationArgs.add(arg);
+            }
+        }
+        int runs = Integer.parseInt(options.getOrDefault("runs", "5"));
+        long timeout = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("timeout", "120")));
+
+        // First start creates database, it's not measured
+        start(applicationArgs, timeout);
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            times[i] = start(applicationArgs, timeout);
+            System.out.printf("Run %d: %d ms%n", i + 1, TimeUnit.NANOSECONDS.toMillis(times[i]));
+        }
+        Arrays.sort(times);
+        System.out.printf("Time to first request: min %d ms, median %d ms, max %d ms%n",
+                TimeUnit.NANOSECONDS.toMillis(times[0]),
+                TimeUnit.NANOSECONDS.toMillis(times[runs / 2]),
+                TimeUnit.NANOSECONDS.toMillis(times[runs - 1]));
+    }
+
+    /**
+     * Starts the application, waits for its first response and stops it
+     *
+     * @return nanoseconds from process start to the first response
+     */
+    private static long start(List<String> applicationArgs, long timeout) throws IOException, InterruptedException {
+        int port = freePort();
+        List<String> command = new ArrayList<>(Arrays.asList(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-classpath", System.getProperty("java.class.path"),
+                NotesApplication.class.getName(),
+                "--server.port=" + port));
+        command.addAll(applicationArgs);
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        try {
+            URL url = new URL("http://localhost:" + port + "/notes?limit=1");
+            while (System.nanoTime() - start < timeout) {
+                if (!process.isAlive()) {
+                    throw new IllegalStateException("Application exited with code " + process.exitValue());
+                }
+                if (respond(url)) {
+                    return System.nanoTime() - start;
+                }
+                Thread.sleep(POLL_MILLIS);
+            }
+            throw new IllegalStateException("Application didn't respond in time");
+        } finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+        }
+    }
+
+    private static boolean respond(URL url) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            try {
+                return connection.getResponseCode() == HttpURLConnection.HTTP_OK;
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package ru.rvr.notes.admission;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.MethodIntrospector;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.stereotype.Controller;
+import org.springframework.util.ClassUtils;
+import org.springframework.web.method.HandlerMethod;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Limiters of endpoints annotated with {@link AdmissionLimit}.
+ * Controllers are scanned by their types when the application starts, so all limiters are known before the first call
+ * and controllers aren't created for it. Numbers of calls and rejections are published as metrics.
+ */
+@Component
+@Slf4j
+public class AdmissionControl {
+    private static final String PROPERTY_PREFIX = "notes.admission.";
+
+    private final Environment environment;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, ConcurrencyLimiter> limiters = new TreeMap<>();
+
+    public AdmissionControl(ApplicationContext context, Environment environment, MeterRegistry meterRegistry) {
+        this.environment = environment;
+        this.meterRegistry = meterRegistry;
+        for (String beanName : context.getBeanNamesForAnnotation(Controller.class)) {
+            Class<?> type = context.getType(beanName);
+            if (type == null) {
+                continue;
+            }
+            Map<Method, AdmissionLimit> methods = MethodIntrospector.selectMethods(ClassUtils.getUserClass(type),
+                    (MethodIntrospector.MetadataLookup<AdmissionLimit>) method ->
+                            AnnotatedElementUtils.findMergedAnnotation(method, AdmissionLimit.class));
+            for (AdmissionLimit admissionLimit : methods.values()) {
+                limiters.computeIfAbsent(admissionLimit.value(), name -> limiter(admissionLimit));
+            }
+        }
+    }
+
+    /**
+     * @return limiter of endpoint or null when it's not limited
+     */
+    public ConcurrencyLimiter getLimiter(HandlerMethod handlerMethod) {
+        AdmissionLimit admissionLimit = handlerMethod.getMethodAnnotation(AdmissionLimit.class);
+        return admissionLimit != null ? limiters.get(admissionLimit.value()) : null;
+    }
+
+    /**
+     * @return limiter by name or null when there is no such limiter
+     */
+    public ConcurrencyLimiter getLimiter(String name) {
+        return limiters.get(name);
+    }
+
+    /**
+     * @return states of all limiters ordered by name
+     */
+    public Collection<LimiterState> getStates() {
+        Collection<LimiterState> states = new ArrayList<>(limiters.size());
+        for (ConcurrencyLimiter limiter : limiters.values()) {
+            states.add(limiter.getState());
+        }
+        return states;
+    }
+
+    private ConcurrencyLimiter limiter(AdmissionLimit admissionLimit) {
+        String name = admissionLimit.value();
+        String prefix = PROPERTY_PREFIX + name + ".";
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(name,
+                environment.getProperty(prefix + "limit", Integer.class, admissionLimit.limit()),
+                environment.getProperty(prefix + "queue", Integer.class, admissionLimit.queue()),
+                environment.getProperty(prefix + "max-wait-ms", Long.class, admissionLimit.maxWaitMillis()),
+                environment.getProperty(prefix + "adaptive", Boolean.class, true));
+        Gauge.builder("notes.admission.limit", limiter, l -> l.getState().getLimit())
+                .description("Current limit of concurrent calls")
+                .tag("endpoint", name)
+                .register(meterRegistry);
+        Gauge.builder("notes.admission.in.flight", limiter, l -> l.getState().getInFlight())
+                .description("Number of calls in progress")
+                .tag("endpoint", name)
+                .register(meterRegistry);
+        Gauge.builder("notes.admission.waiting", limiter, l -> l.getState().getWaiting())
+                .description("Number of calls waiting for a free slot")
+                .tag("endpoint", name)
+                .register(meterRegistry);
+        FunctionCounter.builder("notes.admission.rejected", limiter, l -> l.getState().getRejected())
+                .description("Number of calls rejected because queue was full")
+                .tag("endpoint", name)
+                .register(meterRegistry);
+        FunctionCounter.builder("notes.admission.timed.out", limiter, l -> l.getState().getTimedOut())
+                .description("Number of calls rejected because they waited too long")
+                .tag("endpoint", name)
+                .register(meterRegistry);
+        LimiterState state = limiter.getState();
+        log.info(String.format("Calls of %s are limited to %d concurrent and %d waiting at most %d ms",
+                name, state.getMaxLimit(), state.getQueue(), state.getMaxWaitMs()));
+        return limiter;
+    }
+}
@@ -0,0 +1,79 @@
+package ru.rvr.notes.admission;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Admits calls of limited endpoints before they are handled and rejects calls over the limit
+ * with 429 or 503 status and Retry-After header.
+ * Slot of streaming response is released when the stream is finished, on completion of async dispatch.
+ */
+@Component
+@Slf4j
+public class AdmissionInterceptor implements AsyncHandlerInterceptor {
+    private static final String PERMIT_ATTRIBUTE = AdmissionInterceptor.class.getName() + ".permit";
+
+    private final AdmissionControl admissionControl;
+
+    public AdmissionInterceptor(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws IOException {
+        if (!(handler instanceof HandlerMethod) || request.getAttribute(PERMIT_ATTRIBUTE) != null) {
+            return true;
+        }
+        ConcurrencyLimiter limiter = admissionControl.getLimiter((HandlerMethod) handler);
+        if (limiter == null) {
+            return true;
+        }
+        ConcurrencyLimiter.Admission admission;
+        try {
+            admission = limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            admission = ConcurrencyLimiter.Admission.TIMED_OUT;
+        }
+        if (admission == ConcurrencyLimiter.Admission.ADMITTED) {
+            request.setAttribute(PERMIT_ATTRIBUTE, new Permit(limiter, System.nanoTime()));
+            return true;
+        }
+        HttpStatus status = admission == ConcurrencyLimiter.Admission.QUEUE_FULL
+                ? HttpStatus.TOO_MANY_REQUESTS : HttpStatus.SERVICE_UNAVAILABLE;
+        log.debug(String.format("Call of %s is rejected with %d status", limiter.getName(), status.value()));
+        response.setStatus(status.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(limiter.retryAfterSeconds()));
+        response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+        response.getWriter().write(String.format("Too many concurrent calls of %s, retry later", limiter.getName()));
+        return false;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        Permit permit = (Permit) request.getAttribute(PERMIT_ATTRIBUTE);
+        if (permit != null) {
+            request.removeAttribute(PERMIT_ATTRIBUTE);
+            permit.limiter.release(System.nanoTime() - permit.startNanos);
+        }
+    }
+
+    private static class Permit {
+        private final ConcurrencyLimiter limiter;
+        private final long startNanos;
+
+        private Permit(ConcurrencyLimiter limiter, long startNanos) {
+            this.limiter = limiter;
+            this.startNanos = startNanos;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package ru.rvr.notes.admission;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Limits number of concurrent calls of endpoint. Calls over the limit wait in bounded queue,
+ * calls that don't fit into the queue are rejected with 429 status, calls that wait too long with 503 status.
+ * Endpoints with the same name share one limiter, limits of the first of them are used.
+ * Limits are overridden by properties notes.admission.{name}.limit, .queue, .max-wait-ms and .adaptive
+ * and can be changed at runtime by PUT /admission/{name}.
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface AdmissionLimit {
+    /**
+     * Name of limiter
+     */
+    String value();
+
+    /**
+     * Maximum number of concurrent calls
+     */
+    int limit();
+
+    /**
+     * Maximum number of calls waiting for a free slot
+     */
+    int queue() default 0;
+
+    /**
+     * Maximum time of waiting in queue
+     */
+    long maxWaitMillis() default 1000;
+}
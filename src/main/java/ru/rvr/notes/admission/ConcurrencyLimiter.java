@@ -0,0 +1,189 @@
+package ru.rvr.notes.admission;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admits at most limit concurrent calls, at most queue calls wait for a free slot.
+ * Adaptive limit is adjusted after every {@value #WINDOW} calls by their average latency:
+ * it's lowered by 10% when the average is more than twice as long as the lowest average seen,
+ * otherwise it's raised by one up to configured limit if all slots were used.
+ * The lowest average slowly grows, so it follows latency when amount of data grows.
+ */
+public class ConcurrencyLimiter {
+    static final int WINDOW = 20;
+    private static final double TOLERANCE = 2.0;
+    private static final double DECREASE = 0.9;
+    private static final double BASELINE_GROWTH = 1.05;
+    private static final long MAX_RETRY_AFTER_SECONDS = 60;
+
+    public enum Admission {ADMITTED, QUEUE_FULL, TIMED_OUT}
+
+    private final String name;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private int maxLimit;
+    private int queue;
+    private long maxWaitNanos;
+    private boolean adaptive;
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    private long admitted;
+    private long rejected;
+    private long timedOut;
+    private int samples;
+    private long latencySum;
+    private boolean saturated;
+    private double baseline;
+    private double averageLatency;
+
+    public ConcurrencyLimiter(String name, int limit, int queue, long maxWaitMillis, boolean adaptive) {
+        this.name = name;
+        configure(limit, queue, maxWaitMillis, adaptive);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Replaces settings, adaptive limit starts again from the new limit
+     *
+     * @throws IllegalArgumentException when limit is less than 1 or queue or wait is negative
+     */
+    public void configure(int limit, int queue, long maxWaitMillis, boolean adaptive) {
+        if (limit < 1 || queue < 0 || maxWaitMillis < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Limit of %s must be positive, queue and wait must not be negative", name));
+        }
+        lock.lock();
+        try {
+            this.maxLimit = limit;
+            this.limit = limit;
+            this.queue = queue;
+            this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            this.adaptive = adaptive;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a slot, waits for it in queue if all slots are taken.
+     * Every admitted call has to be released.
+     *
+     * @return whether call is admitted or why it's rejected
+     * @throws InterruptedException when thread is interrupted while waiting
+     */
+    public Admission acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            if (inFlight < currentLimit()) {
+                return admit();
+            }
+            saturated = true;
+            if (waiting >= queue) {
+                rejected++;
+                return Admission.QUEUE_FULL;
+            }
+            waiting++;
+            try {
+                long nanos = maxWaitNanos;
+                while (inFlight >= currentLimit()) {
+                    if (nanos <= 0) {
+                        timedOut++;
+                        return Admission.TIMED_OUT;
+                    }
+                    nanos = released.awaitNanos(nanos);
+                }
+            } finally {
+                waiting--;
+            }
+            return admit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frees slot of admitted call
+     *
+     * @param latencyNanos duration of the call
+     */
+    public void release(long latencyNanos) {
+        lock.lock();
+        try {
+            inFlight--;
+            record(latencyNanos);
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Estimates when a rejected call can be retried: time to serve calls that are waiting now
+     *
+     * @return seconds from 1 to {@value #MAX_RETRY_AFTER_SECONDS}
+     */
+    public long retryAfterSeconds() {
+        lock.lock();
+        try {
+            double nanos = averageLatency * (waiting + 1) / currentLimit();
+            long seconds = (long) Math.ceil(nanos / TimeUnit.SECONDS.toNanos(1));
+            return Math.max(1, Math.min(MAX_RETRY_AFTER_SECONDS, seconds));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public LimiterState getState() {
+        lock.lock();
+        try {
+            return new LimiterState(name, currentLimit(), maxLimit, queue, TimeUnit.NANOSECONDS.toMillis(maxWaitNanos),
+                    adaptive, inFlight, waiting, averageLatency / TimeUnit.MILLISECONDS.toNanos(1),
+                    admitted, rejected, timedOut);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Admission admit() {
+        inFlight++;
+        admitted++;
+        if (inFlight >= currentLimit()) {
+            saturated = true;
+        }
+        return Admission.ADMITTED;
+    }
+
+    private int currentLimit() {
+        return Math.max(1, (int) limit);
+    }
+
+    private void record(long latencyNanos) {
+        latencySum += latencyNanos;
+        if (++samples < WINDOW) {
+            return;
+        }
+        averageLatency = (double) latencySum / samples;
+        if (adaptive) {
+            int before = currentLimit();
+            if (baseline > 0 && averageLatency > baseline * TOLERANCE) {
+                limit = Math.max(1, limit * DECREASE);
+            } else if (saturated) {
+                limit = Math.min(maxLimit, limit + 1);
+            }
+            baseline = baseline == 0 ? averageLatency : Math.min(averageLatency, baseline * BASELINE_GROWTH);
+            if (currentLimit() > before) {
+                released.signalAll();
+            }
+        }
+        samples = 0;
+        latencySum = 0;
+        saturated = false;
+    }
+}
@@ -0,0 +1,26 @@
+package ru.rvr.notes.admission;
+
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * New settings of limiter, settings that aren't set are kept
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+public class LimiterSettings {
+    @ApiModelProperty("Limit of concurrent calls, at least 1")
+    private Integer limit;
+
+    @ApiModelProperty("Maximum number of waiting calls, 0 to reject calls over the limit at once")
+    private Integer queue;
+
+    @ApiModelProperty("Maximum time of waiting in milliseconds")
+    private Long maxWaitMs;
+
+    @ApiModelProperty("Whether limit is adjusted by latency")
+    private Boolean adaptive;
+}
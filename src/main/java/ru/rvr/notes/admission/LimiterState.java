@@ -0,0 +1,62 @@
+package ru.rvr.notes.admission;
+
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Getter;
+
+/**
+ * Settings and counters of one limiter at some moment
+ */
+@Getter
+public class LimiterState {
+    @ApiModelProperty("Name of limiter")
+    private final String name;
+
+    @ApiModelProperty("Current limit of concurrent calls, lower than maxLimit when it was lowered by latency")
+    private final int limit;
+
+    @ApiModelProperty("Configured limit of concurrent calls")
+    private final int maxLimit;
+
+    @ApiModelProperty("Maximum number of waiting calls")
+    private final int queue;
+
+    @ApiModelProperty("Maximum time of waiting in milliseconds")
+    private final long maxWaitMs;
+
+    @ApiModelProperty("Whether limit is adjusted by latency")
+    private final boolean adaptive;
+
+    @ApiModelProperty("Number of calls in progress")
+    private final int inFlight;
+
+    @ApiModelProperty("Number of waiting calls")
+    private final int waiting;
+
+    @ApiModelProperty("Average latency of recent calls in milliseconds")
+    private final double latencyMs;
+
+    @ApiModelProperty("Number of admitted calls")
+    private final long admitted;
+
+    @ApiModelProperty("Number of calls rejected because queue was full")
+    private final long rejected;
+
+    @ApiModelProperty("Number of calls rejected because they waited too long")
+    private final long timedOut;
+
+    LimiterState(String name, int limit, int maxLimit, int queue, long maxWaitMs, boolean adaptive,
+                 int inFlight, int waiting, double latencyMs, long admitted, long rejected, long timedOut) {
+        this.name = name;
+        this.limit = limit;
+        this.maxLimit = maxLimit;
+        this.queue = queue;
+        this.maxWaitMs = maxWaitMs;
+        this.adaptive = adaptive;
+        this.inFlight = inFlight;
+        this.waiting = waiting;
+        this.latencyMs = latencyMs;
+        this.admitted = admitted;
+        this.rejected = rejected;
+        this.timedOut = timedOut;
+    }
+}
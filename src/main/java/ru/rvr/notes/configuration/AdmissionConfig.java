@@ -0,0 +1,25 @@
+package ru.rvr.notes.configuration;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import ru.rvr.notes.admission.AdmissionInterceptor;
+
+/**
+ * Limits concurrent calls of expensive endpoints, disabled by notes.admission.enabled=false
+ */
+@Configuration
+@ConditionalOnProperty(name = "notes.admission.enabled", havingValue = "true", matchIfMissing = true)
+public class AdmissionConfig implements WebMvcConfigurer {
+    private final AdmissionInterceptor admissionInterceptor;
+
+    public AdmissionConfig(AdmissionInterceptor admissionInterceptor) {
+        this.admissionInterceptor = admissionInterceptor;
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(admissionInterceptor);
+    }
+}
@@ -1,21 +1,69 @@
 package ru.rvr.notes.configuration;
 
+import com.zaxxer.hikari.HikariDataSource;
+import org.ehcache.jsr107.EhcacheCachingProvider;
+import org.ehcache.xml.XmlConfiguration;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.jdbc.DataSourceBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.Resource;
 import org.springframework.orm.jpa.JpaTransactionManager;
 import org.springframework.orm.jpa.JpaVendorAdapter;
 import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
 import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
+import ru.rvr.notes.entity.BlockSequenceGenerator;
+import ru.rvr.notes.metrics.QueryCounter;
+import ru.rvr.notes.repository.NoteShards;
 
+import javax.cache.CacheManager;
+import javax.cache.Caching;
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.function.LongSupplier;
 
 @Configuration
 @EnableTransactionManagement
 public class HibernateConfig {
+    @Value("${notes.datasource.url}")
+    private String url;
+
+    // Pool size bounds number of concurrent database calls regardless of number of request threads
+    @Value("${notes.datasource.maximum-pool-size:10}")
+    private int maximumPoolSize;
+
+    @Value("${notes.datasource.connection-timeout:30000}")
+    private long connectionTimeout;
+
+    // Schema is updated by Hibernate by default, fast-startup profile migrates it with Flyway and sets none
+    @Value("${notes.hibernate.ddl-auto:update}")
+    private String ddlAuto;
+
+    // Number of H2 databases notes are distributed to by hash of id, see NoteShards
+    @Value("${notes.shards:1}")
+    private int shards;
+
+    @Value("${notes.hibernate.statistics:false}")
+    private boolean statistics;
+
+    @Value("classpath:ehcache.xml")
+    private Resource cacheConfig;
+
+    private final QueryCounter queryCounter;
+
+    public HibernateConfig(QueryCounter queryCounter) {
+        this.queryCounter = queryCounter;
+    }
+
     @Bean
     public LocalContainerEntityManagerFactoryBean entityManagerFactory() {
         LocalContainerEntityManagerFactoryBean em
@@ -26,23 +74,75 @@ public class HibernateConfig {
         JpaVendorAdapter vendorAdapter = new HibernateJpaVendorAdapter();
         em.setJpaVendorAdapter(vendorAdapter);
         em.setJpaProperties(hibernateProperties());
+        // Counts statements and loaded entities of every request
+        em.getJpaPropertyMap().put("hibernate.session_factory.statement_inspector", queryCounter);
+        em.getJpaPropertyMap().put("hibernate.session_factory.interceptor", queryCounter);
+        em.getJpaPropertyMap().put("hibernate.javax.cache.cache_manager", cacheManager());
+        if (noteShards().isSharded()) {
+            // Ids are reserved in the first shard, so they are unique in all shards
+            em.getJpaPropertyMap().put(BlockSequenceGenerator.ALLOCATOR, (LongSupplier) noteShards()::nextId);
+            // Request thread waits for shard threads, so it must not keep connection of the first shard between transactions
+            em.getJpaPropertyMap().put("hibernate.connection.handling_mode", "DELAYED_ACQUISITION_AND_RELEASE_AFTER_TRANSACTION");
+        }
 
         return em;
     }
 
+    /**
+     * Databases of notes, the first shard uses notes.datasource.url
+     */
+    @Bean(initMethod = "init")
+    public NoteShards noteShards() {
+        if (shards < 1) {
+            throw new IllegalStateException("Number of shards must be positive");
+        }
+        List<DataSource> dataSources = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            dataSources.add(dataSource(NoteShards.shardUrl(url, shard), maximumPoolSize));
+        }
+        return new NoteShards(dataSources, shards > 1 ? dataSource(url, 1) : null);
+    }
+
+    /**
+     * @return connections to the first shard, or to the shard of current thread when there are several shards
+     */
     @Bean
     public DataSource dataSource() {
-        DataSourceBuilder dataSourceBuilder = DataSourceBuilder.create();
+        return noteShards().getDataSource();
+    }
+
+    private DataSource dataSource(String url, int maximumPoolSize) {
+        DataSourceBuilder<HikariDataSource> dataSourceBuilder = DataSourceBuilder.create().type(HikariDataSource.class);
         dataSourceBuilder.driverClassName("org.h2.Driver");
-        dataSourceBuilder.url("jdbc:h2:file:./data/db");
+        dataSourceBuilder.url(url);
 //        dataSourceBuilder.username(System.getenv("NOTES_DB_USER"));
 //        dataSourceBuilder.password(System.getenv("NOTES_DB_USER"));
         dataSourceBuilder.password("pass");
         dataSourceBuilder.username("user");
-        return dataSourceBuilder.build();
+        HikariDataSource dataSource = dataSourceBuilder.build();
+        dataSource.setMaximumPoolSize(maximumPoolSize);
+        dataSource.setConnectionTimeout(connectionTimeout);
+        return dataSource;
+    }
+
+    /**
+     * Second-level cache of this context. JCache provider shares cache managers by URI in the whole JVM,
+     * so every context gets its own URI and doesn't read entities cached by another context with the same ids.
+     */
+    @Bean(destroyMethod = "close")
+    public CacheManager cacheManager() {
+        EhcacheCachingProvider provider = (EhcacheCachingProvider) Caching.getCachingProvider(EhcacheCachingProvider.class.getName());
+        try {
+            XmlConfiguration configuration = new XmlConfiguration(cacheConfig.getURL(), getClass().getClassLoader());
+            return provider.getCacheManager(URI.create("urn:notes:cache:" + UUID.randomUUID()), configuration);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't read cache configuration", e);
+        }
     }
 
     @Bean
+    // Reactive transaction manager of R2DBC connections is also present, @Transactional methods use this one
+    @Primary
     public PlatformTransactionManager hibernateTransactionManager() {
         JpaTransactionManager transactionManager = new JpaTransactionManager();
         transactionManager.setEntityManagerFactory(entityManagerFactory().getObject());
@@ -51,9 +151,24 @@ public class HibernateConfig {
 
     private Properties hibernateProperties() {
         Properties hibernateProperties = new Properties();
-        hibernateProperties.setProperty("hibernate.hbm2ddl.auto", "update");
+        // Hibernate manages schema only of the first shard, so schema of every shard is migrated by Flyway
+        // (see NoteShards.init) and Hibernate only checks that entities match it
+        hibernateProperties.setProperty("hibernate.hbm2ddl.auto", noteShards().isSharded() && !"none".equals(ddlAuto) ? "validate" : ddlAuto);
         hibernateProperties.setProperty("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
         hibernateProperties.setProperty("hibernate.flushMode", "AUTO");
+        hibernateProperties.setProperty("hibernate.generate_statistics", String.valueOf(statistics));
+        // Ids are generated with hi/lo optimizer (see entity package-info), so inserts can be sent in JDBC batches
+        hibernateProperties.setProperty("hibernate.jdbc.batch_size", "50");
+        hibernateProperties.setProperty("hibernate.order_inserts", "true");
+        hibernateProperties.setProperty("hibernate.order_updates", "true");
+        hibernateProperties.setProperty("hibernate.jdbc.batch_versioned_data", "true");
+        // Second-level cache of entities and queries, regions are configured in ehcache.xml, see cacheManager
+        hibernateProperties.setProperty("hibernate.cache.use_second_level_cache", "true");
+        hibernateProperties.setProperty("hibernate.cache.use_query_cache", "true");
+        hibernateProperties.setProperty("hibernate.cache.region.factory_class", "jcache");
+        hibernateProperties.setProperty("hibernate.javax.cache.missing_cache_strategy", "fail");
+        // Lazy collections that are not fetched explicitly are loaded for many entities in one query
+        hibernateProperties.setProperty("hibernate.default_batch_fetch_size", "100");
         return hibernateProperties;
     }
 }
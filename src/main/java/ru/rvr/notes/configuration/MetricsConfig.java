@@ -0,0 +1,23 @@
+package ru.rvr.notes.configuration;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import ru.rvr.notes.metrics.QueryMetricsInterceptor;
+
+@Configuration
+public class MetricsConfig implements WebMvcConfigurer {
+    private final QueryMetricsInterceptor queryMetricsInterceptor;
+
+    public MetricsConfig(QueryMetricsInterceptor queryMetricsInterceptor) {
+        this.queryMetricsInterceptor = queryMetricsInterceptor;
+    }
+
+    /**
+     * Metrics of SQL statements are recorded for all endpoints except actuator ones
+     */
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(queryMetricsInterceptor).excludePathPatterns("/actuator/**");
+    }
+}
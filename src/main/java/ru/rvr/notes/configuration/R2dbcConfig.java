@@ -0,0 +1,81 @@
+package ru.rvr.notes.configuration;
+
+import io.r2dbc.h2.H2ConnectionConfiguration;
+import io.r2dbc.h2.H2ConnectionFactory;
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.spi.ConnectionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.r2dbc.core.DatabaseClient;
+import ru.rvr.notes.repository.NoteShards;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reactive access to the same H2 databases that are used by Hibernate.
+ * Used only for reading, all writes go through Hibernate.
+ */
+@Configuration
+public class R2dbcConfig {
+    private static final String JDBC_PREFIX = "jdbc:h2:";
+
+    @Value("${notes.datasource.url}")
+    private String url;
+
+    @Value("${notes.r2dbc.maximum-pool-size:10}")
+    private int maximumPoolSize;
+
+    @Value("${notes.shards:1}")
+    private int shards;
+
+    // Pools of shards except the first one, they are not beans
+    private final List<ConnectionPool> shardPools = new ArrayList<>();
+
+    @Bean(destroyMethod = "dispose")
+    public ConnectionPool connectionFactory() {
+        return connectionPool(url);
+    }
+
+    @Bean
+    public DatabaseClient databaseClient(ConnectionFactory connectionFactory) {
+        return DatabaseClient.create(connectionFactory);
+    }
+
+    /**
+     * @return clients of all shards, the first one is {@link #databaseClient}
+     */
+    @Bean
+    public List<DatabaseClient> shardDatabaseClients(DatabaseClient databaseClient) {
+        List<DatabaseClient> clients = new ArrayList<>(shards);
+        clients.add(databaseClient);
+        for (int shard = 1; shard < shards; shard++) {
+            ConnectionPool pool = connectionPool(NoteShards.shardUrl(url, shard));
+            shardPools.add(pool);
+            clients.add(DatabaseClient.create(pool));
+        }
+        return clients;
+    }
+
+    @PreDestroy
+    public void disposeShardPools() {
+        shardPools.forEach(ConnectionPool::dispose);
+    }
+
+    private ConnectionPool connectionPool(String url) {
+        if (!url.startsWith(JDBC_PREFIX)) {
+            throw new IllegalStateException("Only H2 database is supported");
+        }
+        ConnectionFactory connectionFactory = new H2ConnectionFactory(H2ConnectionConfiguration.builder()
+                .url(url.substring(JDBC_PREFIX.length()))
+                .username("user")
+                .password("pass")
+                .build());
+        return new ConnectionPool(ConnectionPoolConfiguration.builder(connectionFactory)
+                .maxSize(maximumPoolSize)
+                .build());
+    }
+}
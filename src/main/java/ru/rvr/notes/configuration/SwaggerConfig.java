@@ -1,14 +1,23 @@
 package ru.rvr.notes.configuration;
 
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.context.annotation.Import;
+import org.springframework.web.filter.OncePerRequestFilter;
 import springfox.documentation.builders.PathSelectors;
 import springfox.documentation.builders.RequestHandlerSelectors;
 import springfox.documentation.spi.DocumentationType;
+import springfox.documentation.spring.web.plugins.DocumentationPluginsBootstrapper;
 import springfox.documentation.spring.web.plugins.Docket;
 import springfox.documentation.swagger2.annotations.EnableSwagger2;
 
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
 @Configuration
 @EnableSwagger2
 public class SwaggerConfig {
@@ -23,4 +32,27 @@ public class SwaggerConfig {
                 .paths(PathSelectors.any())
                 .build();
     }
+
+    /**
+     * With springfox.documentation.auto-startup=false controllers are not scanned on startup,
+     * documentation is generated on first request of it
+     */
+    @Bean
+    public FilterRegistrationBean<OncePerRequestFilter> documentationOnDemandFilter(ObjectProvider<DocumentationPluginsBootstrapper> bootstrapper) {
+        FilterRegistrationBean<OncePerRequestFilter> registration = new FilterRegistrationBean<>(new OncePerRequestFilter() {
+            @Override
+            protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+                    throws ServletException, IOException {
+                DocumentationPluginsBootstrapper documentation = bootstrapper.getObject();
+                synchronized (documentation) {
+                    if (!documentation.isRunning()) {
+                        documentation.start();
+                    }
+                }
+                chain.doFilter(request, response);
+            }
+        });
+        registration.addUrlPatterns("/v2/api-docs", "/swagger-resources/*");
+        return registration;
+    }
 }
@@ -0,0 +1,80 @@
+package ru.rvr.notes.controller;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import ru.rvr.notes.admission.AdmissionControl;
+import ru.rvr.notes.admission.ConcurrencyLimiter;
+import ru.rvr.notes.admission.LimiterSettings;
+import ru.rvr.notes.admission.LimiterState;
+
+import javax.naming.directory.InvalidAttributesException;
+import java.util.Collection;
+
+@RestController
+@RequestMapping("admission")
+@Slf4j
+@Api(value = "Controller to inspect and change limits of concurrent calls")
+public class AdmissionController {
+    private final AdmissionControl admissionControl;
+
+    public AdmissionController(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    /**
+     * @return settings and counters of every limiter ordered by name
+     */
+    @GetMapping(value = "", produces = MediaTypes.JSON)
+    @ApiOperation("Get limits and counters of every limited endpoint")
+    public Collection<LimiterState> getAll() {
+        return admissionControl.getStates();
+    }
+
+    /**
+     * Changes settings of limiter, waiting calls are admitted at once if the limit is raised
+     *
+     * @param name     name of limiter
+     * @param settings new settings, settings that aren't set are kept
+     * @return new state of limiter
+     * @throws InvalidAttributesException when there is no such limiter or settings are invalid
+     */
+    @PutMapping(value = "/{name}", consumes = MediaTypes.JSON, produces = MediaTypes.JSON)
+    @ApiOperation("Change limits of endpoint")
+    public LimiterState update(@PathVariable String name, @RequestBody LimiterSettings settings) throws InvalidAttributesException {
+        ConcurrencyLimiter limiter = admissionControl.getLimiter(name);
+        if (limiter == null) {
+            throw new InvalidAttributesException(String.format("There is no limiter %s", name));
+        }
+        LimiterState state = limiter.getState();
+        try {
+            limiter.configure(settings.getLimit() != null ? settings.getLimit() : state.getMaxLimit(),
+                    settings.getQueue() != null ? settings.getQueue() : state.getQueue(),
+                    settings.getMaxWaitMs() != null ? settings.getMaxWaitMs() : state.getMaxWaitMs(),
+                    settings.getAdaptive() != null ? settings.getAdaptive() : state.isAdaptive());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidAttributesException(e.getMessage());
+        }
+        state = limiter.getState();
+        log.info(String.format("Calls of %s are limited to %d concurrent and %d waiting at most %d ms",
+                name, state.getMaxLimit(), state.getQueue(), state.getMaxWaitMs()));
+        return state;
+    }
+
+    @ExceptionHandler({InvalidAttributesException.class})
+    protected ResponseEntity<Object> handleAttributeException(final Exception ex, final WebRequest request) {
+        log.info(ex.getClass().getName());
+        return new ResponseEntity<>(ex.getMessage(), new HttpHeaders(), HttpStatus.BAD_REQUEST);
+    }
+}
@@ -0,0 +1,88 @@
+package ru.rvr.notes.controller;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.rvr.notes.admission.AdmissionLimit;
+import ru.rvr.notes.repository.BackupSummary;
+import ru.rvr.notes.repository.NoteBackup;
+
+import javax.naming.directory.InvalidAttributesException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+@RestController
+@RequestMapping("backup")
+@Slf4j
+@Api(value = "Controller to back up and restore all notes")
+public class BackupController {
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final NoteBackup noteBackup;
+
+    public BackupController(NoteBackup noteBackup) {
+        this.noteBackup = noteBackup;
+    }
+
+    /**
+     * Streams backup of all tags and notes while the application keeps working.
+     * Backup is gzip compressed newline delimited json, it's read from snapshot of database taken at the request.
+     *
+     * @return streaming body with backup as attachment
+     */
+    @GetMapping(value = "", produces = MediaTypes.GZIP)
+    @ApiOperation("Download backup of all tags and notes")
+    @AdmissionLimit(value = "backup", limit = 1)
+    public ResponseEntity<StreamingResponseBody> export() {
+        log.debug("Sending backup");
+        StreamingResponseBody body = outputStream -> {
+            BackupSummary summary = noteBackup.export(outputStream);
+            log.info("Backup of " + summary + " is sent");
+        };
+        ContentDisposition disposition = ContentDisposition.attachment()
+                .filename("notes-" + LocalDateTime.now().format(FILE_TIME) + ".ndjson.gz")
+                .build();
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(MediaTypes.GZIP))
+                .header(HttpHeaders.CONTENT_DISPOSITION, disposition.toString())
+                .body(body);
+    }
+
+    /**
+     * Restores backup made by {@link #export()} into empty database. Ids of tags and notes are kept.
+     * Notes must not be changed until restore is finished.
+     *
+     * @param backup gzip compressed backup
+     * @return numbers of restored tags and notes
+     * @throws InvalidAttributesException when database is not empty or backup is invalid
+     * @throws IOException                when backup can't be read
+     */
+    @PutMapping(value = "", consumes = MediaTypes.GZIP, produces = MediaTypes.JSON)
+    @ApiOperation("Restore backup into empty database")
+    public BackupSummary restore(InputStream backup) throws InvalidAttributesException, IOException {
+        log.debug("Restoring backup");
+        BackupSummary summary = noteBackup.restore(backup);
+        log.info("Backup of " + summary + " is restored");
+        return summary;
+    }
+
+    @ExceptionHandler({InvalidAttributesException.class})
+    protected ResponseEntity<Object> handleAttributeException(final Exception ex, final WebRequest request) {
+        log.info(ex.getClass().getName());
+        return new ResponseEntity<>(ex.getMessage(), new HttpHeaders(), HttpStatus.BAD_REQUEST);
+    }
+}
@@ -0,0 +1,35 @@
+package ru.rvr.notes.controller;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Getter;
+
+/**
+ * Result of processing one item of batch request
+ */
+@Getter
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BatchItemResult {
+    @ApiModelProperty("Position of the item in request")
+    private final int index;
+
+    @ApiModelProperty("Identifier of saved note. Not set on error.")
+    private final Long id;
+
+    @ApiModelProperty("Reason why the item wasn't saved. Not set on success.")
+    private final String error;
+
+    private BatchItemResult(int index, Long id, String error) {
+        this.index = index;
+        this.id = id;
+        this.error = error;
+    }
+
+    public static BatchItemResult saved(int index, Long id) {
+        return new BatchItemResult(index, id, null);
+    }
+
+    public static BatchItemResult failed(int index, String error) {
+        return new BatchItemResult(index, null, error);
+    }
+}
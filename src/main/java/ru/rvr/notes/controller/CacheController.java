@@ -0,0 +1,55 @@
+package ru.rvr.notes.controller;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.cache.CacheManager;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+@RestController
+@RequestMapping("cache")
+@Api(value = "Controller to inspect second-level cache")
+public class CacheController {
+    private static final String[] COUNTERS = {"Hits", "Misses", "Puts", "Evictions", "Removals"};
+
+    private final CacheManager cacheManager;
+
+    public CacheController(CacheManager cacheManager) {
+        this.cacheManager = cacheManager;
+    }
+
+    /**
+     * Reads counters of every cache region of this application from JCache statistics MBeans
+     *
+     * @return counters by region name
+     * @throws JMException when MBean can't be read
+     */
+    @GetMapping(value = "/statistics", produces = "application/json")
+    @ApiOperation("Get hit, miss and eviction counters of every cache region")
+    public Map<String, Map<String, Long>> getStatistics() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Map<String, Map<String, Long>> regions = new TreeMap<>();
+        // MBean names contain URI of cache manager with separators replaced by dots
+        String manager = cacheManager.getURI().toString().replaceAll("[,:=\\n]", ".");
+        for (ObjectName name : server.queryNames(new ObjectName("javax.cache:type=CacheStatistics,*"), null)) {
+            if (!manager.equals(name.getKeyProperty("CacheManager"))) {
+                continue;
+            }
+            Map<String, Long> counters = new LinkedHashMap<>();
+            for (String counter : COUNTERS) {
+                counters.put(counter.toLowerCase(), (Long) server.getAttribute(name, "Cache" + counter));
+            }
+            regions.put(name.getKeyProperty("Cache"), counters);
+        }
+        return regions;
+    }
+}
@@ -0,0 +1,88 @@
+package ru.rvr.notes.controller;
+
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.WebRequest;
+import ru.rvr.notes.repository.WriteRevision;
+
+import javax.naming.directory.InvalidAttributesException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Checks of If-None-Match, If-Modified-Since and If-Match request headers
+ */
+final class ConditionalRequests {
+    private static final long HTTP_DATE_PRECISION = 1000;
+
+    private ConditionalRequests() {
+    }
+
+    /**
+     * Checks whether client has response of current revision.
+     * Must be called before reading data, then response can only be newer than revision.
+     *
+     * @return true when response status is set to 304 and nothing else has to be sent
+     */
+    static boolean notModified(WebRequest request, WriteRevision revision) {
+        // ETag of list identifies data, not bytes: the same data is sent as json, cbor or smile, compressed or not.
+        // Weak ETag also lets server compress response.
+        return notModified(request, "W/" + revision.getETag(), revision.getLastModified());
+    }
+
+    /**
+     * Checks whether client has response with specified validators.
+     * ETag, Last-Modified and Vary: Accept headers are set to response.
+     *
+     * @param etag weak or strong ETag
+     * @return true when response status is set to 304 and nothing else has to be sent
+     */
+    static boolean notModified(WebRequest request, String etag, long lastModified) {
+        // Caches must not send response of one format to client that accepts another one, 304 responses included
+        HttpServletResponse response = ((NativeWebRequest) request).getNativeResponse(HttpServletResponse.class);
+        if (response != null) {
+            response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        }
+        // Http date has seconds precision, so changes within the current second can't be told apart by date
+        if (System.currentTimeMillis() - lastModified < HTTP_DATE_PRECISION) {
+            return request.checkNotModified(etag);
+        }
+        return request.checkNotModified(etag, lastModified);
+    }
+
+    /**
+     * ETag of note is strong, so it can be sent back in If-Match header
+     *
+     * @return ETag of note version sent by every endpoint of one note
+     */
+    static String versionETag(long version) {
+        return "\"" + version + "\"";
+    }
+
+    /**
+     * Parses expected version of note from If-Match header.
+     * If-Match uses strong comparison, so weak ETag never matches.
+     *
+     * @param ifMatch value of If-Match header
+     * @return expected version, or null when header is not set or matches any version
+     * @throws InvalidAttributesException        when header isn't ETag of note version
+     * @throws OptimisticLockingFailureException when header is weak ETag
+     */
+    static Long ifMatchVersion(String ifMatch) throws InvalidAttributesException {
+        if (ifMatch == null || ifMatch.trim().equals("*")) {
+            return null;
+        }
+        String etag = ifMatch.trim();
+        if (etag.startsWith("W/")) {
+            throw new OptimisticLockingFailureException("If-Match requires strong ETag of the note");
+        }
+        try {
+            if (etag.length() > 2 && etag.startsWith("\"") && etag.endsWith("\"")) {
+                return Long.parseLong(etag.substring(1, etag.length() - 1));
+            }
+        } catch (NumberFormatException e) {
+            // Reported below as any other invalid value
+        }
+        throw new InvalidAttributesException("If-Match must be ETag of the note");
+    }
+}
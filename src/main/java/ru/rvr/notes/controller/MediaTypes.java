@@ -0,0 +1,17 @@
+package ru.rvr.notes.controller;
+
+import org.springframework.http.MediaType;
+
+/**
+ * Media types of request and response bodies.
+ * Binary formats have the same structure as json and are chosen by Accept and Content-Type headers.
+ */
+final class MediaTypes {
+    static final String JSON = MediaType.APPLICATION_JSON_VALUE;
+    static final String CBOR = MediaType.APPLICATION_CBOR_VALUE;
+    static final String SMILE = "application/x-jackson-smile";
+    static final String GZIP = "application/gzip";
+
+    private MediaTypes() {
+    }
+}
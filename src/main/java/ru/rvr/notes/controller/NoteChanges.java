@@ -0,0 +1,52 @@
+package ru.rvr.notes.controller;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Getter;
+import ru.rvr.notes.entity.Note;
+import ru.rvr.notes.entity.NoteChange;
+
+import java.util.List;
+
+/**
+ * Batch of note changes with revision to request the next batch from
+ */
+@Getter
+public class NoteChanges {
+    @ApiModelProperty("Changes ordered by revision")
+    private final List<Item> changes;
+
+    @ApiModelProperty("Revision to pass as since to get the following changes")
+    private final long next;
+
+    public NoteChanges(List<Item> changes, long next) {
+        this.changes = changes;
+        this.next = next;
+    }
+
+    /**
+     * One change of note
+     */
+    @Getter
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Item {
+        @ApiModelProperty("Revision of the change")
+        private final long revision;
+
+        @ApiModelProperty("Kind of the change")
+        private final NoteChange.Type type;
+
+        @ApiModelProperty("Identifier of changed note")
+        private final long id;
+
+        @ApiModelProperty("Current state of the note. Not set for deleted notes.")
+        private final Note note;
+
+        public Item(NoteChange change, Note note) {
+            this.revision = change.getId();
+            this.type = change.getType();
+            this.id = change.getNoteId();
+            this.note = note;
+        }
+    }
+}
@@ -1,170 +1,674 @@
 package ru.rvr.notes.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SequenceWriter;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.NestedExceptionUtils;
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.transaction.TransactionSystemException;
+import org.springframework.http.converter.json.MappingJacksonValue;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.rvr.notes.admission.AdmissionLimit;
 import ru.rvr.notes.entity.Note;
+import ru.rvr.notes.entity.NoteChange;
+import ru.rvr.notes.entity.NoteViews;
 import ru.rvr.notes.entity.Tag;
+import ru.rvr.notes.repository.NoteBackup;
+import ru.rvr.notes.repository.NoteChangeRepository;
+import ru.rvr.notes.repository.NoteCursor;
+import ru.rvr.notes.repository.NoteField;
+import ru.rvr.notes.repository.NoteGroupCommitter;
+import ru.rvr.notes.repository.NoteProjection;
 import ru.rvr.notes.repository.NoteRepository;
+import ru.rvr.notes.repository.TagCount;
 import ru.rvr.notes.repository.TagRepository;
+import ru.rvr.notes.repository.TimeBucket;
+import ru.rvr.notes.search.NoteTagIndex;
 
 import javax.naming.directory.InvalidAttributesException;
-import javax.validation.ConstraintViolation;
-import javax.validation.ConstraintViolationException;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.List;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @RestController
 @RequestMapping("notes")
 @Slf4j
 @Api(value = "Controller to work with notes")
 public class NoteController {
+    private static final int MAX_PAGE_SIZE = 10_000;
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    private static final int MAX_BATCH_SIZE = 10_000;
+    private static final int BATCH_CHUNK_SIZE = 500;
+    private static final int MAX_FACETS = 100;
 
     private final NoteRepository noteRepository;
     private final TagRepository tagRepository;
+    private final NoteChangeRepository changeRepository;
+    private final ObjectMapper objectMapper;
+    private final Optional<NoteGroupCommitter> groupCommitter;
+    private final NoteBackup noteBackup;
 
-    public NoteController(NoteRepository noteRepository, TagRepository tagRepository) {
+    public NoteController(NoteRepository noteRepository, TagRepository tagRepository,
+                          NoteChangeRepository changeRepository, ObjectMapper objectMapper,
+                          Optional<NoteGroupCommitter> groupCommitter, NoteBackup noteBackup) {
         this.noteRepository = noteRepository;
         this.tagRepository = tagRepository;
+        this.changeRepository = changeRepository;
+        this.objectMapper = objectMapper;
+        this.groupCommitter = groupCommitter;
+        this.noteBackup = noteBackup;
     }
 
     /**
-     * Find all notes
+     * Find all notes. Without limit returns all notes at once.
      *
-     * @return list of notes
+     * @param limit maximum number of notes on page
+     * @param after cursor from previous page
+     * @param content whether to send content of notes instead of its preview
+     * @param fields comma separated fields of notes to send, all fields except content when not set
+     * @return list of notes ordered by created time, cursor of next page is in X-Next-Cursor header,
+     * or 304 status when notes weren't changed since previous response
+     * @throws InvalidAttributesException when limit, cursor or fields are invalid
      */
-    @GetMapping(value = "", produces = "application/json")
+    @GetMapping(value = "", produces = {MediaTypes.JSON, MediaTypes.CBOR, MediaTypes.SMILE})
     @ApiOperation("Get all notes")
-    public List<Note> getAll() {
+    @AdmissionLimit(value = "lists", limit = 8, queue = 32)
+    public ResponseEntity<MappingJacksonValue> getAll(@RequestParam(required = false) Integer limit,
+                                                      @RequestParam(required = false) String after,
+                                                      @RequestParam(defaultValue = "false") boolean content,
+                                                      @RequestParam(required = false) String fields,
+                                                      WebRequest request) throws InvalidAttributesException {
+        NoteCursor cursor = cursor(after);
+        int pageSize = pageSize(limit);
+        Set<NoteField> projection = NoteField.parse(fields);
+        if (ConditionalRequests.notModified(request, noteRepository.getRevision())) {
+            return null;
+        }
         log.debug("Sending all notes");
-        return noteRepository.getAll();
+        if (projection != null) {
+            return projectionPage(noteRepository.getPage(cursor, pageSize, projection), limit);
+        }
+        return page(notes(noteRepository.getPage(cursor, pageSize), content), limit, content);
+    }
+
+    /**
+     * Streams all notes as newline delimited json, one note per line.
+     * Notes are written as soon as they are read, so memory usage doesn't depend on number of notes.
+     *
+     * @return streaming body with notes ordered by created time
+     */
+    @GetMapping(value = "", produces = "application/x-ndjson")
+    @ApiOperation("Stream all notes as newline delimited json")
+    @AdmissionLimit(value = "stream", limit = 2)
+    public ResponseEntity<StreamingResponseBody> streamAll() {
+        log.debug("Streaming all notes");
+        StreamingResponseBody body = outputStream -> {
+            AtomicBoolean empty = new AtomicBoolean(true);
+            try (SequenceWriter writer = objectMapper.writerFor(Note.class)
+                    .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                    .withRootValueSeparator("\n")
+                    .writeValues(outputStream)) {
+                noteRepository.streamAll(note -> {
+                    try {
+                        writer.write(note);
+                        empty.set(false);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            if (!empty.get()) {
+                outputStream.write('\n');
+            }
+        };
+        return new ResponseEntity<>(body, HttpStatus.OK);
+    }
+
+    /**
+     * Find changes of notes after specified revision.
+     * Inserted and updated notes are sent in their current state, deleted notes only by id.
+     *
+     * @param since revision from previous batch, 0 to get all changes
+     * @param limit maximum number of changes
+     * @return changes ordered by revision and revision to request the following changes from.
+     * Full batch means there can be more changes.
+     * @throws InvalidAttributesException when limit is invalid
+     */
+    @GetMapping(value = "/changes", produces = {MediaTypes.JSON, MediaTypes.CBOR, MediaTypes.SMILE})
+    @ApiOperation("Get changes of notes since specified revision")
+    @AdmissionLimit(value = "lists", limit = 8, queue = 32)
+    public NoteChanges getChanges(@RequestParam(defaultValue = "0") long since,
+                                  @RequestParam(defaultValue = "1000") int limit) throws InvalidAttributesException {
+        List<NoteChange> changes = changeRepository.getSince(since, pageSize(limit));
+        Set<Long> ids = new LinkedHashSet<>();
+        for (NoteChange change : changes) {
+            if (change.getType() != NoteChange.Type.DELETE) {
+                ids.add(change.getNoteId());
+            }
+        }
+        Map<Long, Note> notes = new HashMap<>();
+        for (Note note : noteRepository.getByIds(new ArrayList<>(ids))) {
+            notes.put(note.getId(), note);
+        }
+        List<NoteChanges.Item> items = new ArrayList<>(changes.size());
+        for (NoteChange change : changes) {
+            items.add(new NoteChanges.Item(change, change.getType() == NoteChange.Type.DELETE ? null : notes.get(change.getNoteId())));
+        }
+        log.debug(String.format("Sending %d changes since revision %d", items.size(), since));
+        return new NoteChanges(items, changes.isEmpty() ? since : changes.get(changes.size() - 1).getId());
+    }
+
+    /**
+     * Find note by id
+     * @param id id of the note
+     * @return note with its version as ETag, or 304 status when note wasn't changed since previous response
+     * @throws InvalidAttributesException when note isn't exist
+     */
+    @GetMapping(value = "/{id}", produces = {MediaTypes.JSON, MediaTypes.CBOR, MediaTypes.SMILE})
+    @ApiOperation("Get note by id")
+    public ResponseEntity<Note> getById(@PathVariable @NotNull Long id, WebRequest request) throws InvalidAttributesException {
+        Note byId = noteRepository.getById(id);
+        if (byId == null) {
+            // TODO: change to 404
+            throw new InvalidAttributesException("No note with this id");
+        }
+        LocalDateTime updatedAt = byId.getUpdatedAt() != null ? byId.getUpdatedAt() : byId.getCreatedAt();
+        if (ConditionalRequests.notModified(request, ConditionalRequests.versionETag(byId.getVersion()),
+                updatedAt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli())) {
+            return null;
+        }
+        log.debug(String.format("Sending note with id %d", id));
+        return new ResponseEntity<>(byId, HttpStatus.OK);
     }
 
     /**
      * Filter notes by tag
      * @param id id of the tag
-     * @return list of notes
-     * @throws InvalidAttributesException when tag isn't exist
+     * @param limit maximum number of notes on page
+     * @param after cursor from previous page
+     * @param content whether to send content of notes instead of its preview
+     * @param fields comma separated fields of notes to send, all fields except content when not set
+     * @return list of notes ordered by created time, cursor of next page is in X-Next-Cursor header,
+     * or 304 status when notes weren't changed since previous response
+     * @throws InvalidAttributesException when tag isn't exist or fields are invalid
      */
-    @GetMapping(value = "/tag/{id}", produces = "application/json")
+    @GetMapping(value = "/tag/{id}", produces = {MediaTypes.JSON, MediaTypes.CBOR, MediaTypes.SMILE})
     @ApiOperation("Get all notes with specified tag id")
-    public List<Note> getByTag(@PathVariable @NotNull Long id) throws InvalidAttributesException {
+    @AdmissionLimit(value = "lists", limit = 8, queue = 32)
+    public ResponseEntity<MappingJacksonValue> getByTag(@PathVariable @NotNull Long id,
+                                                        @RequestParam(required = false) Integer limit,
+                                                        @RequestParam(required = false) String after,
+                                                        @RequestParam(defaultValue = "false") boolean content,
+                                                        @RequestParam(required = false) String fields,
+                                                        WebRequest request) throws InvalidAttributesException {
+        NoteCursor cursor = cursor(after);
+        int pageSize = pageSize(limit);
+        Set<NoteField> projection = NoteField.parse(fields);
+        if (ConditionalRequests.notModified(request, noteRepository.getRevision())) {
+            return null;
+        }
         Tag byId = tagRepository.getById(id);
         if (byId == null) {
             throw new InvalidAttributesException("No tag with this id");
         }
         log.debug("Sending notes filtered by tag");
-        return noteRepository.getByTag(byId);
+        if (projection != null) {
+            return projectionPage(noteRepository.getByTag(byId, cursor, pageSize, projection), limit);
+        }
+        return page(notes(noteRepository.getByTag(byId, cursor, pageSize), content), limit, content);
+    }
+
+    /**
+     * Filter notes by boolean condition over tags
+     * @param all ids of tags that note must have
+     * @param any ids of tags, note must have at least one of them
+     * @param none ids of tags that note must not have
+     * @param limit maximum number of notes on page
+     * @param after id from previous page
+     * @param facets maximum number of tags to count matched notes for, 0 to skip counting
+     * @param content whether to send content of notes instead of its preview
+     * @param fields comma separated fields of notes to send, all fields except content when not set
+     * @return page of notes ordered by id with total number of matched notes,
+     * or 304 status when notes weren't changed since previous response
+     * @throws InvalidAttributesException when limit, number of facets or fields are invalid
+     */
+    @GetMapping(value = "/tags", produces = {MediaTypes.JSON, MediaTypes.CBOR, MediaTypes.SMILE})
+    @ApiOperation("Get notes with all, any and none of specified tag ids")
+    @AdmissionLimit(value = "lists", limit = 8, queue = 32)
+    public MappingJacksonValue getByTags(@RequestParam(required = false) List<Long> all,
+                                         @RequestParam(required = false) List<Long> any,
+                                         @RequestParam(required = false) List<Long> none,
+                                         @RequestParam(defaultValue = "100") int limit,
+                                         @RequestParam(required = false) Long after,
+                                         @RequestParam(defaultValue = "0") int facets,
+                                         @RequestParam(defaultValue = "false") boolean content,
+                                         @RequestParam(required = false) String fields,
+                                         WebRequest request) throws InvalidAttributesException {
+        int pageSize = pageSize(limit);
+        Set<NoteField> projection = NoteField.parse(fields);
+        if (facets < 0 || facets > MAX_FACETS) {
+            throw new InvalidAttributesException(String.format("Facets must be between 0 and %d", MAX_FACETS));
+        }
+        if (ConditionalRequests.notModified(request, noteRepository.getRevision())) {
+            return null;
+        }
+        log.debug("Sending notes filtered by tags");
+        NoteTagIndex.Match match = noteRepository.findByTags(orEmpty(all), orEmpty(any), orEmpty(none), after, pageSize, facets);
+        List<Long> ids = match.getIds();
+        List<TagCount> tagCounts = null;
+        if (match.getFacets() != null) {
+            tagCounts = new ArrayList<>(match.getFacets().size());
+            Map<Long, Tag> facetTags = tagRepository.getByIds(match.getFacets().keySet());
+            for (Map.Entry<Long, Long> facet : match.getFacets().entrySet()) {
+                Tag tag = facetTags.get(facet.getKey());
+                tagCounts.add(new TagCount(facet.getKey(), tag == null ? null : tag.getName(), facet.getValue()));
+            }
+        }
+        Long next = ids.size() == pageSize ? ids.get(ids.size() - 1) : null;
+        if (projection != null) {
+            return new MappingJacksonValue(new TaggedNotes(noteRepository.getByIds(ids, projection), match.getTotal(), next, tagCounts));
+        }
+        return view(new TaggedNotes(notes(noteRepository.getByIds(ids), content), match.getTotal(), next, tagCounts), content);
     }
 
     /**
      *
      * Filter notes that start after specified datetime
      * @param since start LocalDateTime to filter
-     * @return list of notes
+     * @param limit maximum number of notes on page
+     * @param after cursor from previous page
+     * @param content whether to send content of notes instead of its preview
+     * @param fields comma separated fields of notes to send, all fields except content when not set
+     * @return list of notes ordered by created time, cursor of next page is in X-Next-Cursor header,
+     * or 304 status when notes weren't changed since previous response
      */
-    @GetMapping(value = "/since/{since}", produces = "application/json")
-    @ApiOperation("Get all notes with specified tag id")
-    public List<Note> getSinceDateTime(@PathVariable @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) @NotNull LocalDateTime since) {
+    @GetMapping(value = "/since/{since}", produces = {MediaTypes.JSON, MediaTypes.CBOR, MediaTypes.SMILE})
+    @ApiOperation("Get all notes created since specified time")
+    @AdmissionLimit(value = "lists", limit = 8, queue = 32)
+    public ResponseEntity<MappingJacksonValue> getSinceDateTime(@PathVariable @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) @NotNull LocalDateTime since,
+                                                                @RequestParam(required = false) Integer limit,
+                                                                @RequestParam(required = false) String after,
+                                                                @RequestParam(defaultValue = "false") boolean content,
+                                                                @RequestParam(required = false) String fields,
+                                                                WebRequest request) throws InvalidAttributesException {
+        NoteCursor cursor = cursor(after);
+        int pageSize = pageSize(limit);
+        Set<NoteField> projection = NoteField.parse(fields);
+        if (ConditionalRequests.notModified(request, noteRepository.getRevision())) {
+            return null;
+        }
         log.debug("Sending notes filtered by date");
-        return noteRepository.getSinceDateTime(since);
+        if (projection != null) {
+            return projectionPage(noteRepository.getSinceDateTime(since, cursor, pageSize, projection), limit);
+        }
+        return page(notes(noteRepository.getSinceDateTime(since, cursor, pageSize), content), limit, content);
     }
 
-    @GetMapping(value = "/search/{query}", produces = "application/json")
-    @ApiOperation("Get all notes with specified tag id")
-    public List<Note> getSinceDateTime(@PathVariable @NotBlank @NotNull String query) {
+    /**
+     * Find most relevant notes containing all words of query in name or content
+     * @param query search query, last word is matched as prefix
+     * @param limit maximum number of notes
+     * @param content whether to send content of notes instead of its preview
+     * @param fields comma separated fields of notes to send, all fields except content when not set
+     * @return list of notes ordered by relevance, or 304 status when notes weren't changed since previous response
+     * @throws InvalidAttributesException when limit or fields are invalid
+     */
+    @GetMapping(value = "/search/{query}", produces = {MediaTypes.JSON, MediaTypes.CBOR, MediaTypes.SMILE})
+    @ApiOperation("Get most relevant notes for search query")
+    @AdmissionLimit(value = "search", limit = 4, queue = 16)
+    public MappingJacksonValue getBySearch(@PathVariable @NotBlank @NotNull String query,
+                                           @RequestParam(defaultValue = "100") int limit,
+                                           @RequestParam(defaultValue = "false") boolean content,
+                                           @RequestParam(required = false) String fields,
+                                           WebRequest request) throws InvalidAttributesException {
+        int pageSize = pageSize(limit);
+        Set<NoteField> projection = NoteField.parse(fields);
+        if (ConditionalRequests.notModified(request, noteRepository.getRevision())) {
+            return null;
+        }
         log.debug("Sending notes filtered by search query");
-        return noteRepository.getBySearch(query);
+        if (projection != null) {
+            return new MappingJacksonValue(noteRepository.getBySearch(query, pageSize, projection));
+        }
+        return view(notes(noteRepository.getBySearch(query, pageSize), content), content);
+    }
+
+
+    /**
+     * Count notes created in every hour, day or week of time range
+     * @param interval hour, day or week
+     * @param from start of range, inclusive
+     * @param to end of range, exclusive
+     * @return intervals with at least one note ordered by start, or 304 status when notes weren't changed since previous response
+     * @throws InvalidAttributesException when interval or range is invalid
+     */
+    @GetMapping(value = "/stats/created", produces = {MediaTypes.JSON, MediaTypes.CBOR, MediaTypes.SMILE})
+    @ApiOperation("Count notes created in every interval of time range")
+    @AdmissionLimit(value = "stats", limit = 2, queue = 8)
+    public List<TimeBucket> countByCreatedAt(@RequestParam(defaultValue = "day") String interval,
+                                             @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+                                             @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+                                             WebRequest request) throws InvalidAttributesException {
+        TimeBucket.Interval bucketInterval = interval(interval);
+        range(from, to);
+        if (ConditionalRequests.notModified(request, noteRepository.getRevision())) {
+            return null;
+        }
+        log.debug("Sending numbers of notes by created time");
+        return noteRepository.countByCreatedAt(bucketInterval, from, to);
+    }
+
+    /**
+     * Count notes created in time range for every tag
+     * @param from start of range, inclusive
+     * @param to end of range, exclusive
+     * @return tags with at least one note ordered by number of notes descending,
+     * or 304 status when notes weren't changed since previous response
+     * @throws InvalidAttributesException when range is invalid
+     */
+    @GetMapping(value = "/stats/tags", produces = {MediaTypes.JSON, MediaTypes.CBOR, MediaTypes.SMILE})
+    @ApiOperation("Count notes created in time range for every tag")
+    @AdmissionLimit(value = "stats", limit = 2, queue = 8)
+    public List<TagCount> countByTag(@RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+                                     @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+                                     WebRequest request) throws InvalidAttributesException {
+        range(from, to);
+        if (ConditionalRequests.notModified(request, noteRepository.getRevision())) {
+            return null;
+        }
+        log.debug("Sending numbers of notes by tag");
+        return noteRepository.countByTag(from, to);
     }
 
 
     /**
      * Saves new tag. Generates new id and sets createdAt in any case.
+     * With group commit enabled the note is committed together with notes of concurrent requests.
      *
      * @param note parsed from json Note
      * @return saved note
      * @throws InvalidAttributesException error during tags saving
      */
-    @PutMapping(value = "", consumes = "application/json", produces = "application/json")
+    @PutMapping(value = "", consumes = {MediaTypes.JSON, MediaTypes.CBOR, MediaTypes.SMILE}, produces = {MediaTypes.JSON, MediaTypes.CBOR, MediaTypes.SMILE})
     @ApiOperation("Add new note")
     public Note addNote(@RequestBody Note note) throws InvalidAttributesException {
-        log.debug("Adding note");
-        note = new Note(
-                note.getName(),
-                note.getContent(),
-                LocalDateTime.now(),
-                tagRepository.getPersistedTagsFromList(note.getTags())
-        );
-        Note savedNote = noteRepository.save(note);
-        log.info(String.format("Added note with id %d", savedNote.getId()));
-        return savedNote;
-    }
-
-    @PostMapping(value = "", consumes = "application/json", produces = "application/json")
-    @ApiOperation("Update note with assigned id. Requires id.")
-    public Note updateNote(@RequestBody Note note) throws InvalidAttributesException {
-        if (note.getId() == null) {
-            throw new InvalidAttributesException("Id not set. Cannot find needed note");
+        return noteBackup.write(() -> {
+            log.debug("Adding note");
+            if (groupCommitter.isPresent()) {
+                Note savedNote = groupCommitter.get().save(note.getName(), note.getContent(), LocalDateTime.now(), note.getTags());
+                log.info(String.format("Added note with id %d", savedNote.getId()));
+                return savedNote;
+            }
+            Note newNote = new Note(
+                    note.getName(),
+                    note.getContent(),
+                    LocalDateTime.now(),
+                    tagRepository.getPersistedTagsFromList(note.getTags())
+            );
+            Note savedNote = noteRepository.save(newNote);
+            log.info(String.format("Added note with id %d", savedNote.getId()));
+            return savedNote;
+        });
+    }
+
+    /**
+     * Saves list of new notes. Generates new id and sets createdAt for each note.
+     * Notes are saved in chunks, each chunk in one transaction with batched inserts.
+     * If chunk can't be saved, its notes are saved one by one, so invalid note doesn't fail others.
+     *
+     * @param notes parsed from json notes
+     * @return result for every note in the same order
+     * @throws InvalidAttributesException when there are too many notes
+     */
+    @PutMapping(value = "/batch", consumes = {MediaTypes.JSON, MediaTypes.CBOR, MediaTypes.SMILE}, produces = {MediaTypes.JSON, MediaTypes.CBOR, MediaTypes.SMILE})
+    @ApiOperation("Add list of new notes")
+    @AdmissionLimit(value = "batch", limit = 2, queue = 8, maxWaitMillis = 5000)
+    public List<BatchItemResult> addNotes(@RequestBody List<Note> notes) throws InvalidAttributesException {
+        return noteBackup.write(() -> {
+            if (notes.size() > MAX_BATCH_SIZE) {
+                throw new InvalidAttributesException(String.format("Batch cannot contain more than %d notes", MAX_BATCH_SIZE));
+            }
+            log.debug(String.format("Adding %d notes", notes.size()));
+            List<BatchItemResult> results = new ArrayList<>(notes.size());
+            for (int from = 0; from < notes.size(); from += BATCH_CHUNK_SIZE) {
+                results.addAll(addChunk(notes.subList(from, Math.min(from + BATCH_CHUNK_SIZE, notes.size())), from));
+            }
+            log.info(String.format("Added %d of %d notes in batch", results.stream().filter(result -> result.getId() != null).count(), notes.size()));
+            return results;
+        });
+    }
+
+    private List<BatchItemResult> addChunk(List<Note> chunk, int offset) {
+        BatchItemResult[] results = new BatchItemResult[chunk.size()];
+        Map<Long, Tag> tagsById = new HashMap<>();
+        Map<String, Tag> tagsByName = new HashMap<>();
+        boolean tagsResolved = resolveTags(chunk, tagsById, tagsByName);
+        LocalDateTime now = LocalDateTime.now();
+        List<Note> prepared = new ArrayList<>(chunk.size());
+        List<Integer> positions = new ArrayList<>(chunk.size());
+        for (int i = 0; i < chunk.size(); i++) {
+            Note note = chunk.get(i);
+            try {
+                if (note.getContent() == null) {
+                    throw new InvalidAttributesException("Content cannot be null");
+                }
+                List<Tag> tags = tagsResolved
+                        ? mapTags(note.getTags(), tagsById, tagsByName)
+                        : tagRepository.getPersistedTagsFromList(note.getTags());
+                prepared.add(new Note(note.getName(), note.getContent(), now, tags));
+                positions.add(i);
+            } catch (InvalidAttributesException e) {
+                results[i] = BatchItemResult.failed(offset + i, e.getMessage());
+            }
         }
-        Note byId = noteRepository.getById(note.getId());
-        if (byId == null) {
-            // TODO: change to 404
-            throw new InvalidAttributesException("No note with this id");
+        try {
+            List<Note> saved = noteRepository.saveAll(prepared);
+            for (int j = 0; j < saved.size(); j++) {
+                results[positions.get(j)] = BatchItemResult.saved(offset + positions.get(j), saved.get(j).getId());
+            }
+        } catch (RuntimeException e) {
+            log.info("Batch chunk failed, saving notes one by one");
+            for (int j = 0; j < prepared.size(); j++) {
+                Note note = prepared.get(j);
+                int index = offset + positions.get(j);
+                try {
+                    // Failed persist could assign id, so the note is copied to save it as new one
+                    Note saved = noteRepository.save(new Note(note.getName(), note.getContent(), note.getCreatedAt(), note.getTags()));
+                    results[positions.get(j)] = BatchItemResult.saved(index, saved.getId());
+                } catch (RuntimeException | InvalidAttributesException ex) {
+                    results[positions.get(j)] = BatchItemResult.failed(index, NestedExceptionUtils.getMostSpecificCause(ex).getMessage());
+                }
+            }
         }
-        log.debug(String.format("Updating note with id %d", note.getId()));
-        Note noteToUpdate = new Note(note, byId.getCreatedAt(), tagRepository.getPersistedTagsFromList(note.getTags()));
-        return noteRepository.save(noteToUpdate);
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Loads or creates tags of all notes at once
+     *
+     * @return false when some tag is invalid, then tags have to be resolved for every note separately
+     */
+    private boolean resolveTags(List<Note> notes, Map<Long, Tag> tagsById, Map<String, Tag> tagsByName) {
+        List<Tag> tags = new ArrayList<>();
+        for (Note note : notes) {
+            if (note.getTags() != null) {
+                tags.addAll(note.getTags());
+            }
+        }
+        try {
+            for (Tag tag : tagRepository.getPersistedTagsFromList(tags)) {
+                tagsById.put(tag.getId(), tag);
+                tagsByName.put(tag.getName(), tag);
+            }
+            return true;
+        } catch (InvalidAttributesException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Replaces tags with already persisted ones the same way as {@link TagRepository#getPersistedTagsFromList}
+     */
+    private static List<Tag> mapTags(List<Tag> tags, Map<Long, Tag> tagsById, Map<String, Tag> tagsByName) {
+        Map<Long, Tag> result = new LinkedHashMap<>();
+        if (tags != null) {
+            for (Tag tag : tags) {
+                Tag persisted = tag.getId() != null && tagsById.containsKey(tag.getId()) ? tagsById.get(tag.getId()) : tagsByName.get(tag.getName());
+                result.put(persisted.getId(), persisted);
+            }
+        }
+        return new ArrayList<>(result.values());
+    }
+
+    /**
+     * Updates note with assigned id.
+     * With If-Match header the note is updated only when it has version from the header,
+     * otherwise the last update wins.
+     *
+     * @param note    parsed from json note with id
+     * @param ifMatch ETag of the note version the update is based on
+     * @return updated note, with its new version as ETag when If-Match is set,
+     * or 412 status when the note was changed since that version
+     * @throws InvalidAttributesException when note isn't exist or attributes are invalid
+     */
+    @PostMapping(value = "", consumes = {MediaTypes.JSON, MediaTypes.CBOR, MediaTypes.SMILE}, produces = {MediaTypes.JSON, MediaTypes.CBOR, MediaTypes.SMILE})
+    @ApiOperation("Update note with assigned id. Requires id.")
+    public ResponseEntity<Note> updateNote(@RequestBody Note note,
+                                           @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) throws InvalidAttributesException {
+        return noteBackup.write(() -> {
+            if (note.getId() == null) {
+                throw new InvalidAttributesException("Id not set. Cannot find needed note");
+            }
+            Long version = ConditionalRequests.ifMatchVersion(ifMatch);
+            if (version != null) {
+                if (note.getContent() == null) {
+                    throw new InvalidAttributesException("Content cannot be null");
+                }
+                log.debug(String.format("Updating note with id %d and version %d", note.getId(), version));
+                Note updated = noteRepository.update(note.getId(), version, note.getName(), note.getContent(),
+                        tagRepository.getPersistedTagsFromList(note.getTags()));
+                if (updated == null) {
+                    throw new InvalidAttributesException("No note with this id");
+                }
+                return ResponseEntity.ok().eTag(ConditionalRequests.versionETag(updated.getVersion())).body(updated);
+            }
+            Note byId = noteRepository.getById(note.getId());
+            if (byId == null) {
+                // TODO: change to 404
+                throw new InvalidAttributesException("No note with this id");
+            }
+            log.debug(String.format("Updating note with id %d", note.getId()));
+            Note noteToUpdate = new Note(note, byId.getCreatedAt(), byId.getVersion(), tagRepository.getPersistedTagsFromList(note.getTags()));
+            return ResponseEntity.ok(noteRepository.save(noteToUpdate));
+        });
     }
 
 
     @ApiOperation("Remove note with assigned id. Requires id.")
-    @DeleteMapping(value = "",consumes = "application/json")
+    @DeleteMapping(value = "", consumes = {MediaTypes.JSON, MediaTypes.CBOR, MediaTypes.SMILE})
     public ResponseEntity removeNote(@RequestBody Note note) throws InvalidAttributesException {
-        if (note.getId() == null) {
-            throw new InvalidAttributesException("Id not set. Cannot find needed note");
+        return noteBackup.write(() -> {
+            if (note.getId() == null) {
+                throw new InvalidAttributesException("Id not set. Cannot find needed note");
+            }
+            Note byId = noteRepository.getById(note.getId());
+            if (byId == null) {
+                // TODO: change to 404
+                throw new InvalidAttributesException("No note with this id");
+            }
+            log.debug(String.format("Updating note with id %d", note.getId()));
+            noteRepository.remove(byId);
+            return new ResponseEntity(HttpStatus.OK);
+        });
+    }
+
+
+    private static NoteCursor cursor(String after) throws InvalidAttributesException {
+        return after == null ? null : NoteCursor.decode(after);
+    }
+
+    private static List<Long> orEmpty(List<Long> ids) {
+        return ids == null ? Collections.emptyList() : ids;
+    }
+
+    private static TimeBucket.Interval interval(String interval) throws InvalidAttributesException {
+        try {
+            return TimeBucket.Interval.valueOf(interval.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidAttributesException("Interval must be one of hour, day, week");
         }
-        Note byId = noteRepository.getById(note.getId());
-        if (byId == null) {
-            // TODO: change to 404
-            throw new InvalidAttributesException("No note with this id");
+    }
+
+    private static void range(LocalDateTime from, LocalDateTime to) throws InvalidAttributesException {
+        if (!from.isBefore(to)) {
+            throw new InvalidAttributesException("Start of range must be before its end");
+        }
+    }
+
+    /**
+     * Checks limit of notes on page
+     *
+     * @return limit, or maximum integer when limit is not set
+     * @throws InvalidAttributesException when limit is not between 1 and {@value #MAX_PAGE_SIZE}
+     */
+    static int pageSize(Integer limit) throws InvalidAttributesException {
+        if (limit == null) {
+            return Integer.MAX_VALUE;
         }
-        log.debug(String.format("Updating note with id %d", note.getId()));
-        noteRepository.remove(byId);
-        return new ResponseEntity(HttpStatus.OK);
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new InvalidAttributesException(String.format("Limit must be between 1 and %d", MAX_PAGE_SIZE));
+        }
+        return limit;
+    }
+
+    /**
+     * Loads long content of listed notes when it's sent
+     */
+    private List<Note> notes(List<Note> notes, boolean content) {
+        return content ? noteRepository.withContent(notes) : notes;
     }
 
+    /**
+     * Wraps page of notes to response. Full page means there can be more notes, so cursor of the next page is sent.
+     */
+    private static ResponseEntity<MappingJacksonValue> page(List<Note> notes, Integer limit, boolean content) {
+        HttpHeaders headers = new HttpHeaders();
+        if (limit != null && notes.size() == limit) {
+            headers.set(NEXT_CURSOR_HEADER, NoteCursor.after(notes.get(notes.size() - 1)).encode());
+        }
+        return new ResponseEntity<>(view(notes, content), headers, HttpStatus.OK);
+    }
 
     /**
-     * Handler that allows to get original exception from transaction exception and send needed status
+     * The same as {@link #page} for projections of notes
      */
-    @ExceptionHandler({TransactionSystemException.class})
-    protected ResponseEntity<Object> handlePersistenceException(final Exception ex, final WebRequest request) {
-        log.info(ex.getClass().getName());
-        Throwable cause = ((TransactionSystemException) ex).getRootCause();
-        if (cause instanceof ConstraintViolationException) {
-            ConstraintViolationException consEx = (ConstraintViolationException) cause;
-            final List<String> errors = new ArrayList<>();
-            for (final ConstraintViolation<?> violation : consEx.getConstraintViolations()) {
-                errors.add(violation.getPropertyPath() + ": " + violation.getMessage());
-            }
-            return new ResponseEntity<>(errors, new HttpHeaders(), HttpStatus.BAD_REQUEST);
+    private static ResponseEntity<MappingJacksonValue> projectionPage(List<NoteProjection> notes, Integer limit) {
+        HttpHeaders headers = new HttpHeaders();
+        if (limit != null && notes.size() == limit) {
+            headers.set(NEXT_CURSOR_HEADER, NoteCursor.after(notes.get(notes.size() - 1)).encode());
         }
-        return new ResponseEntity<>(ex, new HttpHeaders(), HttpStatus.INTERNAL_SERVER_ERROR);
+        return new ResponseEntity<>(new MappingJacksonValue(notes), headers, HttpStatus.OK);
     }
 
-    @ExceptionHandler({InvalidAttributesException.class})
-    protected ResponseEntity<Object> handleAttributeException(final Exception ex, final WebRequest request) {
-        log.info(ex.getClass().getName());
-        return new ResponseEntity<>(ex.getMessage(), new HttpHeaders(), HttpStatus.BAD_REQUEST);
+    /**
+     * Serializes notes with content or only with its preview.
+     * Long content is not loaded from database when it's not sent.
+     */
+    private static MappingJacksonValue view(Object body, boolean content) {
+        MappingJacksonValue value = new MappingJacksonValue(body);
+        value.setSerializationView(content ? NoteViews.Full.class : NoteViews.Summary.class);
+        return value;
     }
 }
@@ -0,0 +1,79 @@
+package ru.rvr.notes.controller;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.transaction.TransactionSystemException;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.context.request.WebRequest;
+import ru.rvr.notes.repository.RestoreInProgressException;
+import ru.rvr.notes.search.SearchIndexNotReadyException;
+
+import javax.naming.directory.InvalidAttributesException;
+import javax.validation.ConstraintViolation;
+import javax.validation.ConstraintViolationException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Statuses of errors of blocking and reactive notes endpoints, so the same request fails the same way on both of them
+ */
+@RestControllerAdvice(assignableTypes = {NoteController.class, ReactiveNoteController.class})
+@Slf4j
+public class NoteExceptionHandler {
+
+    /**
+     * Handler that allows to get original exception from transaction exception and send needed status
+     */
+    @ExceptionHandler({TransactionSystemException.class})
+    protected ResponseEntity<Object> handlePersistenceException(final Exception ex, final WebRequest request) {
+        log.info(ex.getClass().getName());
+        Throwable cause = ((TransactionSystemException) ex).getRootCause();
+        if (cause instanceof ConstraintViolationException) {
+            ConstraintViolationException consEx = (ConstraintViolationException) cause;
+            final List<String> errors = new ArrayList<>();
+            for (final ConstraintViolation<?> violation : consEx.getConstraintViolations()) {
+                errors.add(violation.getPropertyPath() + ": " + violation.getMessage());
+            }
+            return new ResponseEntity<>(errors, new HttpHeaders(), HttpStatus.BAD_REQUEST);
+        }
+        return new ResponseEntity<>(ex, new HttpHeaders(), HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+
+    @ExceptionHandler({OptimisticLockingFailureException.class})
+    protected ResponseEntity<Object> handleConflict(final Exception ex, final WebRequest request) {
+        log.info(ex.getClass().getName());
+        return new ResponseEntity<>(ex.getMessage(), new HttpHeaders(), HttpStatus.PRECONDITION_FAILED);
+    }
+
+    @ExceptionHandler({InvalidAttributesException.class})
+    protected ResponseEntity<Object> handleAttributeException(final Exception ex, final WebRequest request) {
+        log.info(ex.getClass().getName());
+        return new ResponseEntity<>(ex.getMessage(), new HttpHeaders(), HttpStatus.BAD_REQUEST);
+    }
+
+    /**
+     * Search is answered only by complete search index, client retries when it's built
+     */
+    @ExceptionHandler({SearchIndexNotReadyException.class})
+    protected ResponseEntity<Object> handleSearchIndexNotReady(final Exception ex, final WebRequest request) {
+        log.info(ex.getClass().getName());
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(SearchIndexNotReadyException.RETRY_AFTER_SECONDS));
+        return new ResponseEntity<>(ex.getMessage(), headers, HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Notes and tags are not written while backup is being restored, client retries when it's restored
+     */
+    @ExceptionHandler({RestoreInProgressException.class})
+    protected ResponseEntity<Object> handleRestoreInProgress(final Exception ex, final WebRequest request) {
+        log.info(ex.getClass().getName());
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(RestoreInProgressException.RETRY_AFTER_SECONDS));
+        return new ResponseEntity<>(ex.getMessage(), headers, HttpStatus.SERVICE_UNAVAILABLE);
+    }
+}
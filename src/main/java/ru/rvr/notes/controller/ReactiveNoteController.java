@@ -0,0 +1,100 @@
+package ru.rvr.notes.controller;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import ru.rvr.notes.entity.Note;
+import ru.rvr.notes.entity.Tag;
+import ru.rvr.notes.repository.ReactiveNoteRepository;
+
+import javax.naming.directory.InvalidAttributesException;
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotNull;
+import java.time.LocalDateTime;
+
+/**
+ * Non-blocking variant of notes and tags endpoints.
+ * Lists are streamed as newline delimited json with backpressure, request thread is released while notes are read and written.
+ * Json array is not produced, because it would be collected in memory before it's written.
+ * Writes are executed by {@link NoteController} on bounded elastic scheduler, so they have the same semantics.
+ */
+@RestController
+@RequestMapping("reactive")
+@Slf4j
+@Api(value = "Non-blocking controller to work with notes and tags")
+public class ReactiveNoteController {
+    private static final String NDJSON = "application/x-ndjson";
+
+    private final ReactiveNoteRepository reactiveNoteRepository;
+    private final NoteController noteController;
+
+    public ReactiveNoteController(ReactiveNoteRepository reactiveNoteRepository, NoteController noteController) {
+        this.reactiveNoteRepository = reactiveNoteRepository;
+        this.noteController = noteController;
+    }
+
+    @GetMapping(value = "/notes", produces = NDJSON)
+    @ApiOperation("Stream all notes")
+    public Flux<Note> getAll() {
+        log.debug("Streaming all notes");
+        return reactiveNoteRepository.getAll();
+    }
+
+    @GetMapping(value = "/notes/tag/{id}", produces = NDJSON)
+    @ApiOperation("Stream all notes with specified tag id")
+    public Flux<Note> getByTag(@PathVariable @NotNull Long id) {
+        log.debug("Streaming notes filtered by tag");
+        // Unknown tag is rejected as by blocking endpoint instead of sending empty stream
+        return reactiveNoteRepository.getTag(id)
+                .switchIfEmpty(Mono.error(() -> new InvalidAttributesException("No tag with this id")))
+                .flatMapMany(tag -> reactiveNoteRepository.getByTag(tag.getId()));
+    }
+
+    @GetMapping(value = "/notes/since/{since}", produces = NDJSON)
+    @ApiOperation("Stream all notes created since specified time")
+    public Flux<Note> getSinceDateTime(@PathVariable @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) @NotNull LocalDateTime since) {
+        log.debug("Streaming notes filtered by date");
+        return reactiveNoteRepository.getSinceDateTime(since);
+    }
+
+    @GetMapping(value = "/notes/search/{query}", produces = NDJSON)
+    @ApiOperation("Stream most relevant notes for search query")
+    public Flux<Note> getBySearch(@PathVariable @NotBlank @NotNull String query,
+                                  @RequestParam(defaultValue = "100") int limit) throws InvalidAttributesException {
+        int pageSize = NoteController.pageSize(limit);
+        log.debug("Streaming notes filtered by search query");
+        return reactiveNoteRepository.getBySearch(query, pageSize);
+    }
+
+    @PutMapping(value = "/notes", consumes = "application/json", produces = "application/json")
+    @ApiOperation("Add new note")
+    public Mono<Note> addNote(@RequestBody Note note) {
+        return Mono.fromCallable(() -> noteController.addNote(note)).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    @PostMapping(value = "/notes", consumes = "application/json", produces = "application/json")
+    @ApiOperation("Update note with assigned id. Requires id.")
+    public Mono<ResponseEntity<Note>> updateNote(@RequestBody Note note,
+                                                 @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+        return Mono.fromCallable(() -> noteController.updateNote(note, ifMatch)).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    @DeleteMapping(value = "/notes", consumes = "application/json")
+    @ApiOperation("Remove note with assigned id. Requires id.")
+    public Mono<ResponseEntity> removeNote(@RequestBody Note note) {
+        return Mono.fromCallable(() -> noteController.removeNote(note)).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    @GetMapping(value = "/tags", produces = NDJSON)
+    @ApiOperation("Stream all tags")
+    public Flux<Tag> getAllTags() {
+        return reactiveNoteRepository.getAllTags();
+    }
+}
@@ -5,6 +5,7 @@ import io.swagger.annotations.ApiOperation;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import ru.rvr.notes.entity.Note;
 import ru.rvr.notes.entity.Tag;
 import ru.rvr.notes.repository.TagRepository;
@@ -24,11 +25,14 @@ public class TagController {
     /**
      * Find all tags
      *
-     * @return list of notes
+     * @return list of tags, or 304 status when tags weren't changed since previous response
      */
-    @GetMapping(value = "", produces = "application/json")
+    @GetMapping(value = "", produces = {MediaTypes.JSON, MediaTypes.CBOR, MediaTypes.SMILE})
     @ApiOperation("Get all tags")
-    public List<Tag> getAll() {
+    public List<Tag> getAll(WebRequest request) {
+        if (ConditionalRequests.notModified(request, tagRepository.getRevision())) {
+            return null;
+        }
         return tagRepository.getAll();
     }
 }
@@ -0,0 +1,37 @@
+package ru.rvr.notes.controller;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonView;
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Getter;
+import ru.rvr.notes.entity.NoteViews;
+import ru.rvr.notes.repository.TagCount;
+
+import java.util.List;
+
+/**
+ * Page of notes matched by tags query
+ */
+@Getter
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonView(NoteViews.Summary.class)
+public class TaggedNotes {
+    @ApiModelProperty("Notes or projections of notes ordered by id")
+    private final List<?> notes;
+
+    @ApiModelProperty("Number of all matched notes")
+    private final long total;
+
+    @ApiModelProperty("Id to pass as after to get the next page. Not set on the last page.")
+    private final Long next;
+
+    @ApiModelProperty("Numbers of matched notes for the most used tags. Not set when not requested or while tag index is being built.")
+    private final List<TagCount> facets;
+
+    public TaggedNotes(List<?> notes, long total, Long next, List<TagCount> facets) {
+        this.notes = notes;
+        this.total = total;
+        this.next = next;
+        this.facets = facets;
+    }
+}
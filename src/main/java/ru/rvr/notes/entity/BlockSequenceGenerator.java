@@ -0,0 +1,40 @@
+package ru.rvr.notes.entity;
+
+import org.hibernate.MappingException;
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+import java.io.Serializable;
+import java.util.Properties;
+import java.util.function.LongSupplier;
+
+/**
+ * Sequence generator that takes ids from external allocator when it's set in {@link #ALLOCATOR} property
+ * of entity manager factory. Then id already assigned to new entity is kept, so it can be known before persist.
+ * Without allocator works as usual sequence generator.
+ */
+public class BlockSequenceGenerator extends SequenceStyleGenerator {
+    public static final String ALLOCATOR = "notes.id_allocator";
+
+    private LongSupplier allocator;
+
+    @Override
+    public void configure(Type type, Properties params, ServiceRegistry serviceRegistry) throws MappingException {
+        super.configure(type, params, serviceRegistry);
+        allocator = (LongSupplier) serviceRegistry.getService(ConfigurationService.class).getSettings().get(ALLOCATOR);
+    }
+
+    @Override
+    public Serializable generate(SharedSessionContractImplementor session, Object object) {
+        if (allocator == null) {
+            return super.generate(session, object);
+        }
+        if (object instanceof hasId && ((hasId<?>) object).getId() != null) {
+            return (Serializable) ((hasId<?>) object).getId();
+        }
+        return allocator.getAsLong();
+    }
+}
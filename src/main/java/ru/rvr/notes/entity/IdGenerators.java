@@ -0,0 +1,11 @@
+package ru.rvr.notes.entity;
+
+/**
+ * Names of identifier generators declared in package-info
+ */
+public final class IdGenerators {
+    public static final String HILO = "hilo_sequence";
+
+    private IdGenerators() {
+    }
+}
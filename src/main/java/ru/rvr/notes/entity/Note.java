@@ -1,10 +1,14 @@
 package ru.rvr.notes.entity;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonView;
 import io.swagger.annotations.ApiModelProperty;
 import lombok.*;
-import org.hibernate.annotations.Immutable;
+import org.hibernate.Hibernate;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import javax.naming.directory.InvalidAttributesException;
 import javax.persistence.*;
@@ -12,33 +16,69 @@ import javax.validation.constraints.NotNull;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 @Entity
 @Getter
-@Table(name = "note")
+@Cacheable
+@org.hibernate.annotations.Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "note")
+@Table(name = "note", indexes = @Index(name = "idx_note_created_at_id", columnList = "createdAt, id"))
 @NoArgsConstructor
+@JsonView(NoteViews.Summary.class)
 public class Note implements hasId<Long> {
+    /**
+     * Content up to this length is stored in note row, longer content is compressed to {@link NoteBody}
+     */
+    public static final int PREVIEW_LENGTH = 255;
+
     @Id
-    @GeneratedValue
+    @GeneratedValue(generator = IdGenerators.HILO)
     @ApiModelProperty("Identifier of the note. Must not be changed.")
     private Long id;
 
     @ApiModelProperty("Name of the note. Used for search.")
     private String name;
 
-    @JsonProperty(required = true)
-    @ApiModelProperty("Content of the note. Used for search.")
-    @NotNull(message = "Content cannot be null")
-    private String content;
+    // Column keeps its name, it contained whole content before long content was moved to note_body
+    @Column(name = "content", length = PREVIEW_LENGTH, nullable = false)
+    @ApiModelProperty("Beginning of the content, the whole content if it's short. Generated on server side.")
+    private String preview;
+
+    @Getter(AccessLevel.NONE)
+    @Column(name = "contentSize")
+    @ApiModelProperty("Length of the content. Generated on server side.")
+    private Integer size;
+
+    // Set only for content longer than preview
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    @OneToOne(fetch = FetchType.LAZY, cascade = CascadeType.ALL, orphanRemoval = true)
+    @JoinColumn(name = "body_id")
+    private NoteBody body;
 
     @Setter
     @ApiModelProperty("The note creating time. Generated on server side.")
     @NotNull(message = "Created time cannot be null")
     private LocalDateTime createdAt;
 
+    @ApiModelProperty("The note last change time. Generated on server side.")
+    private LocalDateTime updatedAt;
+
+    @Version
+    // Default value is needed to add column to existing table
+    @Column(columnDefinition = "bigint default 0 not null")
+    @ApiModelProperty("Version of the note. Incremented on every change.")
+    private Long version;
+
     // Not using cascade because of own implementation of setting tags on creating in controller
     // But it's not deleting old tags for now
     @ManyToMany
+    // Indexes in both directions: by note to load tags, by tag to filter and count notes
+    @JoinTable(name = "note_tag", indexes = {
+            @Index(name = "idx_note_tag_note_id_tags_id", columnList = "note_id, tags_id"),
+            @Index(name = "idx_note_tag_tags_id_note_id", columnList = "tags_id, note_id")
+    })
+    @org.hibernate.annotations.Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "note.tags")
     private List<Tag> tags = new ArrayList<>();
 
 
@@ -50,22 +90,38 @@ public class Note implements hasId<Long> {
                 @NotNull(message = "Created time cannot be null") LocalDateTime createdAt,
                 List<Tag> tags) throws InvalidAttributesException {
         this.name = name;
-        this.content = content;
         this.createdAt = createdAt;
+        setContent(content);
         setTags(tags);
     }
 
     /**
      * Constructor for updating note
      */
-    public Note(Note oldNote, LocalDateTime oldCreatedAt, List<Tag> newTags){
+    public Note(Note oldNote, LocalDateTime oldCreatedAt, Long version, List<Tag> newTags){
         this.id = oldNote.getId();
         this.name = oldNote.getName();
-        this.content = oldNote.getContent();
+        setContent(oldNote.getContent());
         this.createdAt = oldCreatedAt;
+        this.version = version;
         this.tags = newTags;
     }
 
+    /**
+     * Constructor for note loaded without Hibernate. Compressed body of long content is decompressed when content is read.
+     */
+    public Note(Long id, String name, String preview, Integer size, byte[] body, LocalDateTime createdAt, LocalDateTime updatedAt, Long version, List<Tag> tags) {
+        this.id = id;
+        this.name = name;
+        this.preview = preview;
+        this.size = size;
+        this.body = body == null ? null : new NoteBody(body);
+        this.createdAt = createdAt;
+        this.updatedAt = updatedAt;
+        this.version = version;
+        this.tags = tags;
+    }
+
     /**
      * Constructor only for jackson use
      */
@@ -77,11 +133,119 @@ public class Note implements hasId<Long> {
                    @JsonProperty("tags") List<Tag> tags) {
         this.id = id;
         this.name = name;
-        this.content = content;
         this.createdAt = createdAt;
         this.tags = tags;
+        setContent(content);
+    }
+
+
+    /**
+     * Content of the note. Long content is read from its body, so it's loaded from database on first call.
+     *
+     * @return content or null when note was loaded without long content
+     */
+    @JsonView(NoteViews.Full.class)
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @ApiModelProperty("Content of the note. Used for search.")
+    @NotNull(message = "Content cannot be null")
+    public String getContent() {
+        if (body != null) {
+            return body.getText();
+        }
+        if (size != null && preview != null && preview.length() < size) {
+            return null;
+        }
+        return preview;
+    }
+
+    /**
+     * @return whether content can be read without database, long content of detached note may be not loaded
+     */
+    @JsonIgnore
+    public boolean isContentLoaded() {
+        return body == null || Hibernate.isInitialized(body);
     }
 
+    /**
+     * @return length of the content
+     */
+    public Integer getSize() {
+        // Notes created before size was stored have only short content
+        return size != null || preview == null ? size : preview.length();
+    }
+
+    private void setContent(String content) {
+        size = content == null ? null : content.length();
+        preview = preview(content);
+        body = content == null || content.length() <= PREVIEW_LENGTH ? null : new NoteBody(content);
+    }
+
+    /**
+     * @param content content of note
+     * @return beginning of content stored in note row, the whole content if it's short
+     */
+    public static String preview(String content) {
+        if (content == null || content.length() <= PREVIEW_LENGTH) {
+            return content;
+        }
+        // Surrogate pair is not split, so preview is a valid string
+        int end = Character.isHighSurrogate(content.charAt(PREVIEW_LENGTH - 1)) ? PREVIEW_LENGTH - 1 : PREVIEW_LENGTH;
+        return content.substring(0, end);
+    }
+
+    /**
+     * Changes name, content and tags of persisted note.
+     * Tags are replaced only when they are different, otherwise their rows are not rewritten.
+     *
+     * @param name    new name
+     * @param content new content
+     * @param tags    list of persisted tags
+     * @return true when something was changed
+     */
+    public boolean update(String name, String content, List<Tag> tags) throws InvalidAttributesException {
+        boolean changed = false;
+        if (!Objects.equals(this.name, name)) {
+            this.name = name;
+            changed = true;
+        }
+        // Body of long content is not loaded to compare it, such content is replaced even if the same
+        if (content == null || content.length() > PREVIEW_LENGTH
+                || !content.equals(preview) || !Integer.valueOf(content.length()).equals(getSize())) {
+            setContent(content);
+            changed = true;
+        }
+        if (!tagIds(this.tags).equals(tagIds(tags))) {
+            setTags(tags);
+            changed = true;
+        }
+        return changed;
+    }
+
+    private static List<Long> tagIds(List<Tag> tags) {
+        List<Long> ids = new ArrayList<>(tags.size());
+        for (Tag tag : tags) {
+            ids.add(tag.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Assigns id to new note, so storage of the note can be chosen by id before it's persisted
+     *
+     * @param id new id
+     */
+    public void assignId(Long id) {
+        if (this.id != null) {
+            throw new IllegalStateException("Note already has id");
+        }
+        this.id = id;
+    }
+
+    @PrePersist
+    @PreUpdate
+    private void touch() {
+        updatedAt = LocalDateTime.now();
+    }
 
     /**
      * Replaces tags of note.
@@ -0,0 +1,104 @@
+package ru.rvr.notes.entity;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.BatchSize;
+import org.hibernate.annotations.Immutable;
+
+import javax.persistence.*;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Content of large note compressed with deflate.
+ * Stored in separate table and loaded only when content of the note is read.
+ * Body is never changed, new body replaces old one when content of note is updated.
+ */
+@Entity
+@Immutable
+// Bodies of notes in one response are loaded together instead of one query per note
+@BatchSize(size = 100)
+@Table(name = "note_body")
+@NoArgsConstructor
+public class NoteBody implements hasId<Long> {
+    @Id
+    @Getter
+    @GeneratedValue(generator = IdGenerators.HILO)
+    private Long id;
+
+    @Lob
+    @Column(nullable = false)
+    private byte[] data;
+
+    // Body is immutable, so decompressed content can be kept
+    @Transient
+    private String text;
+
+    public NoteBody(String text) {
+        this.data = compress(text);
+        this.text = text;
+    }
+
+    /**
+     * Body read without Hibernate, it's decompressed on first read of text
+     */
+    public NoteBody(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * @return decompressed content
+     */
+    public String getText() {
+        if (text == null) {
+            text = decompress(data);
+        }
+        return text;
+    }
+
+    /**
+     * Compresses UTF-8 bytes of text with deflate
+     */
+    public static byte[] compress(String text) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(text.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Restores text compressed by {@link #compress(String)}
+     */
+    public static String decompress(byte[] data) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && inflater.needsInput()) {
+                    throw new IllegalStateException("Compressed content is truncated");
+                }
+                output.write(buffer, 0, length);
+            }
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed content is corrupted", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
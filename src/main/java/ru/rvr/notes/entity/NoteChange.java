@@ -0,0 +1,50 @@
+package ru.rvr.notes.entity;
+
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.Immutable;
+
+import javax.persistence.*;
+import javax.validation.constraints.NotNull;
+import java.time.LocalDateTime;
+
+/**
+ * Record of append-only log of note changes.
+ * Id is revision of the change, later changes have greater revisions.
+ */
+@Entity
+@Getter
+@Immutable
+@Table(name = "note_change")
+@NoArgsConstructor
+public class NoteChange implements hasId<Long> {
+    public enum Type {
+        INSERT, UPDATE, DELETE
+    }
+
+    @Id
+    @GeneratedValue(generator = IdGenerators.HILO)
+    @ApiModelProperty("Revision of the change")
+    private Long id;
+
+    @NotNull
+    @ApiModelProperty("Identifier of changed note")
+    private Long noteId;
+
+    @NotNull
+    @Enumerated(EnumType.STRING)
+    @Column(length = 6)
+    @ApiModelProperty("Kind of the change")
+    private Type type;
+
+    @NotNull
+    @ApiModelProperty("The change time")
+    private LocalDateTime changedAt;
+
+    public NoteChange(Long noteId, Type type, LocalDateTime changedAt) {
+        this.noteId = noteId;
+        this.type = type;
+        this.changedAt = changedAt;
+    }
+}
@@ -0,0 +1,21 @@
+package ru.rvr.notes.entity;
+
+/**
+ * Json views of notes
+ */
+public final class NoteViews {
+    /**
+     * Note without content, used by lists of notes
+     */
+    public interface Summary {
+    }
+
+    /**
+     * Note with content
+     */
+    public interface Full extends Summary {
+    }
+
+    private NoteViews() {
+    }
+}
@@ -1,18 +1,28 @@
 package ru.rvr.notes.entity;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonView;
 import io.swagger.annotations.ApiModelProperty;
 import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Immutable;
 
 import javax.persistence.*;
 import javax.validation.constraints.NotNull;
 
 @Entity
 @Getter
+@Immutable
+@Cacheable
+// Tags are never updated or deleted
+@org.hibernate.annotations.Cache(usage = CacheConcurrencyStrategy.READ_ONLY, region = "tag")
 @Table(name = "tag")
+@NoArgsConstructor
+@JsonView(NoteViews.Summary.class)
 public class Tag implements hasId<Long>{
     @Id
-    @GeneratedValue
+    @GeneratedValue(generator = IdGenerators.HILO)
     @ApiModelProperty("Identifier of the tag. Must not be changed.")
     private Long id;
 
@@ -21,4 +31,16 @@ public class Tag implements hasId<Long>{
     @JsonProperty(required = true)
     @NotNull(message = "name cannot be null")
     private String name;
+
+    public Tag(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Constructor for tag loaded without Hibernate
+     */
+    public Tag(Long id, String name) {
+        this.id = id;
+        this.name = name;
+    }
 }
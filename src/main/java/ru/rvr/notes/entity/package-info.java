@@ -0,0 +1,19 @@
+/**
+ * Identifiers of all entities are generated from hibernate_sequence with hi/lo optimizer.
+ * One sequence call reserves block of 50 ids, so inserts don't need round trip per entity and can be batched.
+ * Hi/lo works with existing sequence with increment 1: new ids are always greater than already generated ones.
+ * In sharded mode blocks are reserved the same way by {@link ru.rvr.notes.repository.NoteShards}.
+ */
+@GenericGenerator(
+        name = IdGenerators.HILO,
+        strategy = "ru.rvr.notes.entity.BlockSequenceGenerator",
+        parameters = {
+                @Parameter(name = "sequence_name", value = "hibernate_sequence"),
+                @Parameter(name = "increment_size", value = "50"),
+                @Parameter(name = "optimizer", value = "hilo")
+        }
+)
+package ru.rvr.notes.entity;
+
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
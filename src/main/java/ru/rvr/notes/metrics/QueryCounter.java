@@ -0,0 +1,55 @@
+package ru.rvr.notes.metrics;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.hibernate.type.Type;
+import org.springframework.stereotype.Component;
+
+import java.io.Serializable;
+
+/**
+ * Counts SQL statements and loaded entities of current thread.
+ * Registered in Hibernate as statement inspector and interceptor.
+ * Counters are thread confined, so counting doesn't need any synchronization.
+ */
+@Component
+public class QueryCounter extends EmptyInterceptor implements StatementInspector {
+    private static final ThreadLocal<long[]> COUNTERS = ThreadLocal.withInitial(() -> new long[2]);
+    private static final int STATEMENTS = 0;
+    private static final int ENTITY_LOADS = 1;
+
+    @Override
+    public String inspect(String sql) {
+        COUNTERS.get()[STATEMENTS]++;
+        return sql;
+    }
+
+    @Override
+    public boolean onLoad(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+        COUNTERS.get()[ENTITY_LOADS]++;
+        return false;
+    }
+
+    /**
+     * Resets counters of current thread
+     */
+    public void reset() {
+        long[] counters = COUNTERS.get();
+        counters[STATEMENTS] = 0;
+        counters[ENTITY_LOADS] = 0;
+    }
+
+    /**
+     * @return number of SQL statements prepared by current thread since reset
+     */
+    public long getStatements() {
+        return COUNTERS.get()[STATEMENTS];
+    }
+
+    /**
+     * @return number of entities loaded from database by current thread since reset
+     */
+    public long getEntityLoads() {
+        return COUNTERS.get()[ENTITY_LOADS];
+    }
+}
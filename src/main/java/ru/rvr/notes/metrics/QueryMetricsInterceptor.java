@@ -0,0 +1,52 @@
+package ru.rvr.notes.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Records number of SQL statements and loaded entities per request, tagged the same way as request timers.
+ * Only work done on request thread is counted, streaming of response body in async thread is not.
+ */
+@Component
+public class QueryMetricsInterceptor implements HandlerInterceptor {
+    private static final String UNKNOWN_URI = "UNKNOWN";
+
+    private final QueryCounter queryCounter;
+    private final MeterRegistry registry;
+
+    public QueryMetricsInterceptor(QueryCounter queryCounter, MeterRegistry registry) {
+        this.queryCounter = queryCounter;
+        this.registry = registry;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        queryCounter.reset();
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        String uri = pattern != null ? pattern.toString() : UNKNOWN_URI;
+        summary("http.server.requests.statements", "SQL statements per request", request, uri)
+                .record(queryCounter.getStatements());
+        summary("http.server.requests.entity.loads", "Entities loaded from database per request", request, uri)
+                .record(queryCounter.getEntityLoads());
+    }
+
+    private DistributionSummary summary(String name, String description, HttpServletRequest request, String uri) {
+        return DistributionSummary.builder(name)
+                .description(description)
+                .tag("method", request.getMethod())
+                .tag("uri", uri)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(registry);
+    }
+}
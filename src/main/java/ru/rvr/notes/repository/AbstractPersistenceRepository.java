@@ -2,6 +2,8 @@ package ru.rvr.notes.repository;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import ru.rvr.notes.entity.hasId;
 
 import javax.persistence.EntityManager;
@@ -22,10 +24,16 @@ public abstract class AbstractPersistenceRepository<I,T extends hasId<I>> implem
 
     private Logger log;
 
+    private final WriteRevision revision = new WriteRevision();
+
     @SuppressWarnings("unchecked")
     public AbstractPersistenceRepository() {
         // Need to get type from generic class to use as argument in getById method
-        this.typeOfT = (Class<T>) ((ParameterizedType) getClass().getGenericSuperclass()).getActualTypeArguments()[1];
+        Class<?> type = getClass();
+        while (!(type.getGenericSuperclass() instanceof ParameterizedType)) {
+            type = type.getSuperclass();
+        }
+        this.typeOfT = (Class<T>) ((ParameterizedType) type.getGenericSuperclass()).getActualTypeArguments()[1];
         this.log = LoggerFactory.getLogger(typeOfT);
     }
 
@@ -52,6 +60,35 @@ public abstract class AbstractPersistenceRepository<I,T extends hasId<I>> implem
         return entityManager.createQuery(noteCriteriaQuery).getResultList();
     }
 
+    /**
+     * Find page of entities ordered by id
+     *
+     * @param after id of last entity on previous page, null for first page
+     * @param limit maximum number of entities
+     * @return entities with id greater than after
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public List<T> getAll(I after, int limit) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<T> query = builder.createQuery(typeOfT);
+        Root<T> root = query.from(typeOfT);
+        query.select(root).orderBy(builder.asc(root.get("id")));
+        if (after != null) {
+            // Keyset condition uses primary key index, so every page costs the same
+            query.where(builder.greaterThan(root.<Comparable>get("id"), (Comparable) after));
+        }
+        return entityManager.createQuery(query).setMaxResults(limit).getResultList();
+    }
+
+    /**
+     * Revision of entities, incremented after every committed write
+     *
+     * @return revision of entities of this repository
+     */
+    public WriteRevision getRevision() {
+        return revision;
+    }
+
     /**
      * Creates or updates entity depends on not null id
      *
@@ -59,13 +96,22 @@ public abstract class AbstractPersistenceRepository<I,T extends hasId<I>> implem
      * @return persisted entity
      */
     public T save(T entity) {
-        if (entity.getId() == null) {
+        incrementRevision();
+        if (isNew(entity)) {
             return doCreate(entity);
         } else {
             return doUpdate(entity);
         }
     }
 
+    /**
+     * @param entity entity to save
+     * @return true when entity has to be created
+     */
+    protected boolean isNew(T entity) {
+        return entity.getId() == null;
+    }
+
     /**
      * Removes only persisted entity
      *
@@ -73,17 +119,57 @@ public abstract class AbstractPersistenceRepository<I,T extends hasId<I>> implem
      */
     public void remove(T entity) {
         if (entity.getId() != null) {
+            incrementRevision();
             doDelete(entity);
         }
     }
 
+    /**
+     * Runs action after current transaction commit or immediately if there is no transaction.
+     * Used to keep in-memory structures in sync only with committed data.
+     *
+     * @param action action to run
+     */
+    protected void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    /**
+     * Increments revision after current transaction commit.
+     * It's done after all after-commit actions, so in-memory structures updated by them are not older than revision.
+     */
+    protected void incrementRevision() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            revision.increment();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == STATUS_COMMITTED) {
+                    revision.increment();
+                }
+            }
+        });
+    }
+
     private T doCreate(T entity){
         entityManager.persist(entity);
         return entity;
     }
 
     private void doDelete(T entity){
-        entityManager.remove(entity);
+        // Entity can be loaded in another transaction when there is no persistence context bound to request
+        entityManager.remove(entityManager.contains(entity) ? entity : entityManager.merge(entity));
     }
 
     private T doUpdate(T entity){
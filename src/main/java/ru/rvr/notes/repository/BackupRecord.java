@@ -0,0 +1,80 @@
+package ru.rvr.notes.repository;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * One line of backup. Backup starts with header, then all tags, then all notes.
+ */
+@Getter
+@NoArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BackupRecord {
+    public enum Type {
+        @JsonProperty("backup") HEADER,
+        @JsonProperty("tag") TAG,
+        @JsonProperty("note") NOTE
+    }
+
+    @ApiModelProperty("Kind of the record")
+    private Type type;
+
+    @ApiModelProperty("Version of backup format. Set only in header.")
+    private Integer format;
+
+    @ApiModelProperty("Identifier of the tag or the note")
+    private Long id;
+
+    @ApiModelProperty("Name of the tag or the note")
+    private String name;
+
+    @ApiModelProperty("Whole content of the note")
+    private String content;
+
+    @ApiModelProperty("The note creating time")
+    private LocalDateTime createdAt;
+
+    @ApiModelProperty("The note last change time")
+    private LocalDateTime updatedAt;
+
+    @ApiModelProperty("Version of the note")
+    private Long version;
+
+    @ApiModelProperty("Identifiers of tags of the note")
+    private List<Long> tags;
+
+    public static BackupRecord header(int format) {
+        BackupRecord record = new BackupRecord();
+        record.type = Type.HEADER;
+        record.format = format;
+        return record;
+    }
+
+    public static BackupRecord tag(Long id, String name) {
+        BackupRecord record = new BackupRecord();
+        record.type = Type.TAG;
+        record.id = id;
+        record.name = name;
+        return record;
+    }
+
+    public static BackupRecord note(Long id, String name, String content, LocalDateTime createdAt, LocalDateTime updatedAt,
+                                    Long version, List<Long> tags) {
+        BackupRecord record = new BackupRecord();
+        record.type = Type.NOTE;
+        record.id = id;
+        record.name = name;
+        record.content = content;
+        record.createdAt = createdAt;
+        record.updatedAt = updatedAt;
+        record.version = version;
+        record.tags = tags;
+        return record;
+    }
+}
@@ -0,0 +1,30 @@
+package ru.rvr.notes.repository;
+
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Getter;
+
+/**
+ * Numbers of records written to backup or restored from it
+ */
+@Getter
+public class BackupSummary {
+    @ApiModelProperty("Number of tags")
+    private final long tags;
+
+    @ApiModelProperty("Number of notes")
+    private final long notes;
+
+    @ApiModelProperty("Duration in milliseconds")
+    private final long millis;
+
+    public BackupSummary(long tags, long notes, long millis) {
+        this.tags = tags;
+        this.notes = notes;
+        this.millis = millis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d tags and %d notes in %d ms", tags, notes, millis);
+    }
+}
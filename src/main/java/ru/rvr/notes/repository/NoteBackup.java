@@ -0,0 +1,531 @@
+package ru.rvr.notes.repository;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.SessionFactory;
+import org.springframework.stereotype.Repository;
+import ru.rvr.notes.entity.Note;
+import ru.rvr.notes.entity.NoteBody;
+import ru.rvr.notes.entity.Tag;
+
+import javax.naming.directory.InvalidAttributesException;
+import javax.persistence.EntityManagerFactory;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Backup of all notes and tags as gzip compressed newline delimited json of {@link BackupRecord}.
+ * <p>
+ * Backup is read from snapshot of database while writes continue: every shard is read in one serializable transaction,
+ * H2 serves it from snapshot taken by its first statement without locking rows.
+ * Notes are read in chunks by id, so memory usage doesn't depend on number of notes.
+ * <p>
+ * Restore loads backup into empty database with plain JDBC batches committed every {@link #CHUNK} notes.
+ * Ids, versions and times of notes are kept. Secondary indexes of tables, change log,
+ * in-memory search and tag indexes are built once after all rows are inserted instead of on every insert.
+ */
+@Repository
+@Slf4j
+public class NoteBackup {
+    public static final int FORMAT = 1;
+    private static final int CHUNK = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String INTEGRITY_VIOLATION = "23";
+    // Secondary indexes of entities, restore drops them and creates them again after load
+    private static final Map<String, String> INDEXES = new LinkedHashMap<>();
+
+    static {
+        INDEXES.put("idx_note_created_at_id", "note (createdAt, id)");
+        INDEXES.put("idx_note_tag_note_id_tags_id", "note_tag (note_id, tags_id)");
+        INDEXES.put("idx_note_tag_tags_id_note_id", "note_tag (tags_id, note_id)");
+    }
+
+    private final NoteShards shards;
+    private final NoteRepository noteRepository;
+    private final TagRepository tagRepository;
+    private final NoteChangeRepository changeRepository;
+    private final EntityManagerFactory entityManagerFactory;
+    private final ObjectMapper objectMapper;
+    private final AtomicBoolean restoring = new AtomicBoolean();
+    // Writes of notes and tags hold read lock, restore holds write lock, so they never run together
+    private final StampedLock writes = new StampedLock();
+
+    public NoteBackup(NoteShards shards, NoteRepository noteRepository, TagRepository tagRepository,
+                      NoteChangeRepository changeRepository, EntityManagerFactory entityManagerFactory, ObjectMapper objectMapper) {
+        this.shards = shards;
+        this.noteRepository = noteRepository;
+        this.tagRepository = tagRepository;
+        this.changeRepository = changeRepository;
+        this.entityManagerFactory = entityManagerFactory;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Runs write of notes or tags unless backup is being restored.
+     * Restore waits for writes that are already running, writes started during restore are rejected at once.
+     *
+     * @param task write of notes or tags
+     * @return result of the task
+     * @throws RestoreInProgressException while backup is being restored
+     */
+    public <T, E extends Exception> T write(NoteShards.Task<T, E> task) throws E {
+        long stamp = restoring.get() ? 0 : writes.tryReadLock();
+        if (stamp == 0) {
+            throw new RestoreInProgressException();
+        }
+        try {
+            return task.run();
+        } finally {
+            writes.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Writes backup of all tags and notes to stream. Snapshots of all shards are taken before anything is written.
+     * Stream is not closed, failed backup is left without gzip trailer, so it can't be mistaken for a complete one.
+     *
+     * @param outputStream stream to write compressed backup to
+     * @return numbers of written tags and notes
+     * @throws IOException when backup can't be written
+     */
+    public BackupSummary export(OutputStream outputStream) throws IOException {
+        long start = System.currentTimeMillis();
+        List<Connection> connections = new ArrayList<>(shards.size());
+        try {
+            for (int shard = 0; shard < shards.size(); shard++) {
+                Connection connection = shards.getDataSource(shard).getConnection();
+                connections.add(connection);
+                connection.setAutoCommit(false);
+                connection.setReadOnly(true);
+                connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+                count(connection, "note");
+            }
+            GZIPOutputStream gzip = new GZIPOutputStream(outputStream, BUFFER_SIZE);
+            long tags;
+            long notes = 0;
+            try (SequenceWriter writer = objectMapper.writerFor(BackupRecord.class)
+                    .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                    .withRootValueSeparator("\n")
+                    .writeValues(gzip)) {
+                writer.write(BackupRecord.header(FORMAT));
+                tags = exportTags(connections.get(0), writer);
+                for (Connection connection : connections) {
+                    notes += exportNotes(connection, writer);
+                }
+            }
+            gzip.write('\n');
+            gzip.finish();
+            return new BackupSummary(tags, notes, System.currentTimeMillis() - start);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Can't read notes for backup", e);
+        } finally {
+            close(connections);
+        }
+    }
+
+    private long exportTags(Connection connection, SequenceWriter writer) throws SQLException, IOException {
+        long count = 0;
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select id, name from tag order by id")) {
+            while (resultSet.next()) {
+                writer.write(BackupRecord.tag(resultSet.getLong(1), resultSet.getString(2)));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes notes of one shard in chunks ordered by id, tags of the whole chunk are read with one query
+     */
+    private long exportNotes(Connection connection, SequenceWriter writer) throws SQLException, IOException {
+        long count = 0;
+        long lastId = Long.MIN_VALUE;
+        try (PreparedStatement notes = connection.prepareStatement("select n.id, n.name, n.content, n.createdAt, n.updatedAt, " +
+                "n.version, b.data from note n left join note_body b on b.id = n.body_id where n.id > ? order by n.id limit " + CHUNK);
+             PreparedStatement tags = connection.prepareStatement(
+                     "select note_id, tags_id from note_tag where note_id between ? and ?")) {
+            while (true) {
+                List<BackupRecord> chunk = new ArrayList<>(CHUNK);
+                Map<Long, List<Long>> tagIds = new HashMap<>();
+                notes.setLong(1, lastId);
+                try (ResultSet resultSet = notes.executeQuery()) {
+                    while (resultSet.next()) {
+                        long id = resultSet.getLong(1);
+                        byte[] data = resultSet.getBytes(7);
+                        List<Long> noteTags = new ArrayList<>();
+                        chunk.add(BackupRecord.note(id, resultSet.getString(2),
+                                data == null ? resultSet.getString(3) : NoteBody.decompress(data),
+                                localDateTime(resultSet.getTimestamp(4)), localDateTime(resultSet.getTimestamp(5)),
+                                resultSet.getLong(6), noteTags));
+                        tagIds.put(id, noteTags);
+                        lastId = id;
+                    }
+                }
+                if (chunk.isEmpty()) {
+                    break;
+                }
+                tags.setLong(1, chunk.get(0).getId());
+                tags.setLong(2, lastId);
+                try (ResultSet resultSet = tags.executeQuery()) {
+                    while (resultSet.next()) {
+                        tagIds.get(resultSet.getLong(1)).add(resultSet.getLong(2));
+                    }
+                }
+                for (BackupRecord note : chunk) {
+                    writer.write(note);
+                }
+                count += chunk.size();
+                if (chunk.size() < CHUNK) {
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Loads backup into empty database. Restore starts when writes in progress are finished,
+     * writes of notes and tags through {@link #write} are rejected until restore is finished.
+     * Database is left with already loaded notes when restore fails, it has to be cleared before next attempt.
+     *
+     * @param inputStream stream of compressed backup
+     * @return numbers of restored tags and notes
+     * @throws InvalidAttributesException when database is not empty, another restore is running or backup is invalid
+     * @throws IOException                when backup can't be read
+     */
+    public BackupSummary restore(InputStream inputStream) throws InvalidAttributesException, IOException {
+        if (!restoring.compareAndSet(false, true)) {
+            throw new InvalidAttributesException("Backup is already being restored");
+        }
+        long stamp = writes.writeLock();
+        long start = System.currentTimeMillis();
+        List<Connection> connections = new ArrayList<>(shards.size());
+        Loader loader = null;
+        try {
+            for (int shard = 0; shard < shards.size(); shard++) {
+                Connection connection = shards.getDataSource(shard).getConnection();
+                connections.add(connection);
+                connection.setAutoCommit(false);
+                if (count(connection, "note") + count(connection, "tag") + count(connection, "note_change") > 0) {
+                    throw new InvalidAttributesException("Backup can be restored only to empty database");
+                }
+            }
+            loader = new Loader(connections, sequenceValue(connections.get(0)) * NoteShards.ID_BLOCK);
+            dropIndexes(connections);
+            try {
+                load(inputStream, loader);
+            } finally {
+                loader.close();
+                createIndexes(connections);
+                // Ids of notes loaded before failure must not be generated again
+                if (loader.maxId > loader.reservedId) {
+                    restartSequence(connections.get(0), loader.maxId);
+                }
+            }
+        } catch (SQLException e) {
+            if (e.getSQLState() != null && e.getSQLState().startsWith(INTEGRITY_VIOLATION)) {
+                throw new InvalidAttributesException("Backup is inconsistent: " + e.getMessage());
+            }
+            throw new IllegalStateException("Can't restore backup", e);
+        } finally {
+            close(connections);
+            if (loader != null) {
+                afterRestore();
+            }
+            writes.unlockWrite(stamp);
+            restoring.set(false);
+        }
+        return new BackupSummary(loader.tags, loader.notes, System.currentTimeMillis() - start);
+    }
+
+    private void load(InputStream inputStream, Loader loader) throws InvalidAttributesException, IOException, SQLException {
+        try (MappingIterator<BackupRecord> records = objectMapper.readerFor(BackupRecord.class)
+                .readValues(new GZIPInputStream(inputStream, BUFFER_SIZE))) {
+            if (!records.hasNextValue()) {
+                throw new InvalidAttributesException("Backup is empty");
+            }
+            BackupRecord header = records.nextValue();
+            if (header.getType() != BackupRecord.Type.HEADER || !Integer.valueOf(FORMAT).equals(header.getFormat())) {
+                throw new InvalidAttributesException(String.format("Backup must start with header of format %d", FORMAT));
+            }
+            while (records.hasNextValue()) {
+                BackupRecord record = records.nextValue();
+                if (record.getType() == BackupRecord.Type.TAG) {
+                    loader.addTag(record);
+                } else if (record.getType() == BackupRecord.Type.NOTE) {
+                    loader.addNote(record);
+                } else {
+                    throw new InvalidAttributesException("Unknown record of backup");
+                }
+            }
+            loader.flush();
+        } catch (JsonProcessingException | ZipException | EOFException e) {
+            throw new InvalidAttributesException("Backup is invalid: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Makes restored rows visible to the application: caches are cleared, change log is filled with inserts of notes,
+     * in-memory indexes are built and cached responses are invalidated
+     */
+    private void afterRestore() {
+        entityManagerFactory.unwrap(SessionFactory.class).getCache().evictAllRegions();
+        changeRepository.backfill();
+        noteRepository.rebuildTagIndex();
+        noteRepository.rebuildSearchIndex();
+        noteRepository.getRevision().increment();
+        tagRepository.getRevision().increment();
+    }
+
+    private static void dropIndexes(List<Connection> connections) throws SQLException {
+        for (Connection connection : connections) {
+            try (Statement statement = connection.createStatement()) {
+                for (String index : INDEXES.keySet()) {
+                    statement.execute("drop index if exists " + index);
+                }
+            }
+        }
+    }
+
+    private static void createIndexes(List<Connection> connections) throws SQLException {
+        for (Connection connection : connections) {
+            // Not committed chunk of failed restore is discarded
+            connection.rollback();
+            try (Statement statement = connection.createStatement()) {
+                for (Map.Entry<String, String> index : INDEXES.entrySet()) {
+                    statement.execute("create index if not exists " + index.getKey() + " on " + index.getValue());
+                }
+            }
+            connection.commit();
+        }
+    }
+
+    /**
+     * @return last value taken from sequence of ids
+     */
+    private static long sequenceValue(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(
+                     "select current_value from information_schema.sequences where sequence_name = 'HIBERNATE_SEQUENCE'")) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    /**
+     * Moves sequence of ids past restored ids, so blocks of new ids don't contain them
+     */
+    private static void restartSequence(Connection connection, long maxId) throws SQLException {
+        long next = Math.max(sequenceValue(connection) + 1, (maxId - 1) / NoteShards.ID_BLOCK + 2);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("alter sequence hibernate_sequence restart with " + next);
+        }
+        connection.commit();
+    }
+
+    private static long count(Connection connection, String table) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select count(*) from " + table)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    private static void close(List<Connection> connections) {
+        for (Connection connection : connections) {
+            try {
+                connection.rollback();
+                connection.close();
+            } catch (SQLException e) {
+                log.warn("Can't close connection after backup", e);
+            }
+        }
+    }
+
+    private static LocalDateTime localDateTime(Timestamp timestamp) {
+        return timestamp == null ? null : timestamp.toLocalDateTime();
+    }
+
+    /**
+     * Inserts records of backup with JDBC batches. Tags are inserted into the first shard and copied to others,
+     * notes are inserted into their shards. Every shard commits its batch separately.
+     */
+    private class Loader implements AutoCloseable {
+        private final Connection tagConnection;
+        private final PreparedStatement tagInserts;
+        private final List<Tag> pendingTags = new ArrayList<>();
+        private final List<ShardLoader> shardLoaders = new ArrayList<>();
+        // Ids up to this one can be already taken by id generators of the application
+        private final long reservedId;
+        private long maxId;
+        private long tags;
+        private long notes;
+
+        Loader(List<Connection> connections, long reservedId) throws SQLException {
+            this.reservedId = reservedId;
+            this.maxId = reservedId;
+            this.tagConnection = connections.get(0);
+            this.tagInserts = tagConnection.prepareStatement("insert into tag (id, name) values (?, ?)");
+            for (Connection connection : connections) {
+                shardLoaders.add(new ShardLoader(connection));
+            }
+        }
+
+        void addTag(BackupRecord record) throws InvalidAttributesException, SQLException {
+            if (record.getName() == null) {
+                throw new InvalidAttributesException("Tag must have name");
+            }
+            checkId(record.getId());
+            tagInserts.setLong(1, record.getId());
+            tagInserts.setString(2, record.getName());
+            tagInserts.addBatch();
+            pendingTags.add(new Tag(record.getId(), record.getName()));
+            tags++;
+            if (pendingTags.size() == CHUNK) {
+                flushTags();
+            }
+        }
+
+        void addNote(BackupRecord record) throws InvalidAttributesException, SQLException {
+            if (record.getContent() == null || record.getCreatedAt() == null) {
+                throw new InvalidAttributesException("Note must have content and created time");
+            }
+            checkId(record.getId());
+            ShardLoader shardLoader = shardLoaders.get(shards.shardOf(record.getId()));
+            shardLoader.add(record);
+            notes++;
+            if (shardLoader.pending == CHUNK) {
+                // Notes can reference only committed tags
+                flushTags();
+                shardLoader.flush();
+            }
+        }
+
+        void flush() throws SQLException {
+            flushTags();
+            for (ShardLoader shardLoader : shardLoaders) {
+                shardLoader.flush();
+            }
+        }
+
+        private void flushTags() throws SQLException {
+            if (pendingTags.isEmpty()) {
+                return;
+            }
+            tagInserts.executeBatch();
+            tagConnection.commit();
+            shards.replicateTags(pendingTags);
+            pendingTags.clear();
+        }
+
+        private void checkId(Long id) throws InvalidAttributesException {
+            if (id == null) {
+                throw new InvalidAttributesException("Record of backup must have id");
+            }
+            if (id <= reservedId) {
+                throw new InvalidAttributesException(String.format(
+                        "Id %d can be already generated by this database, backup can be restored only to new database", id));
+            }
+            maxId = Math.max(maxId, id);
+        }
+
+        @Override
+        public void close() throws SQLException {
+            tagInserts.close();
+            for (ShardLoader shardLoader : shardLoaders) {
+                shardLoader.close();
+            }
+        }
+    }
+
+    /**
+     * Batches of notes of one shard
+     */
+    private static class ShardLoader implements AutoCloseable {
+        private final Connection connection;
+        private final PreparedStatement bodyInserts;
+        private final PreparedStatement noteInserts;
+        private final PreparedStatement tagInserts;
+        private int pending;
+
+        ShardLoader(Connection connection) throws SQLException {
+            this.connection = connection;
+            this.bodyInserts = connection.prepareStatement("insert into note_body (id, data) values (?, ?)");
+            this.noteInserts = connection.prepareStatement("insert into note (id, createdAt, name, content, contentSize, " +
+                    "updatedAt, version, body_id) values (?, ?, ?, ?, ?, ?, ?, ?)");
+            this.tagInserts = connection.prepareStatement("insert into note_tag (note_id, tags_id) values (?, ?)");
+        }
+
+        void add(BackupRecord record) throws SQLException {
+            long id = record.getId();
+            String content = record.getContent();
+            boolean hasBody = content.length() > Note.PREVIEW_LENGTH;
+            if (hasBody) {
+                // Body belongs to one note, so id of the note is used for it and no ids are taken from sequence
+                bodyInserts.setLong(1, id);
+                bodyInserts.setBytes(2, NoteBody.compress(content));
+                bodyInserts.addBatch();
+            }
+            noteInserts.setLong(1, id);
+            noteInserts.setTimestamp(2, Timestamp.valueOf(record.getCreatedAt()));
+            noteInserts.setString(3, record.getName());
+            noteInserts.setString(4, Note.preview(content));
+            noteInserts.setInt(5, content.length());
+            noteInserts.setTimestamp(6, record.getUpdatedAt() == null ? null : Timestamp.valueOf(record.getUpdatedAt()));
+            noteInserts.setLong(7, record.getVersion() == null ? 0 : record.getVersion());
+            if (hasBody) {
+                noteInserts.setLong(8, id);
+            } else {
+                noteInserts.setNull(8, Types.BIGINT);
+            }
+            noteInserts.addBatch();
+            if (record.getTags() != null) {
+                for (Long tagId : new LinkedHashSet<>(record.getTags())) {
+                    tagInserts.setLong(1, id);
+                    tagInserts.setLong(2, tagId);
+                    tagInserts.addBatch();
+                }
+            }
+            pending++;
+        }
+
+        void flush() throws SQLException {
+            if (pending == 0) {
+                return;
+            }
+            bodyInserts.executeBatch();
+            noteInserts.executeBatch();
+            tagInserts.executeBatch();
+            connection.commit();
+            pending = 0;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            bodyInserts.close();
+            noteInserts.close();
+            tagInserts.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package ru.rvr.notes.repository;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ru.rvr.notes.entity.Note;
+import ru.rvr.notes.entity.NoteChange;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+import javax.transaction.Transactional;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+@Repository
+@Transactional
+@Slf4j
+public class NoteChangeRepository extends AbstractPersistenceRepository<Long, NoteChange> {
+    private static final int BACKFILL_CHUNK = 1000;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    // Held while revision is assigned by insert of the change
+    private final ReentrantLock lock = new ReentrantLock();
+    // Revisions of changes in not completed transactions, guarded by lock
+    private final NavigableSet<Long> pending = new TreeSet<>();
+    // Greatest revision assigned since start, null if there were no changes, guarded by lock
+    private Long lastAssigned;
+
+    private final NoteShards shards;
+    private final TransactionTemplate transactionTemplate;
+
+    public NoteChangeRepository(NoteShards shards, PlatformTransactionManager transactionManager) {
+        this.shards = shards;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Appends change of note to log in current transaction
+     *
+     * @param noteId id of changed note
+     * @param type   kind of change
+     */
+    public void append(Long noteId, NoteChange.Type type) {
+        append(noteId, type, LocalDateTime.now());
+    }
+
+    private void append(Long noteId, NoteChange.Type type, LocalDateTime changedAt) {
+        NoteChange change = new NoteChange(noteId, type, changedAt);
+        lock.lock();
+        try {
+            // Revision is assigned on persist, so revisions are registered in the order of assignment
+            entityManager.persist(change);
+            lastAssigned = change.getId();
+            // Later changes of the same transaction have greater revisions, so only the first one is pending
+            if (!TransactionSynchronizationManager.hasResource(this)) {
+                Long revision = change.getId();
+                pending.add(revision);
+                TransactionSynchronizationManager.bindResource(this, revision);
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                    @Override
+                    public void afterCompletion(int status) {
+                        TransactionSynchronizationManager.unbindResourceIfPossible(NoteChangeRepository.this);
+                        complete(revision);
+                    }
+                });
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fills empty change log with inserts of all existing notes,
+     * so all notes can be received from change log starting from zero revision.
+     * Does nothing if change log is not empty. Change log of every shard is filled with notes of the shard.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfill() {
+        if (shards.isSharded()) {
+            shards.callAll(shard -> transactionTemplate.execute(status -> {
+                backfillShard();
+                return null;
+            }));
+        } else {
+            backfillShard();
+        }
+    }
+
+    private void backfillShard() {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Long> countQuery = builder.createQuery(Long.class);
+        countQuery.select(builder.count(countQuery.from(NoteChange.class)));
+        if (entityManager.createQuery(countQuery).getSingleResult() > 0) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        LocalDateTime now = LocalDateTime.now();
+        long count = 0;
+        Long lastId = null;
+        while (true) {
+            CriteriaQuery<Long> query = builder.createQuery(Long.class);
+            Root<Note> noteRoot = query.from(Note.class);
+            query.select(noteRoot.get("id")).orderBy(builder.asc(noteRoot.get("id")));
+            if (lastId != null) {
+                query.where(builder.greaterThan(noteRoot.get("id"), lastId));
+            }
+            List<Long> chunk = entityManager.createQuery(query).setMaxResults(BACKFILL_CHUNK).getResultList();
+            for (Long id : chunk) {
+                append(id, NoteChange.Type.INSERT, now);
+                lastId = id;
+            }
+            entityManager.flush();
+            entityManager.clear();
+            count += chunk.size();
+            if (chunk.size() < BACKFILL_CHUNK) {
+                break;
+            }
+        }
+        log.info(String.format("Change log filled with %d notes in %d ms", count, System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Find changes after specified revision.
+     * Only changes below the oldest revision of not completed transaction are returned,
+     * so change committed later can't have smaller revision than already returned ones.
+     * Revisions are unique across shards, changes of all shards are merged in the order of revisions.
+     *
+     * @param since revision of last known change, 0 to get all changes
+     * @param limit maximum number of changes
+     * @return changes ordered by revision
+     */
+    public List<NoteChange> getSince(long since, int limit) {
+        long stable = getStableRevision();
+        if (!shards.isSharded()) {
+            return getBetween(since, stable, limit);
+        }
+        List<NoteChange> changes = new ArrayList<>();
+        for (List<NoteChange> shardChanges : shards.callAll(shard -> getBetween(since, stable, limit))) {
+            changes.addAll(shardChanges);
+        }
+        changes.sort(Comparator.comparing(NoteChange::getId));
+        return changes.size() > limit ? new ArrayList<>(changes.subList(0, limit)) : changes;
+    }
+
+    private List<NoteChange> getBetween(long since, long stable, int limit) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<NoteChange> query = builder.createQuery(NoteChange.class);
+        Root<NoteChange> changeRoot = query.from(NoteChange.class);
+        query.select(changeRoot)
+                .where(builder.greaterThan(changeRoot.get("id"), since), builder.lessThan(changeRoot.get("id"), stable))
+                .orderBy(builder.asc(changeRoot.get("id")));
+        return entityManager.createQuery(query).setMaxResults(limit).getResultList();
+    }
+
+    /**
+     * @return revision such that all changes with smaller revisions are either committed or rolled back
+     */
+    private long getStableRevision() {
+        lock.lock();
+        try {
+            if (!pending.isEmpty()) {
+                return pending.first();
+            }
+            return lastAssigned == null ? Long.MAX_VALUE : lastAssigned + 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void complete(Long revision) {
+        lock.lock();
+        try {
+            pending.remove(revision);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
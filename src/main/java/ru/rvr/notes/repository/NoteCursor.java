@@ -0,0 +1,67 @@
+package ru.rvr.notes.repository;
+
+import lombok.Getter;
+import ru.rvr.notes.entity.Note;
+
+import javax.naming.directory.InvalidAttributesException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+/**
+ * Position in list of notes ordered by created time and id.
+ * Used for keyset pagination: next page starts right after note with these values.
+ */
+@Getter
+public class NoteCursor {
+    private static final String SEPARATOR = "_";
+
+    private final LocalDateTime createdAt;
+    private final Long id;
+
+    public NoteCursor(LocalDateTime createdAt, Long id) {
+        this.createdAt = createdAt;
+        this.id = id;
+    }
+
+    /**
+     * Cursor pointing right after specified note
+     */
+    public static NoteCursor after(Note note) {
+        return new NoteCursor(note.getCreatedAt(), note.getId());
+    }
+
+    /**
+     * Cursor pointing right after specified projection of note
+     */
+    public static NoteCursor after(NoteProjection note) {
+        return new NoteCursor(note.getCreatedAt(), note.getId());
+    }
+
+    /**
+     * Parses opaque cursor string
+     *
+     * @param value value created by {@link #encode()}
+     * @return parsed cursor
+     * @throws InvalidAttributesException when value is not valid cursor
+     */
+    public static NoteCursor decode(String value) throws InvalidAttributesException {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(value), StandardCharsets.UTF_8);
+            int separator = decoded.lastIndexOf(SEPARATOR);
+            return new NoteCursor(LocalDateTime.parse(decoded.substring(0, separator)),
+                    Long.valueOf(decoded.substring(separator + 1)));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException | DateTimeParseException e) {
+            throw new InvalidAttributesException("Invalid cursor");
+        }
+    }
+
+    /**
+     * @return opaque url-safe cursor string
+     */
+    public String encode() {
+        String value = createdAt + SEPARATOR + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
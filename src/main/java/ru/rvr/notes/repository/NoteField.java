@@ -0,0 +1,61 @@
+package ru.rvr.notes.repository;
+
+import lombok.Getter;
+
+import javax.naming.directory.InvalidAttributesException;
+import java.util.*;
+
+/**
+ * Field of note that can be selected by projection queries
+ */
+@Getter
+public enum NoteField {
+    ID("id"),
+    NAME("name"),
+    PREVIEW("preview"),
+    SIZE("size"),
+    CREATED_AT("createdAt"),
+    UPDATED_AT("updatedAt"),
+    VERSION("version"),
+    TAGS("tags"),
+    CONTENT("content");
+
+    private static final Map<String, NoteField> BY_NAME = new LinkedHashMap<>();
+
+    static {
+        for (NoteField field : values()) {
+            BY_NAME.put(field.name, field);
+        }
+    }
+
+    /**
+     * Name of the field in json and of the attribute of entity
+     */
+    private final String name;
+
+    NoteField(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Parses comma separated list of field names
+     *
+     * @param fields list of field names like id,name,createdAt, may be null
+     * @return fields in the same order or null when fields are not specified
+     * @throws InvalidAttributesException when list is empty or has unknown field
+     */
+    public static Set<NoteField> parse(String fields) throws InvalidAttributesException {
+        if (fields == null) {
+            return null;
+        }
+        Set<NoteField> result = new LinkedHashSet<>();
+        for (String name : fields.split(",")) {
+            NoteField field = BY_NAME.get(name.trim());
+            if (field == null) {
+                throw new InvalidAttributesException(String.format("Unknown field '%s', fields must be some of %s", name.trim(), BY_NAME.keySet()));
+            }
+            result.add(field);
+        }
+        return result;
+    }
+}
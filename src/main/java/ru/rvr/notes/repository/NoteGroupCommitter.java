@@ -0,0 +1,258 @@
+package ru.rvr.notes.repository;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import ru.rvr.notes.entity.Note;
+import ru.rvr.notes.entity.Tag;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.naming.directory.InvalidAttributesException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Saves new notes of concurrent requests together.
+ * Notes are queued and saved by one writer thread in one transaction per group,
+ * group is committed when it has notes.group-commit.max-notes notes
+ * or notes.group-commit.max-delay-ms milliseconds passed since its first note.
+ * Caller waits until its note is committed, so there is no acknowledgment of not committed note.
+ * Tags are resolved by writer thread too, so waiting request doesn't hold database connection.
+ * Failure of a group fails only its callers, notes are saved one by one again only when the group was rolled back.
+ * Enabled by notes.group-commit.enabled=true.
+ */
+@Component
+@ConditionalOnProperty(name = "notes.group-commit.enabled", havingValue = "true")
+@Slf4j
+public class NoteGroupCommitter {
+    private static final long IDLE_POLL_MILLIS = 100;
+    // Caller doesn't wait longer than that even if writer is stuck, the note may be still committed afterwards
+    private static final long COMMIT_WAIT_SECONDS = 60;
+
+    private final NoteRepository noteRepository;
+    private final TagRepository tagRepository;
+    private final int maxNotes;
+    private final long maxDelayNanos;
+    private final DistributionSummary groupSize;
+    private final BlockingQueue<PendingNote> queue = new LinkedBlockingQueue<>();
+    private final Thread writer = new Thread(this::run, "note-group-commit");
+    private volatile boolean running = true;
+
+    public NoteGroupCommitter(NoteRepository noteRepository, TagRepository tagRepository, MeterRegistry meterRegistry,
+                              @Value("${notes.group-commit.max-notes:100}") int maxNotes,
+                              @Value("${notes.group-commit.max-delay-ms:5}") long maxDelayMillis) {
+        this.noteRepository = noteRepository;
+        this.tagRepository = tagRepository;
+        this.maxNotes = maxNotes;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.groupSize = DistributionSummary.builder("notes.group.commit.size")
+                .description("Number of notes committed in one transaction")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        writer.setDaemon(true);
+        writer.start();
+        log.info(String.format("Group commit of new notes: at most %d notes or %d ms", maxNotes,
+                TimeUnit.NANOSECONDS.toMillis(maxDelayNanos)));
+    }
+
+    /**
+     * Notes queued before shutdown are still committed, notes are not queued after that
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        close();
+        writer.join();
+        failQueued();
+    }
+
+    /**
+     * Saves new note in the next group and waits for commit of the group
+     *
+     * @param name      name of new note
+     * @param content   content of new note
+     * @param createdAt created time of new note
+     * @param tags      tags to replace with persisted ones
+     * @return persisted note
+     * @throws InvalidAttributesException when content is not set or tags are invalid
+     * @throws IllegalStateException      when the group failed or wasn't committed in time
+     */
+    public Note save(String name, String content, LocalDateTime createdAt, List<Tag> tags) throws InvalidAttributesException {
+        PendingNote pending = new PendingNote(name, content, createdAt, tags);
+        // Note is queued only while writer is running, so it's either committed or failed by stop
+        synchronized (this) {
+            if (!running) {
+                throw new IllegalStateException("Application is shutting down");
+            }
+            queue.add(pending);
+        }
+        try {
+            return pending.result.get(COMMIT_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for commit", e);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(String.format("Note wasn't committed in %d seconds", COMMIT_WAIT_SECONDS), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof InvalidAttributesException) {
+                throw (InvalidAttributesException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void run() {
+        List<PendingNote> group = new ArrayList<>(maxNotes);
+        try {
+            while (running || !queue.isEmpty()) {
+                try {
+                    PendingNote first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    group.add(first);
+                    // Notes queued during previous commit are taken at once, then group waits for more until deadline
+                    queue.drainTo(group, maxNotes - group.size());
+                    long deadline = System.nanoTime() + maxDelayNanos;
+                    while (group.size() < maxNotes) {
+                        PendingNote next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        group.add(next);
+                    }
+                } catch (InterruptedException e) {
+                    // Collected notes and notes already queued are committed before the thread stops
+                    close();
+                }
+                try {
+                    commit(group);
+                } catch (Throwable e) {
+                    // Errors fail only callers of this group, writer keeps committing next groups
+                    log.error(String.format("Group of %d notes failed", group.size()), e);
+                    for (PendingNote pending : group) {
+                        pending.result.completeExceptionally(e);
+                    }
+                }
+                group.clear();
+            }
+        } finally {
+            // Writer stopped for any reason doesn't leave callers waiting
+            close();
+            failQueued();
+        }
+    }
+
+    private synchronized void close() {
+        running = false;
+    }
+
+    private void failQueued() {
+        PendingNote pending;
+        while ((pending = queue.poll()) != null) {
+            pending.result.completeExceptionally(new IllegalStateException("Application is shutting down"));
+        }
+    }
+
+    private void commit(List<PendingNote> group) {
+        if (group.isEmpty()) {
+            return;
+        }
+        List<PendingNote> prepared = new ArrayList<>(group.size());
+        List<Note> notes = new ArrayList<>(group.size());
+        for (PendingNote pending : group) {
+            try {
+                notes.add(pending.prepare(tagRepository));
+                prepared.add(pending);
+            } catch (RuntimeException | InvalidAttributesException e) {
+                pending.result.completeExceptionally(e);
+            }
+        }
+        if (notes.isEmpty()) {
+            return;
+        }
+        groupSize.record(notes.size());
+        try {
+            List<Note> saved = noteRepository.saveAll(notes);
+            for (int i = 0; i < saved.size(); i++) {
+                prepared.get(i).result.complete(saved.get(i));
+            }
+        } catch (RuntimeException e) {
+            if (committed(notes)) {
+                // Transaction was committed and failed after that, saving notes again would duplicate them
+                log.warn(String.format("Group of %d notes failed after commit", prepared.size()), e);
+                for (int i = 0; i < prepared.size(); i++) {
+                    prepared.get(i).result.complete(notes.get(i));
+                }
+                return;
+            }
+            if (prepared.size() == 1) {
+                prepared.get(0).result.completeExceptionally(e);
+                return;
+            }
+            log.info(String.format("Group of %d notes failed, saving notes one by one", prepared.size()));
+            for (int i = 0; i < prepared.size(); i++) {
+                Note note = notes.get(i);
+                try {
+                    // Failed persist could assign id, so the note is copied to save it as new one
+                    prepared.get(i).result.complete(noteRepository.save(new Note(note.getName(), note.getContent(), note.getCreatedAt(), note.getTags())));
+                } catch (RuntimeException | InvalidAttributesException ex) {
+                    prepared.get(i).result.completeExceptionally(ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether failed group is in database, ids assigned to notes of rolled back transaction are not found
+     */
+    private boolean committed(List<Note> notes) {
+        List<Long> ids = new ArrayList<>(notes.size());
+        for (Note note : notes) {
+            if (note.getId() == null) {
+                return false;
+            }
+            ids.add(note.getId());
+        }
+        return noteRepository.getByIds(ids).size() == ids.size();
+    }
+
+    private static class PendingNote {
+        private final String name;
+        private final String content;
+        private final LocalDateTime createdAt;
+        private final List<Tag> tags;
+        private final CompletableFuture<Note> result = new CompletableFuture<>();
+
+        private PendingNote(String name, String content, LocalDateTime createdAt, List<Tag> tags) {
+            this.name = name;
+            this.content = content;
+            this.createdAt = createdAt;
+            this.tags = tags;
+        }
+
+        private Note prepare(TagRepository tagRepository) throws InvalidAttributesException {
+            // Invalid note would fail the whole group on flush
+            if (content == null) {
+                throw new InvalidAttributesException("Content cannot be null");
+            }
+            return new Note(name, content, createdAt, tagRepository.getPersistedTagsFromList(tags));
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package ru.rvr.notes.repository;
+
+import com.fasterxml.jackson.annotation.JsonValue;
+import lombok.Getter;
+
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Note with only selected fields. Serialized as json object of these fields.
+ * Id and created time are always known to make cursor of the next page.
+ */
+@Getter
+public class NoteProjection {
+    private final Long id;
+    private final LocalDateTime createdAt;
+    private final Map<String, Object> values = new LinkedHashMap<>();
+
+    public NoteProjection(Long id, LocalDateTime createdAt) {
+        this.id = id;
+        this.createdAt = createdAt;
+    }
+
+    @JsonValue
+    public Map<String, Object> getValues() {
+        return values;
+    }
+
+    void put(NoteField field, Object value) {
+        values.put(field.getName(), value);
+    }
+}
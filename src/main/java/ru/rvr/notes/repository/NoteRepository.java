@@ -1,79 +1,763 @@
 package ru.rvr.notes.repository;
 
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.CacheMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Repository;
 import ru.rvr.notes.entity.Note;
+import ru.rvr.notes.entity.NoteBody;
+import ru.rvr.notes.entity.NoteChange;
 import ru.rvr.notes.entity.Tag;
+import ru.rvr.notes.search.NoteSearchIndex;
+import ru.rvr.notes.search.NoteTagIndex;
+import ru.rvr.notes.search.SearchIndexNotReadyException;
 
+import javax.naming.directory.InvalidAttributesException;
 import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
 import javax.persistence.PersistenceContext;
+import javax.persistence.Tuple;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
+import javax.persistence.criteria.Subquery;
 import javax.transaction.Transactional;
+import java.sql.Timestamp;
 import java.time.LocalDateTime;
-import java.util.List;
+import java.util.*;
+import java.util.function.Consumer;
 
+/**
+ * Notes in one database. With notes.shards greater than 1 notes are stored by {@link ShardedNoteRepository}.
+ */
 @Repository
+@ConditionalOnExpression("${notes.shards:1} == 1")
 @Transactional
+@Slf4j
 public class NoteRepository extends AbstractPersistenceRepository<Long,Note> {
+    private static final int INDEX_REBUILD_CHUNK = 10_000;
+    private static final int STREAM_CHUNK = 500;
+    private static final int FETCH_CHUNK = 1000;
 
     @PersistenceContext
     private EntityManager entityManager;
 
+    private final NoteSearchIndex searchIndex;
+    private final NoteTagIndex tagIndex;
+    private final NoteChangeRepository changeRepository;
+
+    public NoteRepository(NoteSearchIndex searchIndex, NoteTagIndex tagIndex, NoteChangeRepository changeRepository) {
+        this.searchIndex = searchIndex;
+        this.tagIndex = tagIndex;
+        this.changeRepository = changeRepository;
+    }
+
 
     /**
-     * Creates or updates note.
+     * Creates or updates note and appends the change to change log.
+     * Search and tag indexes are updated after transaction commit.
      *
      * @param entity note to create or update
      * @return persisted note
      */
     @Override
     public Note save(Note entity) {
-        return super.save(entity);
+        NoteChange.Type type = isNew(entity) ? NoteChange.Type.INSERT : NoteChange.Type.UPDATE;
+        Note saved = super.save(entity);
+        changeRepository.append(saved.getId(), type);
+        indexAfterCommit(saved);
+        return saved;
     }
 
+    /**
+     * Note is new until it's persisted with version, id of new note can be assigned in advance
+     */
+    @Override
+    protected boolean isNew(Note entity) {
+        return entity.getId() == null || entity.getVersion() == null;
+    }
 
     /**
-     * Find notes by tag
+     * Updates note only when it has expected version.
+     * Note is usually taken from second-level cache and the change is written with one
+     * {@code update note ... where id = ? and version = ?} statement, so concurrent change fails this update
+     * instead of being overwritten. Rows of tags and long content are written only when they are changed.
      *
-     * @param tag required tag
+     * @param id      id of the note
+     * @param version expected version of the note
+     * @param name    new name
+     * @param content new content
+     * @param tags    list of persisted tags
+     * @return updated note with new version, or null when there is no note with this id
+     * @throws OptimisticLockingFailureException when the note has another version
+     * @throws InvalidAttributesException        when tags are not persisted
+     */
+    public Note update(Long id, long version, String name, String content, List<Tag> tags) throws InvalidAttributesException {
+        Note note = getById(id);
+        if (note == null) {
+            return null;
+        }
+        if (note.getVersion() != version) {
+            throw new OptimisticLockingFailureException(String.format("Note has version %d", note.getVersion()));
+        }
+        incrementRevision();
+        if (!note.update(name, content, tags)) {
+            // Unchanged note is not written on flush, so only its version is incremented with the same version check
+            entityManager.lock(note, LockModeType.PESSIMISTIC_FORCE_INCREMENT);
+        }
+        // Flushed now to get new version and to fail here on concurrent change
+        entityManager.flush();
+        changeRepository.append(id, NoteChange.Type.UPDATE);
+        indexAfterCommit(note);
+        return note;
+    }
+
+    private void indexAfterCommit(Note saved) {
+        Long id = saved.getId();
+        String name = saved.getName();
+        String content = saved.getContent();
+        List<Long> tagIds = new ArrayList<>();
+        for (Tag tag : saved.getTags()) {
+            tagIds.add(tag.getId());
+        }
+        afterCommit(() -> {
+            searchIndex.index(id, name, content);
+            tagIndex.index(id, tagIds);
+        });
+    }
+
+    /**
+     * Creates or updates all notes in one transaction.
+     * Inserts are sent in JDBC batches, persistence context is cleared afterwards,
+     * so returned notes are detached.
+     *
+     * @param entities notes to create or update
+     * @return persisted notes in the same order
+     */
+    public List<Note> saveAll(List<Note> entities) {
+        List<Note> saved = new ArrayList<>(entities.size());
+        for (Note entity : entities) {
+            saved.add(save(entity));
+        }
+        entityManager.flush();
+        entityManager.clear();
+        return saved;
+    }
+
+    /**
+     * Removes persisted note, appends the change to change log and drops note from indexes after commit.
+     *
+     * @param entity note to remove
+     */
+    @Override
+    public void remove(Note entity) {
+        super.remove(entity);
+        Long id = entity.getId();
+        if (id != null) {
+            changeRepository.append(id, NoteChange.Type.DELETE);
+            afterCommit(() -> {
+                searchIndex.remove(id);
+                tagIndex.remove(id);
+            });
+        }
+    }
+
+
+    /**
+     * Find page of all notes ordered by created time and id
+     *
+     * @param after position of last note on previous page, null for first page
+     * @param limit maximum number of notes
+     * @return notes after cursor
+     */
+    public List<Note> getPage(NoteCursor after, int limit) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Note> query = builder.createQuery(Note.class);
+        Root<Note> noteRoot = query.from(Note.class);
+        return getKeysetPage(query, noteRoot, builder.conjunction(), after, limit);
+    }
+
+    /**
+     * Find page of notes by tag
+     *
+     * @param tag   required tag
+     * @param after position of last note on previous page, null for first page
+     * @param limit maximum number of notes
      * @return notes with specified tag
      */
-    public List<Note> getByTag(Tag tag) {
+    public List<Note> getByTag(Tag tag, NoteCursor after, int limit) {
         CriteriaBuilder builder = entityManager.getCriteriaBuilder();
         CriteriaQuery<Note> query = builder.createQuery(Note.class);
         Root<Note> noteRoot = query.from(Note.class);
-        CriteriaQuery<Note> noteCriteriaQuery = query.select(noteRoot).where(builder.isMember(tag, noteRoot.get("tags")));
-        return entityManager.createQuery(noteCriteriaQuery).getResultList();
+        return getKeysetPage(query, noteRoot, builder.isMember(tag, noteRoot.get("tags")), after, limit);
     }
 
 
     /**
-     * Find notes since specified datetime
+     * Find page of notes since specified datetime
      *
      * @param dateTime start datetime
-     * @return notes with specified tag
+     * @param after    position of last note on previous page, null for first page
+     * @param limit    maximum number of notes
+     * @return notes created since specified datetime
      */
-    public List<Note> getSinceDateTime(LocalDateTime dateTime) {
+    public List<Note> getSinceDateTime(LocalDateTime dateTime, NoteCursor after, int limit) {
         CriteriaBuilder builder = entityManager.getCriteriaBuilder();
         CriteriaQuery<Note> query = builder.createQuery(Note.class);
         Root<Note> noteRoot = query.from(Note.class);
-        CriteriaQuery<Note> noteCriteriaQuery = query.select(noteRoot).where(builder.greaterThanOrEqualTo(noteRoot.get("createdAt"), dateTime));
-        return entityManager.createQuery(noteCriteriaQuery).getResultList();
+        return getKeysetPage(query, noteRoot, builder.greaterThanOrEqualTo(noteRoot.get("createdAt"), dateTime), after, limit);
     }
 
     /**
-     * Find notes with search string in name or content
+     * Find page of all notes with only specified fields
+     *
+     * @param after  position of last note on previous page, null for first page
+     * @param limit  maximum number of notes
+     * @param fields fields to select
+     * @return projections of notes after cursor
+     */
+    public List<NoteProjection> getPage(NoteCursor after, int limit, Set<NoteField> fields) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Tuple> query = builder.createTupleQuery();
+        Root<Note> noteRoot = query.from(Note.class);
+        return getKeysetProjection(query, noteRoot, builder.conjunction(), after, limit, fields);
+    }
+
+    /**
+     * Find page of notes by tag with only specified fields
+     *
+     * @param tag    required tag
+     * @param after  position of last note on previous page, null for first page
+     * @param limit  maximum number of notes
+     * @param fields fields to select
+     * @return projections of notes with specified tag
+     */
+    public List<NoteProjection> getByTag(Tag tag, NoteCursor after, int limit, Set<NoteField> fields) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Tuple> query = builder.createTupleQuery();
+        Root<Note> noteRoot = query.from(Note.class);
+        return getKeysetProjection(query, noteRoot, builder.isMember(tag, noteRoot.get("tags")), after, limit, fields);
+    }
+
+    /**
+     * Find page of notes since specified datetime with only specified fields
+     *
+     * @param dateTime start datetime
+     * @param after    position of last note on previous page, null for first page
+     * @param limit    maximum number of notes
+     * @param fields   fields to select
+     * @return projections of notes created since specified datetime
+     */
+    public List<NoteProjection> getSinceDateTime(LocalDateTime dateTime, NoteCursor after, int limit, Set<NoteField> fields) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Tuple> query = builder.createTupleQuery();
+        Root<Note> noteRoot = query.from(Note.class);
+        return getKeysetProjection(query, noteRoot, builder.greaterThanOrEqualTo(noteRoot.get("createdAt"), dateTime), after, limit, fields);
+    }
+
+    /**
+     * Applies filter, keyset condition and (createdAt, id) order to query.
+     * Condition is resolved by index on these columns, so page N costs the same as the first one.
+     */
+    private List<Note> getKeysetPage(CriteriaQuery<Note> query, Root<Note> noteRoot, Predicate filter, NoteCursor after, int limit) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        query.select(noteRoot).where(keyset(noteRoot, filter, after)).orderBy(builder.asc(noteRoot.get("createdAt")), builder.asc(noteRoot.get("id")));
+        return fetchTags(entityManager.createQuery(query).setMaxResults(limit).getResultList());
+    }
+
+    /**
+     * The same as {@link #getKeysetPage} for projections
+     */
+    private List<NoteProjection> getKeysetProjection(CriteriaQuery<Tuple> query, Root<Note> noteRoot, Predicate filter,
+                                                     NoteCursor after, int limit, Set<NoteField> fields) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        query.where(keyset(noteRoot, filter, after)).orderBy(builder.asc(noteRoot.get("createdAt")), builder.asc(noteRoot.get("id")));
+        return project(query, noteRoot, fields, limit);
+    }
+
+    private Predicate keyset(Root<Note> noteRoot, Predicate filter, NoteCursor after) {
+        if (after == null) {
+            return filter;
+        }
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        Path<LocalDateTime> createdAt = noteRoot.get("createdAt");
+        Path<Long> id = noteRoot.get("id");
+        return builder.and(filter, builder.or(
+                builder.greaterThan(createdAt, after.getCreatedAt()),
+                builder.and(builder.equal(createdAt, after.getCreatedAt()), builder.greaterThan(id, after.getId()))
+        ));
+    }
+
+    /**
+     * Selects only columns of specified fields instead of entities, so notes are not loaded to persistence context.
+     * Long content is read only when it's selected, tags are fetched with one query per chunk of notes.
+     */
+    private List<NoteProjection> project(CriteriaQuery<Tuple> query, Root<Note> noteRoot, Set<NoteField> fields, int limit) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        // Id and created time are always selected first, other fields are read by their positions
+        List<Selection<?>> selections = new ArrayList<>();
+        selections.add(noteRoot.get("id"));
+        selections.add(noteRoot.get("createdAt"));
+        Map<NoteField, Integer> positions = new EnumMap<>(NoteField.class);
+        positions.put(NoteField.ID, 0);
+        positions.put(NoteField.CREATED_AT, 1);
+        for (NoteField field : fields) {
+            if (!positions.containsKey(field)) {
+                positions.put(field, selections.size());
+            }
+            switch (field) {
+                case ID:
+                case CREATED_AT:
+                case TAGS:
+                    break;
+                case SIZE:
+                    // Notes created before size was stored have only short content
+                    selections.add(builder.coalesce(noteRoot.<Integer>get("size"), builder.length(noteRoot.get("preview"))));
+                    break;
+                case CONTENT:
+                    selections.add(noteRoot.get("preview"));
+                    selections.add(noteRoot.join("body", JoinType.LEFT).get("data"));
+                    break;
+                default:
+                    selections.add(noteRoot.get(field.getName()));
+            }
+        }
+        List<Tuple> tuples = entityManager.createQuery(query.multiselect(selections)).setMaxResults(limit).getResultList();
+        List<NoteProjection> notes = new ArrayList<>(tuples.size());
+        for (Tuple tuple : tuples) {
+            NoteProjection note = new NoteProjection(tuple.get(0, Long.class), tuple.get(1, LocalDateTime.class));
+            for (NoteField field : fields) {
+                int position = positions.get(field);
+                switch (field) {
+                    case TAGS:
+                        note.put(field, new ArrayList<Tag>());
+                        break;
+                    case CONTENT:
+                        byte[] data = tuple.get(position + 1, byte[].class);
+                        note.put(field, data == null ? tuple.get(position, String.class) : NoteBody.decompress(data));
+                        break;
+                    default:
+                        note.put(field, tuple.get(position));
+                }
+            }
+            notes.add(note);
+        }
+        if (fields.contains(NoteField.TAGS)) {
+            fetchProjectedTags(notes);
+        }
+        return notes;
+    }
+
+    /**
+     * Fills tags of projections with one query per chunk, only ids and names of tags are read
+     */
+    @SuppressWarnings("unchecked")
+    private void fetchProjectedTags(Collection<NoteProjection> notes) {
+        Map<Long, List<Tag>> tagsById = new HashMap<>();
+        for (NoteProjection note : notes) {
+            tagsById.put(note.getId(), (List<Tag>) note.getValues().get(NoteField.TAGS.getName()));
+        }
+        List<Long> ids = new ArrayList<>(tagsById.keySet());
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        for (int from = 0; from < ids.size(); from += FETCH_CHUNK) {
+            CriteriaQuery<Tuple> query = builder.createTupleQuery();
+            Root<Note> noteRoot = query.from(Note.class);
+            Join<Note, Tag> tag = noteRoot.join("tags");
+            query.multiselect(noteRoot.get("id"), tag.get("id"), tag.get("name"))
+                    .where(noteRoot.get("id").in(ids.subList(from, Math.min(from + FETCH_CHUNK, ids.size()))));
+            for (Tuple tuple : entityManager.createQuery(query).getResultList()) {
+                tagsById.get(tuple.get(0, Long.class)).add(new Tag(tuple.get(1, Long.class), tuple.get(2, String.class)));
+            }
+        }
+    }
+
+    /**
+     * Initializes tags of all notes with one query per chunk instead of one query per note.
+     * Tags are fetched in separate query because fetch join can't be combined with limit.
+     *
+     * @param notes managed notes
+     * @return the same notes
+     */
+    private List<Note> fetchTags(List<Note> notes) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        for (int from = 0; from < notes.size(); from += FETCH_CHUNK) {
+            List<Long> ids = new ArrayList<>();
+            for (Note note : notes.subList(from, Math.min(from + FETCH_CHUNK, notes.size()))) {
+                ids.add(note.getId());
+            }
+            CriteriaQuery<Note> query = builder.createQuery(Note.class);
+            Root<Note> noteRoot = query.from(Note.class);
+            noteRoot.fetch("tags", JoinType.LEFT);
+            query.select(noteRoot).distinct(true).where(noteRoot.get("id").in(ids));
+            entityManager.createQuery(query).getResultList();
+        }
+        return notes;
+    }
+
+    /**
+     * Find notes by boolean condition over tags. Empty list of tags means no condition.
+     * Uses in-memory tag index, falls back to database query without facets while index is being built.
+     *
+     * @param all    note must have all these tags
+     * @param any    note must have at least one of these tags
+     * @param none   note must have none of these tags
+     * @param after  id of last note on previous page, null for first page
+     * @param limit  maximum number of notes
+     * @param facets maximum number of tags to count notes of result for, 0 to skip counting
+     * @return page of ids ordered ascending, total number of matched notes and counts of the most used tags
+     */
+    public NoteTagIndex.Match findByTags(Collection<Long> all, Collection<Long> any, Collection<Long> none,
+                                         Long after, int limit, int facets) {
+        if (tagIndex.isReady()) {
+            return tagIndex.find(all, any, none, after, limit, facets);
+        }
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Long> query = builder.createQuery(Long.class);
+        Root<Note> noteRoot = query.from(Note.class);
+        Predicate where = tagsCondition(query, noteRoot, all, any, none);
+        if (after != null) {
+            where = builder.and(where, builder.greaterThan(noteRoot.get("id"), after));
+        }
+        query.select(noteRoot.get("id")).where(where).orderBy(builder.asc(noteRoot.get("id")));
+        List<Long> ids = entityManager.createQuery(query).setMaxResults(limit).getResultList();
+
+        CriteriaQuery<Long> countQuery = builder.createQuery(Long.class);
+        Root<Note> countRoot = countQuery.from(Note.class);
+        countQuery.select(builder.count(countRoot)).where(tagsCondition(countQuery, countRoot, all, any, none));
+        return new NoteTagIndex.Match(ids, entityManager.createQuery(countQuery).getSingleResult(), null);
+    }
+
+    private Predicate tagsCondition(CriteriaQuery<?> query, Root<Note> noteRoot,
+                                    Collection<Long> all, Collection<Long> any, Collection<Long> none) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        List<Predicate> conditions = new ArrayList<>();
+        for (Long tag : all) {
+            conditions.add(withAnyTag(query, noteRoot, Collections.singletonList(tag)));
+        }
+        if (!any.isEmpty()) {
+            conditions.add(withAnyTag(query, noteRoot, any));
+        }
+        if (!none.isEmpty()) {
+            conditions.add(builder.not(withAnyTag(query, noteRoot, none)));
+        }
+        return builder.and(conditions.toArray(new Predicate[0]));
+    }
+
+    private Predicate withAnyTag(CriteriaQuery<?> query, Root<Note> noteRoot, Collection<Long> tagIds) {
+        Subquery<Long> tagged = query.subquery(Long.class);
+        Root<Note> taggedRoot = tagged.from(Note.class);
+        tagged.select(taggedRoot.get("id")).where(taggedRoot.join("tags").get("id").in(tagIds));
+        return noteRoot.get("id").in(tagged);
+    }
+
+    /**
+     * Counts notes created in every time interval of range.
+     * Grouping is done by database, range condition is resolved by index on created time.
+     *
+     * @param interval length of time interval
+     * @param from     start of range, inclusive
+     * @param to       end of range, exclusive
+     * @return intervals with at least one note ordered by start
+     */
+    public List<TimeBucket> countByCreatedAt(TimeBucket.Interval interval, LocalDateTime from, LocalDateTime to) {
+        // Function argument can't be bound as parameter, interval is an enum constant so it's safe to inline
+        String bucket = String.format("date_trunc('%s', createdAt)", interval.name());
+        List<?> rows = entityManager.createNativeQuery("select " + bucket + ", count(*) from note " +
+                        "where createdAt >= :from and createdAt < :to group by " + bucket + " order by 1")
+                .setParameter("from", from)
+                .setParameter("to", to)
+                .getResultList();
+        List<TimeBucket> buckets = new ArrayList<>(rows.size());
+        for (Object row : rows) {
+            Object[] values = (Object[]) row;
+            buckets.add(new TimeBucket(((Timestamp) values[0]).toLocalDateTime(), ((Number) values[1]).longValue()));
+        }
+        return buckets;
+    }
+
+    /**
+     * Counts notes created in range for every tag.
+     * Grouping is done by database, only ids and names of tags are read.
+     *
+     * @param from start of range, inclusive
+     * @param to   end of range, exclusive
+     * @return tags with at least one note ordered by number of notes descending
+     */
+    public List<TagCount> countByTag(LocalDateTime from, LocalDateTime to) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Tuple> query = builder.createTupleQuery();
+        Root<Note> noteRoot = query.from(Note.class);
+        Join<Note, Tag> tag = noteRoot.join("tags");
+        Expression<Long> count = builder.count(noteRoot);
+        query.multiselect(tag.get("id"), tag.get("name"), count)
+                .where(builder.greaterThanOrEqualTo(noteRoot.get("createdAt"), from), builder.lessThan(noteRoot.get("createdAt"), to))
+                .groupBy(tag.get("id"), tag.get("name"))
+                .orderBy(builder.desc(count), builder.asc(tag.get("id")));
+        List<TagCount> counts = new ArrayList<>();
+        for (Tuple tuple : entityManager.createQuery(query).getResultList()) {
+            counts.add(new TagCount(tuple.get(0, Long.class), tuple.get(1, String.class), tuple.get(2, Long.class)));
+        }
+        return counts;
+    }
+
+    /**
+     * Passes every note ordered by created time to consumer without loading all of them to memory.
+     * Notes are read from forward-only cursor as read-only entities in chunks with tags of the whole chunk fetched at once.
+     * Persistence context is cleared after every chunk, so memory usage doesn't depend on table size.
+     * Consumer must finish using note before returning, note may be detached after that.
+     *
+     * @param consumer consumer of notes
+     */
+    public void streamAll(Consumer<Note> consumer) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Note> query = builder.createQuery(Note.class);
+        Root<Note> noteRoot = query.from(Note.class);
+        query.select(noteRoot).orderBy(builder.asc(noteRoot.get("createdAt")), builder.asc(noteRoot.get("id")));
+        org.hibernate.query.Query<?> hibernateQuery = entityManager.createQuery(query).unwrap(org.hibernate.query.Query.class)
+                .setReadOnly(true)
+                .setFetchSize(STREAM_CHUNK)
+                .setCacheMode(CacheMode.IGNORE);
+        try (ScrollableResults results = hibernateQuery.scroll(ScrollMode.FORWARD_ONLY)) {
+            List<Note> chunk = new ArrayList<>(STREAM_CHUNK);
+            while (results.next()) {
+                chunk.add((Note) results.get(0));
+                if (chunk.size() == STREAM_CHUNK) {
+                    fetchTags(chunk).forEach(consumer);
+                    chunk.clear();
+                    entityManager.clear();
+                }
+            }
+            fetchTags(chunk).forEach(consumer);
+        }
+    }
+
+    /**
+     * Find most relevant notes with all words of search string in name or content by in-memory search index
+     *
+     * @param search search string
+     * @param limit  maximum number of notes
+     * @return list of notes ordered by relevance
+     * @throws SearchIndexNotReadyException while index is being built
+     */
+    public List<Note> getBySearch(String search, int limit) {
+        return getByIds(searchIds(search, limit));
+    }
+
+    /**
+     * Find most relevant notes the same way as {@link #getBySearch(String, int)} with only specified fields
+     *
+     * @param search search string
+     * @param limit  maximum number of notes
+     * @param fields fields to select
+     * @return list of projections ordered by relevance
+     * @throws SearchIndexNotReadyException while index is being built
+     */
+    public List<NoteProjection> getBySearch(String search, int limit, Set<NoteField> fields) {
+        return getByIds(searchIds(search, limit), fields);
+    }
+
+    /**
+     * Search is not answered by scanning table while index is being built,
+     * because only preview of long content could be matched and words after it would be missed
+     */
+    private List<Long> searchIds(String search, int limit) {
+        if (!searchIndex.isReady()) {
+            throw new SearchIndexNotReadyException();
+        }
+        return searchIndex.search(search, limit);
+    }
+
+    /**
+     * Find notes with search string in name or preview of content by scanning table.
+     * Words after preview of long content are not matched.
      *
      * @param search search string
+     * @param limit  maximum number of notes
      * @return list of notes
      */
-    public List<Note> getBySearch(String search) {
+    public List<Note> getBySubstring(String search, int limit) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Note> query = builder.createQuery(Note.class);
+        Root<Note> noteRoot = query.from(Note.class);
+        CriteriaQuery<Note> noteCriteriaQuery = query.select(noteRoot).where(substring(noteRoot, search));
+        return fetchTags(entityManager.createQuery(noteCriteriaQuery).setMaxResults(limit).getResultList());
+    }
+
+    private Predicate substring(Root<Note> noteRoot, String search) {
         search = "%" + search + "%";
         CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        return builder.or(builder.like(noteRoot.get("name"), search), builder.like(noteRoot.get("preview"), search));
+    }
+
+    /**
+     * Loads long content of notes that are sent with content
+     *
+     * @param notes notes read by list methods
+     * @return the same notes with content loaded
+     */
+    public List<Note> withContent(List<Note> notes) {
+        notes.forEach(Note::getContent);
+        return notes;
+    }
+
+    /**
+     * Find notes by ids with their tags
+     *
+     * @param ids ids of notes
+     * @return notes in the same order as ids, missing notes are skipped
+     */
+    public List<Note> getByIds(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
         CriteriaQuery<Note> query = builder.createQuery(Note.class);
         Root<Note> noteRoot = query.from(Note.class);
-        CriteriaQuery<Note> noteCriteriaQuery = query.select(noteRoot).where(builder.or(builder.like(noteRoot.get("name"), search), builder.like(noteRoot.get("content"), search)));
-        return entityManager.createQuery(noteCriteriaQuery).getResultList();
+        noteRoot.fetch("tags", JoinType.LEFT);
+        CriteriaQuery<Note> noteCriteriaQuery = query.select(noteRoot).distinct(true).where(noteRoot.get("id").in(ids));
+        Map<Long, Note> byId = new HashMap<>();
+        for (Note note : entityManager.createQuery(noteCriteriaQuery).getResultList()) {
+            byId.put(note.getId(), note);
+        }
+        List<Note> result = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            Note note = byId.get(id);
+            if (note != null) {
+                result.add(note);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find notes by ids with only specified fields
+     *
+     * @param ids    ids of notes
+     * @param fields fields to select
+     * @return projections in the same order as ids, missing notes are skipped
+     */
+    public List<NoteProjection> getByIds(List<Long> ids, Set<NoteField> fields) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Tuple> query = builder.createTupleQuery();
+        Root<Note> noteRoot = query.from(Note.class);
+        query.where(noteRoot.get("id").in(ids));
+        Map<Long, NoteProjection> byId = new HashMap<>();
+        for (NoteProjection note : project(query, noteRoot, fields, ids.size())) {
+            byId.put(note.getId(), note);
+        }
+        List<NoteProjection> result = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            NoteProjection note = byId.get(id);
+            if (note != null) {
+                result.add(note);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Fills tag index with all persisted notes.
+     * Reads only ids of notes and their tags from forward-only cursor, so entities are not loaded to persistence context.
+     * Requests are served during rebuild, notes they write or remove are not overwritten by older rows of the scan.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildTagIndex() {
+        long start = System.currentTimeMillis();
+        tagIndex.startRebuild();
+        indexTags();
+        tagIndex.finishRebuild();
+        log.info(String.format("Tag index built for %d notes in %d ms", tagIndex.size(), System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Adds tags of all notes to tag index
+     */
+    protected void indexTags() {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+        Root<Note> noteRoot = query.from(Note.class);
+        Join<Note, Tag> tag = noteRoot.join("tags", JoinType.LEFT);
+        query.multiselect(noteRoot.get("id"), tag.get("id")).orderBy(builder.asc(noteRoot.get("id")));
+        org.hibernate.query.Query<?> hibernateQuery = entityManager.createQuery(query).unwrap(org.hibernate.query.Query.class)
+                .setReadOnly(true)
+                .setFetchSize(INDEX_REBUILD_CHUNK);
+        try (ScrollableResults results = hibernateQuery.scroll(ScrollMode.FORWARD_ONLY)) {
+            Long noteId = null;
+            List<Long> tagIds = new ArrayList<>();
+            while (results.next()) {
+                // Multiselect row is returned as one array
+                Object[] row = (Object[]) results.get(0);
+                Long id = (Long) row[0];
+                if (!id.equals(noteId)) {
+                    if (noteId != null) {
+                        tagIndex.indexScanned(noteId, tagIds);
+                    }
+                    noteId = id;
+                    tagIds = new ArrayList<>();
+                }
+                if (row[1] != null) {
+                    tagIds.add((Long) row[1]);
+                }
+            }
+            if (noteId != null) {
+                tagIndex.indexScanned(noteId, tagIds);
+            }
+        }
+    }
+
+    /**
+     * Fills search index with all persisted notes.
+     * Reads only indexed columns and compressed long content in chunks ordered by id,
+     * so entities are not loaded to persistence context.
+     * Notes written or removed during rebuild are not overwritten by older rows of the scan.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildSearchIndex() {
+        long start = System.currentTimeMillis();
+        searchIndex.startRebuild();
+        indexContent();
+        searchIndex.finishRebuild();
+        log.info(String.format("Search index built for %d notes in %d ms", searchIndex.size(), System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Adds names and content of all notes to search index
+     */
+    protected void indexContent() {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        Long lastId = null;
+        while (true) {
+            CriteriaQuery<Tuple> query = builder.createTupleQuery();
+            Root<Note> noteRoot = query.from(Note.class);
+            Join<Note, NoteBody> body = noteRoot.join("body", JoinType.LEFT);
+            query.multiselect(noteRoot.get("id"), noteRoot.get("name"), noteRoot.get("preview"), body.get("data"))
+                    .orderBy(builder.asc(noteRoot.get("id")));
+            if (lastId != null) {
+                query.where(builder.greaterThan(noteRoot.get("id"), lastId));
+            }
+            List<Tuple> chunk = entityManager.createQuery(query).setMaxResults(INDEX_REBUILD_CHUNK).getResultList();
+            for (Tuple tuple : chunk) {
+                lastId = tuple.get(0, Long.class);
+                byte[] data = tuple.get(3, byte[].class);
+                searchIndex.indexScanned(lastId, tuple.get(1, String.class), data == null ? tuple.get(2, String.class) : NoteBody.decompress(data));
+            }
+            if (chunk.size() < INDEX_REBUILD_CHUNK) {
+                break;
+            }
+        }
     }
 }
@@ -0,0 +1,336 @@
+package ru.rvr.notes.repository;
+
+import com.zaxxer.hikari.HikariDataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.flywaydb.core.Flyway;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import ru.rvr.notes.entity.Tag;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+
+/**
+ * Databases of hash-sharded note storage.
+ * Note, its long content, tags of the note and its changes are stored in the shard chosen by hash of note id.
+ * Tags are created in the first shard and copied to others with the same ids, so every shard can reference them.
+ * <p>
+ * Shard of database calls is chosen per thread: tasks passed to {@link #call} run on shard threads with their shard,
+ * all other threads use the first shard. Physical connection is taken on the first statement of transaction,
+ * so transaction is bound to the shard of the thread that runs it.
+ * <p>
+ * In sharded mode ids of all entities are taken in blocks of {@link #ID_BLOCK} from sequence of the first shard,
+ * the same way as hi/lo optimizer does, so ids are unique across shards, grow in the order of assignment
+ * and are known before note is persisted. With one shard nothing of it is used.
+ */
+@Slf4j
+public class NoteShards implements AutoCloseable {
+    public static final int ID_BLOCK = 50;
+
+    private final List<DataSource> dataSources;
+    private final DataSource dataSource;
+    private final DataSource sequenceDataSource;
+    private final ThreadLocal<Integer> current = new ThreadLocal<>();
+    private final ExecutorService executor;
+    // Ids of tags already copied to all shards
+    private final Set<Long> replicatedTags = ConcurrentHashMap.newKeySet();
+    // Held while a block is reserved by database call
+    private final ReentrantLock idLock = new ReentrantLock();
+    // Next id and the end of current block, guarded by idLock
+    private long nextId;
+    private long idLimit;
+
+    /**
+     * @param dataSources        data sources of shards, the first one keeps tags and sequence of ids
+     * @param sequenceDataSource own connection to the first shard to reserve ids, so ids don't wait for pool of shard;
+     *                           not used with one shard
+     */
+    public NoteShards(List<DataSource> dataSources, DataSource sequenceDataSource) {
+        this.dataSources = new ArrayList<>(dataSources);
+        this.sequenceDataSource = sequenceDataSource;
+        if (dataSources.size() == 1) {
+            this.dataSource = dataSources.get(0);
+            this.executor = null;
+            return;
+        }
+        AbstractRoutingDataSource routing = new AbstractRoutingDataSource() {
+            @Override
+            protected Object determineCurrentLookupKey() {
+                return current.get();
+            }
+        };
+        Map<Object, Object> targets = new HashMap<>();
+        for (int shard = 0; shard < dataSources.size(); shard++) {
+            targets.put(shard, dataSources.get(shard));
+        }
+        routing.setTargetDataSources(targets);
+        routing.setDefaultTargetDataSource(dataSources.get(0));
+        routing.afterPropertiesSet();
+        // Connection defaults are set explicitly, otherwise proxy takes a connection to read them
+        LazyConnectionDataSourceProxy lazy = new LazyConnectionDataSourceProxy();
+        lazy.setTargetDataSource(routing);
+        lazy.setDefaultAutoCommit(true);
+        lazy.setDefaultTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        lazy.afterPropertiesSet();
+        this.dataSource = lazy;
+        // Tasks of one call can wait for each other, so they are never queued behind tasks of other calls.
+        // Number of busy threads is bounded by connection pools of shards anyway
+        AtomicInteger number = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "note-shard-" + number.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return data source that connects to the shard of current thread
+     */
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * @param shard number of shard
+     * @return data source of the shard itself, not bound to shard of current thread
+     */
+    public DataSource getDataSource(int shard) {
+        return dataSources.get(shard);
+    }
+
+    /**
+     * @return number of shards
+     */
+    public int size() {
+        return dataSources.size();
+    }
+
+    public boolean isSharded() {
+        return dataSources.size() > 1;
+    }
+
+    /**
+     * @return true when current thread runs task of some shard
+     */
+    public boolean inShard() {
+        return current.get() != null;
+    }
+
+    /**
+     * Ids are assigned in a repeating pattern of note, change log entry and sometimes tags or long content,
+     * so id is mixed (finalizer of MurmurHash3) to spread notes evenly regardless of the number of shards
+     *
+     * @param id id of note
+     * @return shard of the note
+     */
+    public int shardOf(Long id) {
+        long hash = id;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) Math.floorMod(hash, (long) dataSources.size());
+    }
+
+    /**
+     * @param url   url of the first shard
+     * @param shard number of shard
+     * @return url of shard, e.g. jdbc:h2:file:./data/db-1 for the second shard of jdbc:h2:file:./data/db
+     */
+    public static String shardUrl(String url, int shard) {
+        if (shard == 0) {
+            return url;
+        }
+        int settings = url.indexOf(';');
+        return settings < 0 ? url + "-" + shard : url.substring(0, settings) + "-" + shard + url.substring(settings);
+    }
+
+    /**
+     * Migrates schema of every shard with Flyway and copies all tags of the first shard to others.
+     * Shards are created empty, schema of existing first shard is baselined like in fast-startup profile.
+     */
+    public void init() {
+        if (!isSharded()) {
+            return;
+        }
+        for (DataSource shard : dataSources) {
+            Flyway.configure().dataSource(shard).baselineOnMigrate(true).baselineVersion("1").load().migrate();
+        }
+        List<Tag> tags = new ArrayList<>();
+        try (Connection connection = dataSources.get(0).getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select id, name from tag")) {
+            while (resultSet.next()) {
+                tags.add(new Tag(resultSet.getLong(1), resultSet.getString(2)));
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Can't read tags of the first shard", e);
+        }
+        replicateTags(tags);
+        log.info(String.format("%d shards are ready, %d tags are copied", dataSources.size(), tags.size()));
+    }
+
+    /**
+     * Copies tags of the first shard to other shards unless they are already copied.
+     * Called after tags are committed and before notes referencing them are written.
+     *
+     * @param tags persisted tags
+     */
+    public void replicateTags(Collection<Tag> tags) {
+        if (!isSharded()) {
+            return;
+        }
+        List<Tag> missing = new ArrayList<>();
+        for (Tag tag : tags) {
+            if (!replicatedTags.contains(tag.getId())) {
+                missing.add(tag);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        for (DataSource shard : dataSources.subList(1, dataSources.size())) {
+            try (Connection connection = shard.getConnection();
+                 PreparedStatement statement = connection.prepareStatement("merge into tag (id, name) key (id) values (?, ?)")) {
+                for (Tag tag : missing) {
+                    statement.setLong(1, tag.getId());
+                    statement.setString(2, tag.getName());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            } catch (SQLException e) {
+                throw new IllegalStateException("Can't copy tags to shard", e);
+            }
+        }
+        for (Tag tag : missing) {
+            replicatedTags.add(tag.getId());
+        }
+    }
+
+    /**
+     * Takes next id from current block, new block is reserved with one sequence call in the first shard
+     *
+     * @return unique id greater than all ids assigned before
+     */
+    public long nextId() {
+        idLock.lock();
+        try {
+            if (nextId == idLimit) {
+                long hi;
+                try (Connection connection = sequenceDataSource.getConnection();
+                     Statement statement = connection.createStatement();
+                     ResultSet resultSet = statement.executeQuery("call next value for hibernate_sequence")) {
+                    resultSet.next();
+                    hi = resultSet.getLong(1);
+                } catch (SQLException e) {
+                    throw new IllegalStateException("Can't reserve block of ids", e);
+                }
+                nextId = (hi - 1) * ID_BLOCK + 1;
+                idLimit = hi * ID_BLOCK + 1;
+            }
+            return nextId++;
+        } finally {
+            idLock.unlock();
+        }
+    }
+
+    /**
+     * Runs task on shard thread with the specified shard and waits for its result
+     *
+     * @param shard number of shard
+     * @param task  task to run
+     * @return result of the task
+     * @throws E exception of the task
+     */
+    public <T, E extends Exception> T call(int shard, Task<T, E> task) throws E {
+        if (!isSharded()) {
+            return task.run();
+        }
+        return await(submit(shard, task));
+    }
+
+    /**
+     * Runs task for every shard in parallel and waits for all of them
+     *
+     * @param task task that gets number of shard
+     * @return results of the task in the order of shards
+     */
+    public <T> List<T> callAll(IntFunction<T> task) {
+        List<Future<T>> futures = new ArrayList<>(dataSources.size());
+        for (int shard = 0; shard < dataSources.size(); shard++) {
+            int number = shard;
+            futures.add(submit(shard, () -> task.apply(number)));
+        }
+        List<T> results = new ArrayList<>(futures.size());
+        for (Future<T> future : futures) {
+            results.add(await(future));
+        }
+        return results;
+    }
+
+    private <T, E extends Exception> Future<T> submit(int shard, Task<T, E> task) {
+        return executor.submit(() -> {
+            current.set(shard);
+            try {
+                return task.run();
+            } finally {
+                current.remove();
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T, E extends Exception> T await(Future<T> future) throws E {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for shard", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            // Only exceptions declared by the task are checked
+            throw (E) e.getCause();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        List<DataSource> all = new ArrayList<>(dataSources);
+        all.add(sequenceDataSource);
+        for (DataSource shard : all) {
+            if (shard instanceof HikariDataSource) {
+                ((HikariDataSource) shard).close();
+            }
+        }
+    }
+
+    /**
+     * Task of one shard
+     */
+    @FunctionalInterface
+    public interface Task<T, E extends Exception> {
+        T run() throws E;
+    }
+}
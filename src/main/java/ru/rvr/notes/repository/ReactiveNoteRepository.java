@@ -0,0 +1,180 @@
+package ru.rvr.notes.repository;
+
+import io.r2dbc.spi.Row;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.reactivestreams.Publisher;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import ru.rvr.notes.entity.Note;
+import ru.rvr.notes.entity.Tag;
+import ru.rvr.notes.search.NoteSearchIndex;
+import ru.rvr.notes.search.SearchIndexNotReadyException;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Non-blocking reading of notes and tags.
+ * Notes are read with demand of subscriber, tags are fetched for every chunk of notes with one query.
+ * Notes are sent with content, long content is read from its compressed body.
+ * H2 driver executes queries on subscribing thread, so queries are subscribed on bounded elastic scheduler.
+ * With several shards notes of all shards are read in parallel and merged in the same order, tags are read from the first shard.
+ */
+@Repository
+public class ReactiveNoteRepository {
+    private static final int CHUNK = 500;
+    private static final String SELECT_NOTE = "select n.id, n.name, n.content, n.contentSize, n.createdAt, n.updatedAt, n.version, b.data " +
+            "from note n left join note_body b on b.id = n.body_id ";
+    private static final String ORDER = " order by n.createdAt, n.id";
+    private static final Comparator<Note> NOTE_ORDER = Comparator.comparing(Note::getCreatedAt).thenComparing(Note::getId);
+
+    private final List<DatabaseClient> databaseClients;
+    private final NoteSearchIndex searchIndex;
+
+    public ReactiveNoteRepository(@Qualifier("shardDatabaseClients") List<DatabaseClient> databaseClients, NoteSearchIndex searchIndex) {
+        this.databaseClients = databaseClients;
+        this.searchIndex = searchIndex;
+    }
+
+    /**
+     * @return all notes ordered by created time and id
+     */
+    public Flux<Note> getAll() {
+        return ordered(databaseClient -> databaseClient.sql(SELECT_NOTE + ORDER).map(ReactiveNoteRepository::note).all());
+    }
+
+    /**
+     * @param tagId id of required tag
+     * @return notes with specified tag ordered by created time and id
+     */
+    public Flux<Note> getByTag(Long tagId) {
+        return ordered(databaseClient -> databaseClient.sql(SELECT_NOTE + "where n.id in (select note_id from note_tag where tags_id = :tag)" + ORDER)
+                .bind("tag", tagId)
+                .map(ReactiveNoteRepository::note)
+                .all());
+    }
+
+    /**
+     * @param dateTime start datetime
+     * @return notes created since specified datetime ordered by created time and id
+     */
+    public Flux<Note> getSinceDateTime(LocalDateTime dateTime) {
+        return ordered(databaseClient -> databaseClient.sql(SELECT_NOTE + "where n.createdAt >= :since" + ORDER)
+                .bind("since", dateTime)
+                .map(ReactiveNoteRepository::note)
+                .all());
+    }
+
+    /**
+     * Find most relevant notes the same way as {@link NoteRepository#getBySearch}
+     *
+     * @param search search string
+     * @param limit  maximum number of notes
+     * @return notes ordered by relevance
+     * @throws SearchIndexNotReadyException while index is being built
+     */
+    public Flux<Note> getBySearch(String search, int limit) {
+        if (!searchIndex.isReady()) {
+            throw new SearchIndexNotReadyException();
+        }
+        List<Long> ids = searchIndex.search(search, limit);
+        if (ids.isEmpty()) {
+            return Flux.empty();
+        }
+        // Every shard returns only its notes
+        return Flux.merge(each(databaseClient -> withTags(databaseClient, databaseClient.sql(SELECT_NOTE + "where n.id in (:ids)")
+                        .bind("ids", ids)
+                        .map(ReactiveNoteRepository::note)
+                        .all())))
+                .collectMap(Note::getId)
+                .flatMapIterable(byId -> {
+                    List<Note> notes = new ArrayList<>(ids.size());
+                    for (Long id : ids) {
+                        if (byId.containsKey(id)) {
+                            notes.add(byId.get(id));
+                        }
+                    }
+                    return notes;
+                });
+    }
+
+    /**
+     * @return all tags
+     */
+    public Flux<Tag> getAllTags() {
+        return databaseClients.get(0).sql("select id, name from tag")
+                .map(row -> new Tag(row.get("id", Long.class), row.get("name", String.class)))
+                .all()
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * @return tag by id, empty when there is no such tag
+     */
+    public Mono<Tag> getTag(Long id) {
+        return databaseClients.get(0).sql("select id, name from tag where id = :id")
+                .bind("id", id)
+                .map(row -> new Tag(row.get("id", Long.class), row.get("name", String.class)))
+                .one()
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Reads notes ordered by created time and id from every shard and merges them in the same order
+     */
+    @SuppressWarnings("unchecked")
+    private Flux<Note> ordered(Function<DatabaseClient, Flux<Note>> query) {
+        if (databaseClients.size() == 1) {
+            return withTags(databaseClients.get(0), query.apply(databaseClients.get(0)));
+        }
+        return Flux.mergeOrdered(NOTE_ORDER, each(databaseClient -> withTags(databaseClient, query.apply(databaseClient)))
+                .toArray(new Publisher[0]));
+    }
+
+    private List<Flux<Note>> each(Function<DatabaseClient, Flux<Note>> query) {
+        List<Flux<Note>> notes = new ArrayList<>(databaseClients.size());
+        for (DatabaseClient databaseClient : databaseClients) {
+            notes.add(query.apply(databaseClient));
+        }
+        return notes;
+    }
+
+    /**
+     * Fills tags of notes chunk by chunk keeping order of notes
+     */
+    private Flux<Note> withTags(DatabaseClient databaseClient, Flux<Note> notes) {
+        return notes.buffer(CHUNK)
+                .concatMap(chunk -> {
+                    Map<Long, Note> byId = new HashMap<>();
+                    for (Note note : chunk) {
+                        byId.put(note.getId(), note);
+                    }
+                    return databaseClient.sql("select nt.note_id, t.id, t.name from note_tag nt join tag t on t.id = nt.tags_id where nt.note_id in (:ids)")
+                            .bind("ids", byId.keySet())
+                            .map(row -> {
+                                byId.get(row.get("note_id", Long.class)).getTags().add(new Tag(row.get("id", Long.class), row.get("name", String.class)));
+                                return true;
+                            })
+                            .all()
+                            .thenMany(Flux.fromIterable(chunk));
+                }, 1)
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private static Note note(Row row) {
+        ByteBuffer data = row.get("data", ByteBuffer.class);
+        byte[] body = null;
+        if (data != null) {
+            body = new byte[data.remaining()];
+            data.get(body);
+        }
+        return new Note(row.get("id", Long.class), row.get("name", String.class), row.get("content", String.class),
+                row.get("contentSize", Integer.class), body, row.get("createdAt", LocalDateTime.class), row.get("updatedAt", LocalDateTime.class),
+                row.get("version", Long.class), new ArrayList<>());
+    }
+}
@@ -0,0 +1,16 @@
+package ru.rvr.notes.repository;
+
+/**
+ * Thrown by writes of notes and tags while backup is being restored.
+ * Written notes could take ids of restored ones, so they are not written at all.
+ */
+public class RestoreInProgressException extends RuntimeException {
+    /**
+     * Restore loads notes in chunks, large backup takes minutes
+     */
+    public static final int RETRY_AFTER_SECONDS = 30;
+
+    public RestoreInProgressException() {
+        super("Backup is being restored, retry later");
+    }
+}
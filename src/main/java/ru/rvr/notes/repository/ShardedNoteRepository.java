@@ -0,0 +1,457 @@
+package ru.rvr.notes.repository;
+
+import org.hibernate.Hibernate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import ru.rvr.notes.entity.Note;
+import ru.rvr.notes.entity.Tag;
+import ru.rvr.notes.search.NoteSearchIndex;
+import ru.rvr.notes.search.NoteTagIndex;
+
+import javax.naming.directory.InvalidAttributesException;
+import javax.transaction.Transactional;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Notes stored in several databases by hash of note id, enabled by notes.shards greater than 1.
+ * Note is read and written in its shard, lists are read from all shards in parallel and merged
+ * in the order of the single database query. Indexes and change log are shared by all shards.
+ * <p>
+ * Every shard is accessed in its own transaction on shard thread, so notes are returned detached with tags loaded.
+ * Long content is loaded for single notes, notes of lists get it only from {@link #withContent}. Methods called by other methods of {@link NoteRepository}
+ * on shard thread work as in one database.
+ */
+@Repository
+@ConditionalOnExpression("${notes.shards:1} > 1")
+@Transactional(Transactional.TxType.NOT_SUPPORTED)
+public class ShardedNoteRepository extends NoteRepository {
+    private static final Comparator<Note> NOTE_ORDER = Comparator.comparing(Note::getCreatedAt).thenComparing(Note::getId);
+    private static final Comparator<NoteProjection> PROJECTION_ORDER =
+            Comparator.comparing(NoteProjection::getCreatedAt).thenComparing(NoteProjection::getId);
+    private static final int STREAM_PAGE = 500;
+    // Transactions of all shards are committed together, shard doesn't wait for others longer than that
+    private static final long COMMIT_WAIT_SECONDS = 30;
+
+    private final NoteShards shards;
+    private final NoteTagIndex tagIndex;
+    private final PlatformTransactionManager transactionManager;
+    // Every list saved together holds a connection of each its shard until all of them are written,
+    // so there are no more such lists than connections of one shard, otherwise they could wait for each other
+    private final Semaphore savesTogether;
+
+    public ShardedNoteRepository(NoteSearchIndex searchIndex, NoteTagIndex tagIndex, NoteChangeRepository changeRepository,
+                                 NoteShards shards, PlatformTransactionManager transactionManager,
+                                 @Value("${notes.datasource.maximum-pool-size:10}") int maximumPoolSize) {
+        super(searchIndex, tagIndex, changeRepository);
+        this.shards = shards;
+        this.tagIndex = tagIndex;
+        this.transactionManager = transactionManager;
+        this.savesTogether = new Semaphore(maximumPoolSize);
+    }
+
+    @Override
+    public Note getById(Long id) {
+        if (shards.inShard()) {
+            return super.getById(id);
+        }
+        return inShard(shards.shardOf(id), () -> loaded(super.getById(id)));
+    }
+
+    @Override
+    public List<Note> getAll() {
+        return merge(inAllShards(() -> withTags(super.getAll())), NOTE_ORDER, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<Note> getAll(Long after, int limit) {
+        return merge(inAllShards(() -> withTags(super.getAll(after, limit))), Comparator.comparing(Note::getId), limit);
+    }
+
+    /**
+     * Creates note in the shard of id assigned in advance or updates it in its shard
+     */
+    @Override
+    public Note save(Note entity) {
+        if (shards.inShard()) {
+            return super.save(entity);
+        }
+        if (entity.getId() == null) {
+            entity.assignId(shards.nextId());
+        }
+        return inShard(shards.shardOf(entity.getId()), () -> loaded(super.save(entity)));
+    }
+
+    /**
+     * Saves notes of every shard in transaction of the shard. Transactions are committed only when all shards
+     * have written their notes, so invalid note fails the whole list as with one database.
+     */
+    @Override
+    public List<Note> saveAll(List<Note> entities) {
+        Map<Integer, List<Note>> byShard = new HashMap<>();
+        for (Note entity : entities) {
+            if (entity.getId() == null) {
+                entity.assignId(shards.nextId());
+            }
+            byShard.computeIfAbsent(shards.shardOf(entity.getId()), shard -> new ArrayList<>()).add(entity);
+        }
+        CountDownLatch written = new CountDownLatch(byShard.size());
+        AtomicBoolean failed = new AtomicBoolean();
+        List<List<Note>> saved;
+        savesTogether.acquireUninterruptibly();
+        try {
+            saved = shards.callAll(shard -> {
+                List<Note> notes = byShard.get(shard);
+                return notes == null ? Collections.<Note>emptyList() : saveTogether(notes, written, failed);
+            });
+        } finally {
+            savesTogether.release();
+        }
+        if (failed.get()) {
+            throw new IllegalStateException("Notes were not saved, transaction of another shard failed");
+        }
+        Map<Integer, Iterator<Note>> savedByShard = new HashMap<>();
+        for (int shard = 0; shard < saved.size(); shard++) {
+            savedByShard.put(shard, saved.get(shard).iterator());
+        }
+        List<Note> result = new ArrayList<>(entities.size());
+        for (Note entity : entities) {
+            result.add(savedByShard.get(shards.shardOf(entity.getId())).next());
+        }
+        return result;
+    }
+
+    private List<Note> saveTogether(List<Note> notes, CountDownLatch written, AtomicBoolean failed) {
+        TransactionStatus status = transactionManager.getTransaction(TransactionDefinition.withDefaults());
+        List<Note> saved;
+        try {
+            saved = super.saveAll(notes);
+        } catch (RuntimeException e) {
+            failed.set(true);
+            written.countDown();
+            transactionManager.rollback(status);
+            throw e;
+        }
+        written.countDown();
+        try {
+            if (!written.await(COMMIT_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                failed.set(true);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed.set(true);
+        }
+        if (failed.get()) {
+            transactionManager.rollback(status);
+            return Collections.emptyList();
+        }
+        transactionManager.commit(status);
+        return saved;
+    }
+
+    @Override
+    public Note update(Long id, long version, String name, String content, List<Tag> tags) throws InvalidAttributesException {
+        return inShard(shards.shardOf(id), () -> loaded(super.update(id, version, name, content, tags)));
+    }
+
+    @Override
+    public void remove(Note entity) {
+        if (entity.getId() == null) {
+            return;
+        }
+        inShard(shards.shardOf(entity.getId()), () -> {
+            super.remove(entity);
+            return null;
+        });
+    }
+
+    @Override
+    public List<Note> getPage(NoteCursor after, int limit) {
+        return merge(inAllShards(() -> withTags(super.getPage(after, limit))), NOTE_ORDER, limit);
+    }
+
+    @Override
+    public List<Note> getByTag(Tag tag, NoteCursor after, int limit) {
+        return merge(inAllShards(() -> withTags(super.getByTag(tag, after, limit))), NOTE_ORDER, limit);
+    }
+
+    @Override
+    public List<Note> getSinceDateTime(LocalDateTime dateTime, NoteCursor after, int limit) {
+        return merge(inAllShards(() -> withTags(super.getSinceDateTime(dateTime, after, limit))), NOTE_ORDER, limit);
+    }
+
+    @Override
+    public List<NoteProjection> getPage(NoteCursor after, int limit, Set<NoteField> fields) {
+        return merge(inAllShards(() -> super.getPage(after, limit, fields)), PROJECTION_ORDER, limit);
+    }
+
+    @Override
+    public List<NoteProjection> getByTag(Tag tag, NoteCursor after, int limit, Set<NoteField> fields) {
+        return merge(inAllShards(() -> super.getByTag(tag, after, limit, fields)), PROJECTION_ORDER, limit);
+    }
+
+    @Override
+    public List<NoteProjection> getSinceDateTime(LocalDateTime dateTime, NoteCursor after, int limit, Set<NoteField> fields) {
+        return merge(inAllShards(() -> super.getSinceDateTime(dateTime, after, limit, fields)), PROJECTION_ORDER, limit);
+    }
+
+    @Override
+    public NoteTagIndex.Match findByTags(Collection<Long> all, Collection<Long> any, Collection<Long> none,
+                                         Long after, int limit, int facets) {
+        if (tagIndex.isReady()) {
+            return super.findByTags(all, any, none, after, limit, facets);
+        }
+        List<Long> ids = new ArrayList<>();
+        long total = 0;
+        for (NoteTagIndex.Match match : inAllShards(() -> super.findByTags(all, any, none, after, limit, facets))) {
+            ids.addAll(match.getIds());
+            total += match.getTotal();
+        }
+        Collections.sort(ids);
+        return new NoteTagIndex.Match(ids.size() > limit ? new ArrayList<>(ids.subList(0, limit)) : ids, total, null);
+    }
+
+    @Override
+    public List<TimeBucket> countByCreatedAt(TimeBucket.Interval interval, LocalDateTime from, LocalDateTime to) {
+        Map<LocalDateTime, Long> counts = new TreeMap<>();
+        for (List<TimeBucket> buckets : inAllShards(() -> super.countByCreatedAt(interval, from, to))) {
+            for (TimeBucket bucket : buckets) {
+                counts.merge(bucket.getStart(), bucket.getCount(), Long::sum);
+            }
+        }
+        List<TimeBucket> result = new ArrayList<>(counts.size());
+        counts.forEach((start, count) -> result.add(new TimeBucket(start, count)));
+        return result;
+    }
+
+    @Override
+    public List<TagCount> countByTag(LocalDateTime from, LocalDateTime to) {
+        Map<Long, TagCount> counts = new HashMap<>();
+        for (List<TagCount> tagCounts : inAllShards(() -> super.countByTag(from, to))) {
+            for (TagCount count : tagCounts) {
+                counts.merge(count.getId(), count,
+                        (a, b) -> new TagCount(a.getId(), a.getName(), a.getCount() + b.getCount()));
+            }
+        }
+        List<TagCount> result = new ArrayList<>(counts.values());
+        result.sort(Comparator.comparingLong(TagCount::getCount).reversed().thenComparing(TagCount::getId));
+        return result;
+    }
+
+    /**
+     * Reads all notes with content page by page, every page is merged from pages of all shards
+     */
+    @Override
+    public void streamAll(Consumer<Note> consumer) {
+        NoteCursor after = null;
+        while (true) {
+            NoteCursor cursor = after;
+            List<Note> page = merge(inAllShards(() -> loaded(super.getPage(cursor, STREAM_PAGE))), NOTE_ORDER, STREAM_PAGE);
+            page.forEach(consumer);
+            if (page.size() < STREAM_PAGE) {
+                return;
+            }
+            after = NoteCursor.after(page.get(page.size() - 1));
+        }
+    }
+
+    @Override
+    public List<Note> getBySubstring(String search, int limit) {
+        return merge(inAllShards(() -> withTags(super.getBySubstring(search, limit))), null, limit);
+    }
+
+    @Override
+    public List<Note> getByIds(List<Long> ids) {
+        if (shards.inShard()) {
+            return super.getByIds(ids);
+        }
+        Map<Long, Note> byId = new HashMap<>();
+        for (List<Note> notes : inShardsOf(ids, shardIds -> withTags(super.getByIds(shardIds)))) {
+            for (Note note : notes) {
+                byId.put(note.getId(), note);
+            }
+        }
+        return inOrder(ids, byId);
+    }
+
+    /**
+     * Reads notes with long content again in their shards, notes of other lists are read without it
+     */
+    @Override
+    public List<Note> withContent(List<Note> notes) {
+        if (shards.inShard()) {
+            return super.withContent(notes);
+        }
+        List<Long> ids = new ArrayList<>();
+        for (Note note : notes) {
+            if (!note.isContentLoaded()) {
+                ids.add(note.getId());
+            }
+        }
+        if (ids.isEmpty()) {
+            return notes;
+        }
+        Map<Long, Note> byId = new HashMap<>();
+        for (List<Note> loaded : inShardsOf(ids, shardIds -> loaded(super.getByIds(shardIds)))) {
+            for (Note note : loaded) {
+                byId.put(note.getId(), note);
+            }
+        }
+        // Notes removed after the list was read are skipped
+        List<Note> result = new ArrayList<>(notes.size());
+        for (Note note : notes) {
+            Note loaded = note.isContentLoaded() ? note : byId.get(note.getId());
+            if (loaded != null) {
+                result.add(loaded);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<NoteProjection> getByIds(List<Long> ids, Set<NoteField> fields) {
+        if (shards.inShard()) {
+            return super.getByIds(ids, fields);
+        }
+        Map<Long, NoteProjection> byId = new HashMap<>();
+        for (List<NoteProjection> notes : inShardsOf(ids, shardIds -> super.getByIds(shardIds, fields))) {
+            for (NoteProjection note : notes) {
+                byId.put(note.getId(), note);
+            }
+        }
+        return inOrder(ids, byId);
+    }
+
+    @Override
+    protected void indexTags() {
+        if (shards.inShard()) {
+            super.indexTags();
+            return;
+        }
+        inAllShards(() -> {
+            super.indexTags();
+            return null;
+        });
+    }
+
+    @Override
+    protected void indexContent() {
+        if (shards.inShard()) {
+            super.indexContent();
+            return;
+        }
+        inAllShards(() -> {
+            super.indexContent();
+            return null;
+        });
+    }
+
+    /**
+     * Runs task in transaction of one shard
+     */
+    private <T, E extends Exception> T inShard(int shard, NoteShards.Task<T, E> task) throws E {
+        return shards.call(shard, () -> inTransaction(task));
+    }
+
+    /**
+     * Runs task in transactions of all shards in parallel
+     *
+     * @return results of the task in the order of shards
+     */
+    private <T> List<T> inAllShards(Supplier<T> task) {
+        return shards.callAll(shard -> inTransaction(task::get));
+    }
+
+    /**
+     * Runs task with ids of every shard in transactions of these shards in parallel
+     */
+    private <T> List<T> inShardsOf(List<Long> ids, Function<List<Long>, T> task) {
+        Map<Integer, List<Long>> byShard = new HashMap<>();
+        for (Long id : ids) {
+            byShard.computeIfAbsent(shards.shardOf(id), shard -> new ArrayList<>()).add(id);
+        }
+        List<T> results = new ArrayList<>();
+        for (T result : shards.callAll(shard -> byShard.containsKey(shard) ? inTransaction(() -> task.apply(byShard.get(shard))) : null)) {
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    private <T, E extends Exception> T inTransaction(NoteShards.Task<T, E> task) throws E {
+        TransactionStatus status = transactionManager.getTransaction(TransactionDefinition.withDefaults());
+        T result;
+        try {
+            result = task.run();
+        } catch (Throwable e) {
+            transactionManager.rollback(status);
+            throw e;
+        }
+        transactionManager.commit(status);
+        return result;
+    }
+
+    /**
+     * Loads lazy tags and long content while note is in persistence context of shard transaction
+     */
+    private static Note loaded(Note note) {
+        if (note != null) {
+            Hibernate.initialize(note.getTags());
+            note.getContent();
+        }
+        return note;
+    }
+
+    private static List<Note> loaded(List<Note> notes) {
+        notes.forEach(ShardedNoteRepository::loaded);
+        return notes;
+    }
+
+    /**
+     * Loads only lazy tags of listed notes, long content of the list is loaded on request by {@link #withContent}
+     */
+    private static List<Note> withTags(List<Note> notes) {
+        notes.forEach(note -> Hibernate.initialize(note.getTags()));
+        return notes;
+    }
+
+    /**
+     * Merges results of shards ordered by the same order
+     *
+     * @param order order of results, null to keep the order of shards
+     * @param limit maximum number of results
+     */
+    private static <T> List<T> merge(List<List<T>> results, Comparator<? super T> order, int limit) {
+        List<T> merged = new ArrayList<>();
+        for (List<T> result : results) {
+            merged.addAll(result);
+        }
+        if (order != null) {
+            merged.sort(order);
+        }
+        return merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+    }
+
+    private static <T> List<T> inOrder(List<Long> ids, Map<Long, T> byId) {
+        List<T> result = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            T value = byId.get(id);
+            if (value != null) {
+                result.add(value);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,28 @@
+package ru.rvr.notes.repository;
+
+import com.fasterxml.jackson.annotation.JsonView;
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Getter;
+import ru.rvr.notes.entity.NoteViews;
+
+/**
+ * Number of notes with one tag
+ */
+@Getter
+@JsonView(NoteViews.Summary.class)
+public class TagCount {
+    @ApiModelProperty("Identifier of the tag")
+    private final Long id;
+
+    @ApiModelProperty("Name of the tag")
+    private final String name;
+
+    @ApiModelProperty("Number of notes with the tag")
+    private final long count;
+
+    public TagCount(Long id, String name, long count) {
+        this.id = id;
+        this.name = name;
+        this.count = count;
+    }
+}
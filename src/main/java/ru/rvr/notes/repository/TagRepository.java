@@ -2,25 +2,46 @@ package ru.rvr.notes.repository;
 
 
 import lombok.extern.slf4j.Slf4j;
+import org.hibernate.annotations.QueryHints;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
 import org.springframework.stereotype.Repository;
 import ru.rvr.notes.entity.Tag;
 
+import javax.naming.directory.InvalidAttributesException;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 import javax.transaction.Transactional;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 @Repository
 @Transactional
 @Slf4j
 public class TagRepository extends AbstractPersistenceRepository<Long,Tag> {
+    private static final String UNIQUE_VIOLATION = "23505";
+    private static final String[] TAG_SPACES = {"tag"};
+
     @PersistenceContext
     private EntityManager entityManager;
 
+    // Tags are never renamed or deleted, so cached ids never become stale
+    private final ConcurrentMap<String, Long> idsByName = new ConcurrentHashMap<>();
+
+    private final NoteShards shards;
+
+    public TagRepository(NoteShards shards) {
+        this.shards = shards;
+    }
+
     /**
      * Creates or updates entity.
      *
@@ -32,26 +53,32 @@ public class TagRepository extends AbstractPersistenceRepository<Long,Tag> {
         return super.save(entity);
     }
 
+    /**
+     * Find all tags. Result is stored in query cache until any tag is created.
+     *
+     * @return all tags
+     */
+    @Override
+    public List<Tag> getAll() {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Tag> query = builder.createQuery(Tag.class);
+        Root<Tag> tagRoot = query.from(Tag.class);
+        return entityManager.createQuery(query.select(tagRoot))
+                .setHint(QueryHints.CACHEABLE, true)
+                .setHint(QueryHints.CACHE_REGION, "tag.all")
+                .getResultList();
+    }
+
     /**
      * Get persisted entity by id or name.
      * If no such entity creates it.
      *
      * @param entity not persisted entity
      * @return persisted entity
+     * @throws InvalidAttributesException when tag has neither persisted id nor name
      */
-    public Tag getOrCreate(Tag entity) {
-        Tag loaded;
-        if (entity.getId() != null) {
-            loaded = getById(entity.getId());
-            if (loaded != null) {
-                return loaded;
-            }
-        }
-        loaded = getByName(entity.getName());
-        if (loaded != null){
-            return loaded;
-        }
-        return save(entity);
+    public Tag getOrCreate(Tag entity) throws InvalidAttributesException {
+        return getPersistedTagsFromList(Collections.singletonList(entity)).get(0);
     }
 
     /**
@@ -75,12 +102,150 @@ public class TagRepository extends AbstractPersistenceRepository<Long,Tag> {
 
 
     /**
-     * For each task in list either loads or creates persisted tag
+     * Find tags by ids with one query
+     *
+     * @param ids ids of tags
+     * @return persisted tags by id, missing tags are skipped
+     */
+    public Map<Long, Tag> getByIds(Collection<Long> ids) {
+        Map<Long, Tag> byId = new HashMap<>();
+        load(ids, Collections.emptySet(), byId, new HashMap<>());
+        return byId;
+    }
+
+    /**
+     * For each tag in list either loads or creates persisted tag.
+     * Tag is found by id first, then by name. Tags without persisted id and name are created.
+     * All tags are loaded with one query, ids of known names are taken from cache.
+     * Missing tags are inserted with one batch.
+     * With several shards tags are copied to all of them after commit, so notes of any shard can reference them.
      *
      * @param tags list of tags with id and/or name
-     * @return list of persisted tags
+     * @return list of persisted tags in the same order without duplicates
+     * @throws InvalidAttributesException when tag has neither persisted id nor name
+     */
+    public List<Tag> getPersistedTagsFromList(List<Tag> tags) throws InvalidAttributesException {
+        if (tags == null || tags.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Set<Long> ids = new HashSet<>();
+        Set<String> names = new HashSet<>();
+        for (Tag tag : tags) {
+            if (tag.getId() != null) {
+                ids.add(tag.getId());
+            }
+            if (tag.getName() != null) {
+                Long cachedId = idsByName.get(tag.getName());
+                if (cachedId != null) {
+                    ids.add(cachedId);
+                } else {
+                    names.add(tag.getName());
+                }
+            }
+        }
+        Map<Long, Tag> byId = new HashMap<>();
+        Map<String, Tag> byName = new HashMap<>();
+        load(ids, names, byId, byName);
+
+        Set<String> missing = new LinkedHashSet<>();
+        Set<String> stale = new HashSet<>();
+        for (Tag tag : tags) {
+            if (tag.getId() != null && byId.containsKey(tag.getId())) {
+                continue;
+            }
+            if (tag.getName() == null) {
+                throw new InvalidAttributesException("No tag with this id");
+            }
+            if (!byName.containsKey(tag.getName())) {
+                missing.add(tag.getName());
+                if (!names.contains(tag.getName())) {
+                    // Cached id is not valid anymore, tag was loaded only by it
+                    idsByName.remove(tag.getName());
+                    stale.add(tag.getName());
+                }
+            }
+        }
+        if (!stale.isEmpty()) {
+            load(Collections.emptySet(), stale, byId, byName);
+            missing.removeAll(byName.keySet());
+        }
+        if (!missing.isEmpty()) {
+            incrementRevision();
+            insert(missing);
+            load(Collections.emptySet(), missing, byId, byName);
+        }
+
+        Map<Long, Tag> result = new LinkedHashMap<>();
+        for (Tag tag : tags) {
+            Tag persisted = tag.getId() != null && byId.containsKey(tag.getId()) ? byId.get(tag.getId()) : byName.get(tag.getName());
+            result.put(persisted.getId(), persisted);
+        }
+        // Only committed tags are cached, ids of rolled back inserts must not be reused
+        afterCommit(() -> {
+            shards.replicateTags(result.values());
+            result.values().forEach(tag -> idsByName.putIfAbsent(tag.getName(), tag.getId()));
+        });
+        return new ArrayList<>(result.values());
+    }
+
+    /**
+     * Loads tags by ids or names with one query
      */
-    public List<Tag> getPersistedTagsFromList(List<Tag> tags){
-        return tags.stream().map(this::getOrCreate).collect(Collectors.toList());
+    private void load(Collection<Long> ids, Collection<String> names, Map<Long, Tag> byId, Map<String, Tag> byName) {
+        if (ids.isEmpty() && names.isEmpty()) {
+            return;
+        }
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Tag> query = builder.createQuery(Tag.class);
+        Root<Tag> tagRoot = query.from(Tag.class);
+        List<Predicate> predicates = new ArrayList<>();
+        if (!ids.isEmpty()) {
+            predicates.add(tagRoot.get("id").in(ids));
+        }
+        if (!names.isEmpty()) {
+            predicates.add(tagRoot.get("name").in(names));
+        }
+        query.select(tagRoot).where(builder.or(predicates.toArray(new Predicate[0])));
+        for (Tag tag : entityManager.createQuery(query).getResultList()) {
+            byId.put(tag.getId(), tag);
+            byName.put(tag.getName(), tag);
+        }
+    }
+
+    /**
+     * Inserts tags with specified names in one JDBC batch using current transaction connection.
+     * If another transaction creates tag with the same name concurrently, unique constraint rejects only that row,
+     * transaction stays usable and the tag created by another transaction is loaded afterwards.
+     * Plain JDBC is used because failed flush would make the whole persistence context unusable.
+     */
+    private void insert(Set<String> names) {
+        SharedSessionContractImplementor session = entityManager.unwrap(SharedSessionContractImplementor.class);
+        IdentifierGenerator generator = session.getFactory().getMetamodel().entityPersister(Tag.class).getIdentifierGenerator();
+        List<Long> ids = new ArrayList<>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            ids.add((Long) generator.generate(session, null));
+        }
+        // Inserts are not done by Hibernate, so cached queries over tag table are invalidated explicitly.
+        // Only update timestamp of the table is changed, cached tags and tags of notes are still valid.
+        // Query results read before commit have older timestamp, so they are not used even if cached later.
+        afterCommit(() -> session.getFactory().getCache().getTimestampsCache().invalidate(TAG_SPACES, session));
+        session.doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("insert into tag (id, name) values (?, ?)")) {
+                Iterator<Long> id = ids.iterator();
+                for (String name : names) {
+                    statement.setLong(1, id.next());
+                    statement.setString(2, name);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            } catch (BatchUpdateException e) {
+                for (SQLException cause = e.getNextException(); cause != null; cause = cause.getNextException()) {
+                    if (!UNIQUE_VIOLATION.equals(cause.getSQLState())) {
+                        throw e;
+                    }
+                }
+                log.debug("Tags were created concurrently by another transaction");
+            }
+        });
     }
 }
@@ -0,0 +1,30 @@
+package ru.rvr.notes.repository;
+
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Getter;
+
+import java.time.LocalDateTime;
+
+/**
+ * Number of notes created in one time interval
+ */
+@Getter
+public class TimeBucket {
+    /**
+     * Length of time interval. Weeks start on Monday.
+     */
+    public enum Interval {
+        HOUR, DAY, WEEK
+    }
+
+    @ApiModelProperty("Start of the interval")
+    private final LocalDateTime start;
+
+    @ApiModelProperty("Number of notes created in the interval")
+    private final long count;
+
+    public TimeBucket(LocalDateTime start, long count) {
+        this.start = start;
+        this.count = count;
+    }
+}
@@ -0,0 +1,41 @@
+package ru.rvr.notes.repository;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counter of committed writes to one kind of entities.
+ * Any value read before a query is not newer than the data returned by that query,
+ * so it can be used as validator of cached responses.
+ */
+public class WriteRevision {
+    // Counter starts from zero on every start, epoch makes values of different runs distinct
+    private final long epoch = System.currentTimeMillis();
+    private final AtomicLong number = new AtomicLong();
+    private volatile long lastModified = epoch;
+
+    /**
+     * @return number of writes since start
+     */
+    public long getNumber() {
+        return number.get();
+    }
+
+    /**
+     * @return strong entity tag of current revision
+     */
+    public String getETag() {
+        return "\"" + epoch + "-" + number.get() + "\"";
+    }
+
+    /**
+     * @return time of last write in milliseconds, start time if there were no writes
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    void increment() {
+        lastModified = System.currentTimeMillis();
+        number.incrementAndGet();
+    }
+}
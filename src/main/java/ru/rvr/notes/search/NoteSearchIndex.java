@@ -0,0 +1,294 @@
+package ru.rvr.notes.search;
+
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index over note name and content.
+ * Maps every term to posting list (note id -> term frequency) and ranks matches with BM25.
+ * All query terms must match, the last one is matched as prefix to support search while typing.
+ */
+@Component
+public class NoteSearchIndex {
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private final NavigableMap<String, Map<Long, Integer>> postings = new TreeMap<>();
+    private final Map<Long, Map<String, Integer>> documents = new HashMap<>();
+    private final Map<Long, Integer> lengths = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // Notes written while index is rebuilt, rows of the scan are older than their updates
+    private final Set<Long> writtenDuringRebuild = new HashSet<>();
+    private boolean rebuilding;
+    private long totalLength;
+    private volatile boolean ready;
+
+    /**
+     * Adds note to index or replaces previously indexed version of it
+     *
+     * @param id      id of the note
+     * @param name    name of the note, may be null
+     * @param content content of the note, may be null
+     */
+    public void index(Long id, String name, String content) {
+        Map<String, Integer> terms = terms(name, content);
+        lock.writeLock().lock();
+        try {
+            if (rebuilding) {
+                writtenDuringRebuild.add(id);
+            }
+            doIndex(id, terms);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds note read by scan of all notes during rebuild, unless the note was written or removed after rebuild started
+     *
+     * @param id      id of the note
+     * @param name    name of the note, may be null
+     * @param content content of the note, may be null
+     */
+    public void indexScanned(Long id, String name, String content) {
+        Map<String, Integer> terms = terms(name, content);
+        lock.writeLock().lock();
+        try {
+            if (!writtenDuringRebuild.contains(id)) {
+                doIndex(id, terms);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes note from index
+     *
+     * @param id id of the note
+     */
+    public void remove(Long id) {
+        lock.writeLock().lock();
+        try {
+            if (rebuilding) {
+                writtenDuringRebuild.add(id);
+            }
+            doRemove(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all documents and marks index as not ready until {@link #finishRebuild()}.
+     * Writes are still indexed during rebuild and take precedence over notes added by {@link #indexScanned}.
+     */
+    public void startRebuild() {
+        lock.writeLock().lock();
+        try {
+            ready = false;
+            rebuilding = true;
+            writtenDuringRebuild.clear();
+            postings.clear();
+            documents.clear();
+            lengths.clear();
+            totalLength = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Marks index filled by scan as ready
+     */
+    public void finishRebuild() {
+        lock.writeLock().lock();
+        try {
+            rebuilding = false;
+            writtenDuringRebuild.clear();
+            ready = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Index is ready when it contains all persisted notes
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find most relevant notes containing all terms of query
+     *
+     * @param query search query
+     * @param limit maximum number of results
+     * @return ids of notes ordered by descending relevance
+     */
+    public List<Long> search(String query, int limit) {
+        List<String> tokens = tokenize(query);
+        if (tokens.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        lock.readLock().lock();
+        try {
+            Map<Long, Double> scores = null;
+            for (int i = 0; i < tokens.size(); i++) {
+                Map<Long, Double> tokenScores = score(tokens.get(i), i == tokens.size() - 1);
+                if (scores == null) {
+                    scores = tokenScores;
+                } else {
+                    scores = intersect(scores, tokenScores);
+                }
+                if (scores.isEmpty()) {
+                    return Collections.emptyList();
+                }
+            }
+            return top(scores, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Splits text to lower case terms by any non letter or digit character
+     *
+     * @param text text to split, may be null
+     * @return list of terms
+     */
+    static List<String> tokenize(String text) {
+        if (text == null || text.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> tokens = new ArrayList<>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i < lower.length(); i++) {
+            if (Character.isLetterOrDigit(lower.charAt(i))) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                tokens.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        if (start >= 0) {
+            tokens.add(lower.substring(start));
+        }
+        return tokens;
+    }
+
+    private void doIndex(Long id, Map<String, Integer> terms) {
+        doRemove(id);
+        documents.put(id, terms);
+        int length = 0;
+        for (Map.Entry<String, Integer> term : terms.entrySet()) {
+            postings.computeIfAbsent(term.getKey(), key -> new HashMap<>()).put(id, term.getValue());
+            length += term.getValue();
+        }
+        lengths.put(id, length);
+        totalLength += length;
+    }
+
+    private void doRemove(Long id) {
+        Map<String, Integer> terms = documents.remove(id);
+        if (terms == null) {
+            return;
+        }
+        for (Map.Entry<String, Integer> term : terms.entrySet()) {
+            Map<Long, Integer> posting = postings.get(term.getKey());
+            if (posting != null) {
+                posting.remove(id);
+                if (posting.isEmpty()) {
+                    postings.remove(term.getKey());
+                }
+            }
+        }
+        totalLength -= lengths.remove(id);
+    }
+
+    private Map<Long, Double> score(String token, boolean prefix) {
+        Collection<Map<Long, Integer>> matched;
+        if (prefix) {
+            matched = postings.subMap(token, true, token + Character.MAX_VALUE, false).values();
+        } else {
+            Map<Long, Integer> posting = postings.get(token);
+            matched = posting == null ? Collections.emptyList() : Collections.singletonList(posting);
+        }
+        Map<Long, Double> scores = new HashMap<>();
+        double averageLength = documents.isEmpty() ? 1 : (double) totalLength / documents.size();
+        for (Map<Long, Integer> posting : matched) {
+            double idf = Math.log(1 + (documents.size() - posting.size() + 0.5) / (posting.size() + 0.5));
+            for (Map.Entry<Long, Integer> entry : posting.entrySet()) {
+                int length = lengths.get(entry.getKey());
+                double tf = entry.getValue();
+                double score = idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * length / averageLength));
+                scores.merge(entry.getKey(), score, Double::sum);
+            }
+        }
+        return scores;
+    }
+
+    private static Map<String, Integer> terms(String name, String content) {
+        Map<String, Integer> terms = new HashMap<>();
+        for (String token : tokenize(name)) {
+            terms.merge(token, 1, Integer::sum);
+        }
+        for (String token : tokenize(content)) {
+            terms.merge(token, 1, Integer::sum);
+        }
+        return terms;
+    }
+
+    private static Map<Long, Double> intersect(Map<Long, Double> first, Map<Long, Double> second) {
+        if (first.size() > second.size()) {
+            Map<Long, Double> tmp = first;
+            first = second;
+            second = tmp;
+        }
+        Map<Long, Double> result = new HashMap<>();
+        for (Map.Entry<Long, Double> entry : first.entrySet()) {
+            Double other = second.get(entry.getKey());
+            if (other != null) {
+                result.put(entry.getKey(), entry.getValue() + other);
+            }
+        }
+        return result;
+    }
+
+    private static List<Long> top(Map<Long, Double> scores, int limit) {
+        // Min-heap keeps only best results so selecting costs O(n log k)
+        PriorityQueue<Map.Entry<Long, Double>> heap = new PriorityQueue<>(Math.min(limit, scores.size()) + 1,
+                Map.Entry.comparingByValue());
+        for (Map.Entry<Long, Double> entry : scores.entrySet()) {
+            heap.offer(entry);
+            if (heap.size() > limit) {
+                heap.poll();
+            }
+        }
+        List<Long> result = new ArrayList<>(heap.size());
+        while (!heap.isEmpty()) {
+            result.add(heap.poll().getKey());
+        }
+        Collections.reverse(result);
+        return result;
+    }
+}
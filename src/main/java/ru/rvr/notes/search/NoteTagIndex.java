@@ -0,0 +1,286 @@
+package ru.rvr.notes.search;
+
+import lombok.Getter;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory index of note tags.
+ * Maps every tag to compressed bitmap of ids of notes with this tag, so boolean queries over tags
+ * are answered by bitmap operations, and their cost depends on size of bitmaps, not on number of notes.
+ */
+@Component
+public class NoteTagIndex {
+    private final Map<Long, Roaring64NavigableMap> notesByTag = new HashMap<>();
+    private final Map<Long, long[]> tagsByNote = new HashMap<>();
+    private final Roaring64NavigableMap notes = new Roaring64NavigableMap();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // Notes written while index is rebuilt, rows of the scan are older than their updates
+    private final Set<Long> writtenDuringRebuild = new HashSet<>();
+    private boolean rebuilding;
+    private volatile boolean ready;
+
+    /**
+     * Adds note to index or replaces previously indexed tags of it
+     *
+     * @param id     id of the note
+     * @param tagIds ids of all tags of the note
+     */
+    public void index(Long id, Collection<Long> tagIds) {
+        long[] tags = toArray(tagIds);
+        lock.writeLock().lock();
+        try {
+            if (rebuilding) {
+                writtenDuringRebuild.add(id);
+            }
+            doIndex(id, tags);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds note read by scan of all notes during rebuild, unless the note was written or removed after rebuild started
+     *
+     * @param id     id of the note
+     * @param tagIds ids of all tags of the note
+     */
+    public void indexScanned(Long id, Collection<Long> tagIds) {
+        long[] tags = toArray(tagIds);
+        lock.writeLock().lock();
+        try {
+            if (!writtenDuringRebuild.contains(id)) {
+                doIndex(id, tags);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes note from index
+     *
+     * @param id id of the note
+     */
+    public void remove(Long id) {
+        lock.writeLock().lock();
+        try {
+            if (rebuilding) {
+                writtenDuringRebuild.add(id);
+            }
+            doRemove(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all notes and marks index as not ready until {@link #finishRebuild()}.
+     * Writes are still indexed during rebuild and take precedence over notes added by {@link #indexScanned}.
+     */
+    public void startRebuild() {
+        lock.writeLock().lock();
+        try {
+            ready = false;
+            rebuilding = true;
+            writtenDuringRebuild.clear();
+            notesByTag.clear();
+            tagsByNote.clear();
+            notes.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Compresses bitmaps filled by scan and marks index as ready
+     */
+    public void finishRebuild() {
+        lock.writeLock().lock();
+        try {
+            rebuilding = false;
+            writtenDuringRebuild.clear();
+            optimize();
+            ready = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Compresses bitmaps after bulk indexing
+     */
+    public void optimize() {
+        lock.writeLock().lock();
+        try {
+            notes.runOptimize();
+            for (Roaring64NavigableMap bitmap : notesByTag.values()) {
+                bitmap.runOptimize();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Index is ready when it contains all persisted notes
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return tagsByNote.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find notes by tags. Empty list of tags means no condition.
+     *
+     * @param all    note must have all these tags
+     * @param any    note must have at least one of these tags
+     * @param none   note must have none of these tags
+     * @param after  id of last note on previous page, null for first page
+     * @param limit  maximum number of ids
+     * @param facets maximum number of tags to count notes of result for, 0 to skip counting
+     * @return page of ids ordered ascending, total number of matched notes and counts of the most used tags
+     */
+    public Match find(Collection<Long> all, Collection<Long> any, Collection<Long> none, Long after, int limit, int facets) {
+        lock.readLock().lock();
+        try {
+            Roaring64NavigableMap result = matching(all, any, none);
+            long total = result.getLongCardinality();
+            List<Long> ids = new ArrayList<>(limit);
+            // rank of last seen id is the position of the first id after it
+            for (long position = after == null ? 0 : result.rankLong(after); position < total && ids.size() < limit; position++) {
+                ids.add(result.select(position));
+            }
+            return new Match(ids, total, facets > 0 ? countTags(result, facets) : null);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Roaring64NavigableMap matching(Collection<Long> all, Collection<Long> any, Collection<Long> none) {
+        Roaring64NavigableMap result = new Roaring64NavigableMap();
+        if (!all.isEmpty()) {
+            List<Roaring64NavigableMap> required = new ArrayList<>(all.size());
+            for (Long tag : all) {
+                Roaring64NavigableMap bitmap = notesByTag.get(tag);
+                if (bitmap == null) {
+                    return result;
+                }
+                required.add(bitmap);
+            }
+            // Starting from the smallest bitmap keeps intermediate results small
+            required.sort(Comparator.comparingLong(Roaring64NavigableMap::getLongCardinality));
+            result.or(required.get(0));
+            for (int i = 1; i < required.size() && !result.isEmpty(); i++) {
+                result.and(required.get(i));
+            }
+        }
+        if (!any.isEmpty()) {
+            Roaring64NavigableMap union = new Roaring64NavigableMap();
+            for (Long tag : any) {
+                Roaring64NavigableMap bitmap = notesByTag.get(tag);
+                if (bitmap != null) {
+                    union.or(bitmap);
+                }
+            }
+            if (all.isEmpty()) {
+                result = union;
+            } else {
+                result.and(union);
+            }
+        }
+        if (all.isEmpty() && any.isEmpty()) {
+            result.or(notes);
+        }
+        for (Long tag : none) {
+            Roaring64NavigableMap bitmap = notesByTag.get(tag);
+            if (bitmap != null && !result.isEmpty()) {
+                result.andNot(bitmap);
+            }
+        }
+        return result;
+    }
+
+    private Map<Long, Long> countTags(Roaring64NavigableMap result, int limit) {
+        Map<Long, Long> counts = new HashMap<>();
+        result.forEach(id -> {
+            for (long tag : tagsByNote.get(id)) {
+                counts.merge(tag, 1L, Long::sum);
+            }
+        });
+        List<Map.Entry<Long, Long>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort(Map.Entry.<Long, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        Map<Long, Long> top = new LinkedHashMap<>();
+        for (Map.Entry<Long, Long> entry : entries.subList(0, Math.min(limit, entries.size()))) {
+            top.put(entry.getKey(), entry.getValue());
+        }
+        return top;
+    }
+
+    private void doIndex(Long id, long[] tags) {
+        doRemove(id);
+        notes.addLong(id);
+        tagsByNote.put(id, tags);
+        for (long tag : tags) {
+            notesByTag.computeIfAbsent(tag, key -> new Roaring64NavigableMap()).addLong(id);
+        }
+    }
+
+    private void doRemove(Long id) {
+        long[] tags = tagsByNote.remove(id);
+        if (tags == null) {
+            return;
+        }
+        notes.removeLong(id);
+        for (long tag : tags) {
+            Roaring64NavigableMap bitmap = notesByTag.get(tag);
+            if (bitmap != null) {
+                bitmap.removeLong(id);
+                if (bitmap.isEmpty()) {
+                    notesByTag.remove(tag);
+                }
+            }
+        }
+    }
+
+    private static long[] toArray(Collection<Long> tagIds) {
+        long[] tags = new long[tagIds.size()];
+        int i = 0;
+        for (Long tagId : tagIds) {
+            tags[i++] = tagId;
+        }
+        return tags;
+    }
+
+    /**
+     * Notes matched by tags query
+     */
+    @Getter
+    public static class Match {
+        private final List<Long> ids;
+        private final long total;
+        private final Map<Long, Long> facets;
+
+        public Match(List<Long> ids, long total, Map<Long, Long> facets) {
+            this.ids = ids;
+            this.total = total;
+            this.facets = facets;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package ru.rvr.notes.search;
+
+/**
+ * Thrown by search while search index is being built.
+ * Search without the index would miss words of long content, so it's not answered at all.
+ */
+public class SearchIndexNotReadyException extends RuntimeException {
+    /**
+     * Index of million notes is built in a few seconds
+     */
+    public static final int RETRY_AFTER_SECONDS = 5;
+
+    public SearchIndexNotReadyException() {
+        super("Search index is being built, retry later");
+    }
+}
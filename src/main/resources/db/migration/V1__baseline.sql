@@ -0,0 +1,49 @@
+-- Schema created by Hibernate (hbm2ddl update) at the time migrations were introduced.
+-- Constraint names are the ones generated by Hibernate, so both ways of schema management agree.
+
+create sequence hibernate_sequence start with 1;
+
+create table note_body (
+    id bigint not null,
+    data blob not null,
+    primary key (id)
+);
+
+create table note (
+    id bigint not null,
+    createdAt timestamp not null,
+    name varchar(255),
+    content varchar(255) not null,
+    contentSize integer,
+    updatedAt timestamp,
+    version bigint default 0 not null,
+    body_id bigint,
+    primary key (id)
+);
+create index idx_note_created_at_id on note (createdAt, id);
+
+create table tag (
+    id bigint not null,
+    name varchar(255) not null,
+    primary key (id)
+);
+alter table tag add constraint UK_1wdpsed5kna2y38hnbgrnhi5b unique (name);
+
+create table note_tag (
+    note_id bigint not null,
+    tags_id bigint not null
+);
+create index idx_note_tag_note_id_tags_id on note_tag (note_id, tags_id);
+create index idx_note_tag_tags_id_note_id on note_tag (tags_id, note_id);
+
+create table note_change (
+    id bigint not null,
+    changedAt timestamp not null,
+    noteId bigint not null,
+    type varchar(6) not null,
+    primary key (id)
+);
+
+alter table note add constraint FKku6nmnpp7fv1dnpam1q33tyd1 foreign key (body_id) references note_body;
+alter table note_tag add constraint FK8qgcr37843kjuyw3fl2kyna4 foreign key (tags_id) references tag;
+alter table note_tag add constraint FKbpls028o6tk9h70olktjkcpck foreign key (note_id) references note;
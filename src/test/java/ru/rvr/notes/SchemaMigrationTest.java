@@ -0,0 +1,20 @@
+package ru.rvr.notes;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+/**
+ * Checks that schema created by migrations matches entities, Hibernate validates it on start
+ */
+@SpringBootTest(properties = {
+        "notes.datasource.url=jdbc:h2:mem:migration;DB_CLOSE_DELAY=-1",
+        "notes.hibernate.ddl-auto=validate"
+})
+@ActiveProfiles("fast-startup")
+class SchemaMigrationTest {
+
+    @Test
+    void contextLoads() {
+    }
+}
@@ -0,0 +1,130 @@
+package ru.rvr.notes.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import ru.rvr.notes.admission.AdmissionControl;
+import ru.rvr.notes.admission.ConcurrencyLimiter;
+import ru.rvr.notes.admission.LimiterState;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Checks that calls over the limit of endpoint are rejected at once and that adaptive limit follows latency
+ */
+@SpringBootTest(properties = "notes.datasource.url=jdbc:h2:mem:admission;DB_CLOSE_DELAY=-1")
+@AutoConfigureMockMvc
+class AdmissionTest {
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Test
+    void callsOverLimitAreRejected() throws Exception {
+        mvc.perform(put("/admission/search")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"limit\":1,\"queue\":0,\"adaptive\":false}"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.limit").value(1));
+        mvc.perform(put("/admission/unknown").contentType(MediaType.APPLICATION_JSON).content("{\"limit\":1}"))
+                .andExpect(status().isBadRequest());
+        mvc.perform(put("/admission/search").contentType(MediaType.APPLICATION_JSON).content("{\"limit\":0}"))
+                .andExpect(status().isBadRequest());
+
+        String id = objectMapper.readTree(mvc.perform(put("/notes")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"name\":\"note\",\"content\":\"note\",\"tags\":[]}"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString()).get("id").asText();
+        ConcurrencyLimiter limiter = admissionControl.getLimiter("search");
+        assertEquals(ConcurrencyLimiter.Admission.ADMITTED, limiter.acquire());
+        try {
+            mvc.perform(get("/notes/search/note"))
+                    .andExpect(status().isTooManyRequests())
+                    .andExpect(header().exists("Retry-After"));
+            // Cheap endpoints are not limited
+            mvc.perform(get("/notes/" + id)).andExpect(status().isOk());
+
+            mvc.perform(put("/admission/search")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content("{\"queue\":1,\"maxWaitMs\":50}"))
+                    .andExpect(status().isOk());
+            mvc.perform(get("/notes/search/note"))
+                    .andExpect(status().isServiceUnavailable())
+                    .andExpect(header().exists("Retry-After"));
+        } finally {
+            limiter.release(0);
+        }
+        mvc.perform(get("/notes/search/note")).andExpect(status().isOk());
+        mvc.perform(get("/admission"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[?(@.name == 'search')].rejected").value(1))
+                .andExpect(jsonPath("$[?(@.name == 'search')].timedOut").value(1))
+                .andExpect(jsonPath("$[?(@.name == 'search')].inFlight").value(0));
+
+        // Lists by tag ids and changes share the limiter of lists
+        ConcurrencyLimiter lists = admissionControl.getLimiter("lists");
+        LimiterState state = lists.getState();
+        lists.configure(1, 0, 0, false);
+        assertEquals(ConcurrencyLimiter.Admission.ADMITTED, lists.acquire());
+        try {
+            mvc.perform(get("/notes/tags?all=1")).andExpect(status().isTooManyRequests());
+            mvc.perform(get("/notes/changes")).andExpect(status().isTooManyRequests());
+        } finally {
+            lists.release(0);
+            lists.configure(state.getMaxLimit(), state.getQueue(), state.getMaxWaitMs(), state.isAdaptive());
+        }
+    }
+
+    @Test
+    void adaptiveLimitFollowsLatency() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 4, 0, 0, true);
+        calls(limiter, 1, 1);
+        assertEquals(4, limiter.getState().getLimit());
+        calls(limiter, 10, 10);
+        int lowered = limiter.getState().getLimit();
+        assertTrue(lowered < 4);
+        assertEquals(ConcurrencyLimiter.Admission.ADMITTED, limiter.acquire());
+        for (int i = 1; i < lowered; i++) {
+            limiter.acquire();
+        }
+        assertEquals(ConcurrencyLimiter.Admission.QUEUE_FULL, limiter.acquire());
+        for (int i = 0; i < lowered; i++) {
+            limiter.release(1_000_000);
+        }
+        calls(limiter, 1, 10);
+        assertEquals(4, limiter.getState().getLimit());
+    }
+
+    /**
+     * Makes windows of calls that use all slots of the limiter and take specified time
+     */
+    private static void calls(ConcurrencyLimiter limiter, long millis, int windows) throws InterruptedException {
+        int remaining = windows * 20;
+        while (remaining > 0) {
+            int slots = limiter.getState().getLimit();
+            for (int i = 0; i < slots; i++) {
+                assertEquals(ConcurrencyLimiter.Admission.ADMITTED, limiter.acquire());
+            }
+            for (int i = 0; i < slots; i++) {
+                limiter.release(millis * 1_000_000);
+            }
+            remaining -= slots;
+        }
+    }
+}
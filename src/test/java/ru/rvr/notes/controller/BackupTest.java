@@ -0,0 +1,198 @@
+package ru.rvr.notes.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.util.StreamUtils;
+import ru.rvr.notes.NotesApplication;
+import ru.rvr.notes.entity.Note;
+import ru.rvr.notes.entity.NoteChange;
+import ru.rvr.notes.repository.BackupSummary;
+import ru.rvr.notes.repository.NoteBackup;
+import ru.rvr.notes.repository.NoteChangeRepository;
+import ru.rvr.notes.repository.NoteRepository;
+import ru.rvr.notes.repository.RestoreInProgressException;
+
+import javax.naming.directory.InvalidAttributesException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Checks that backup of running application is restored into another database with the same notes
+ */
+@SpringBootTest(properties = "notes.datasource.url=jdbc:h2:mem:backup;DB_CLOSE_DELAY=-1")
+@AutoConfigureMockMvc
+class BackupTest {
+    private static final int NOTES = 30;
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Test
+    void backupIsRestored() throws Exception {
+        StringBuilder longContent = new StringBuilder();
+        while (longContent.length() < 1000) {
+            longContent.append("long content 📝 ");
+        }
+        List<JsonNode> notes = new ArrayList<>();
+        for (int i = 0; i < NOTES; i++) {
+            String content = i % 3 == 0 ? longContent.toString() + i : "short " + i;
+            notes.add(json(mvc.perform(put("/notes")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content(objectMapper.writeValueAsString(note("note " + i, content, "tag" + i % 4))))
+                    .andExpect(status().isOk())
+                    .andReturn()));
+        }
+        JsonNode updated = notes.get(0);
+        notes.set(0, json(mvc.perform(post("/notes")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"id\":" + updated.get("id") + ",\"name\":\"updated\",\"content\":\"updated\",\"tags\":[]}"))
+                .andExpect(status().isOk())
+                .andReturn()));
+
+        MvcResult export = mvc.perform(get("/backup")).andReturn();
+        byte[] backup = mvc.perform(asyncDispatch(export)).andExpect(status().isOk()).andReturn().getResponse().getContentAsByteArray();
+        mvc.perform(put("/backup").contentType("application/gzip").content(backup)).andExpect(status().isBadRequest());
+
+        // Backup of one database is restored into two shards
+        try (ConfigurableApplicationContext restored = new SpringApplicationBuilder(NotesApplication.class)
+                .web(WebApplicationType.NONE)
+                .run("--notes.datasource.url=jdbc:h2:mem:restored;DB_CLOSE_DELAY=-1", "--notes.shards=2")) {
+            NoteBackup noteBackup = restored.getBean(NoteBackup.class);
+            BackupSummary summary = noteBackup.restore(new ByteArrayInputStream(backup));
+            assertEquals(NOTES, summary.getNotes());
+            assertEquals(4, summary.getTags());
+            assertThrows(InvalidAttributesException.class, () -> noteBackup.restore(new ByteArrayInputStream(backup)));
+
+            NoteRepository noteRepository = restored.getBean(NoteRepository.class);
+            long maxId = 0;
+            for (JsonNode note : notes) {
+                Note copy = noteRepository.getById(note.get("id").asLong());
+                assertEquals(note.get("name").asText(), copy.getName());
+                assertEquals(note.get("content").asText(), copy.getContent());
+                assertEquals(note.get("version").asLong(), copy.getVersion());
+                assertEquals(note.get("tags").size(), copy.getTags().size());
+                maxId = Math.max(maxId, copy.getId());
+            }
+            assertEquals(1, noteRepository.getBySearch("updated", 10).size());
+            Set<Long> changed = new HashSet<>();
+            for (NoteChange change : restored.getBean(NoteChangeRepository.class).getSince(0, 1000)) {
+                changed.add(change.getNoteId());
+            }
+            assertEquals(NOTES, changed.size());
+            Note added = noteRepository.save(new Note("new", "new", LocalDateTime.now(), new ArrayList<>()));
+            assertTrue(added.getId() > maxId);
+        }
+
+        // Notes aren't written during restore, ids of backup aren't generated after failed restore either
+        byte[] invalid = gzip(new String(gunzip(backup), StandardCharsets.UTF_8) + "{\"type\":\"note\",\"id\":1}\n");
+        try (ConfigurableApplicationContext failed = new SpringApplicationBuilder(NotesApplication.class)
+                .web(WebApplicationType.NONE)
+                .run("--notes.datasource.url=jdbc:h2:mem:failed;DB_CLOSE_DELAY=-1")) {
+            NoteBackup noteBackup = failed.getBean(NoteBackup.class);
+            // Backup is sent slowly, so writes are attempted while it's restored
+            PipedOutputStream upload = new PipedOutputStream();
+            PipedInputStream download = new PipedInputStream(upload);
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                Future<BackupSummary> restore = executor.submit(() -> noteBackup.restore(download));
+                long deadline = System.currentTimeMillis() + 10_000;
+                while (!rejected(noteBackup) && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                NoteController noteController = failed.getBean(NoteController.class);
+                assertThrows(RestoreInProgressException.class,
+                        () -> noteController.addNote(new Note("during restore", "during restore", null, new ArrayList<>())));
+                upload.write(invalid);
+                upload.close();
+                ExecutionException failure = assertThrows(ExecutionException.class, restore::get);
+                assertTrue(failure.getCause() instanceof InvalidAttributesException);
+            } finally {
+                executor.shutdownNow();
+            }
+            Note added = failed.getBean(NoteRepository.class).save(new Note("new", "new", LocalDateTime.now(), new ArrayList<>()));
+            for (JsonNode note : notes) {
+                assertTrue(added.getId() > note.get("id").asLong());
+            }
+        }
+    }
+
+    /**
+     * @return whether writes are rejected because backup is being restored
+     */
+    private static boolean rejected(NoteBackup noteBackup) {
+        try {
+            noteBackup.write(() -> null);
+            return false;
+        } catch (RestoreInProgressException e) {
+            return true;
+        }
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return StreamUtils.copyToByteArray(inputStream);
+        }
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try (OutputStream outputStream = new GZIPOutputStream(data)) {
+            outputStream.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return data.toByteArray();
+    }
+
+    private static Map<String, Object> note(String name, String content, String tag) {
+        Map<String, Object> note = new HashMap<>();
+        note.put("name", name);
+        note.put("content", content);
+        note.put("tags", Collections.singletonList(Collections.singletonMap("name", tag)));
+        return note;
+    }
+
+    private JsonNode json(MvcResult result) throws Exception {
+        return objectMapper.readTree(result.getResponse().getContentAsString());
+    }
+}
@@ -0,0 +1,72 @@
+package ru.rvr.notes.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Checks that invalid notes of batch don't fail valid ones and every note gets its own result
+ */
+@SpringBootTest(properties = "notes.datasource.url=jdbc:h2:mem:batch;DB_CLOSE_DELAY=-1")
+@AutoConfigureMockMvc
+class BatchTest {
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Test
+    void validNotesAreSavedWithInvalidOnes() throws Exception {
+        StringBuilder longName = new StringBuilder();
+        while (longName.length() <= 300) {
+            longName.append("name ");
+        }
+        // Notes without content and with unknown tag are rejected before saving,
+        // too long name fails batched insert of the chunk, then its notes are saved one by one
+        String batch = "[{\"name\":\"first\",\"content\":\"first\",\"tags\":[{\"name\":\"batch\"}]}," +
+                "{\"name\":\"no content\",\"tags\":[]}," +
+                "{\"name\":\"unknown tag\",\"content\":\"text\",\"tags\":[{\"id\":999999}]}," +
+                "{\"name\":\"" + longName + "\",\"content\":\"text\",\"tags\":[]}," +
+                "{\"name\":\"last\",\"content\":\"last\",\"tags\":[{\"name\":\"batch\"}]}]";
+        JsonNode results = objectMapper.readTree(mvc.perform(put("/notes/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(batch))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString());
+
+        assertEquals(5, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i, results.get(i).get("index").asInt());
+        }
+        for (int i : new int[]{1, 2, 3}) {
+            assertFalse(results.get(i).has("id"));
+            assertTrue(results.get(i).get("error").asText().length() > 0);
+        }
+        mvc.perform(get("/notes/" + results.get(0).get("id")))
+                .andExpect(jsonPath("$.content").value("first"))
+                .andExpect(jsonPath("$.tags[0].name").value("batch"));
+        mvc.perform(get("/notes/" + results.get(4).get("id")))
+                .andExpect(jsonPath("$.content").value("last"))
+                .andExpect(jsonPath("$.tags[0].name").value("batch"));
+
+        String tooLarge = "[" + String.join(",", Collections.nCopies(10_001, "{\"content\":\"x\",\"tags\":[]}")) + "]";
+        mvc.perform(put("/notes/batch").contentType(MediaType.APPLICATION_JSON).content(tooLarge))
+                .andExpect(status().isBadRequest());
+    }
+}
@@ -0,0 +1,102 @@
+package ru.rvr.notes.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.hasItem;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Checks that notes are written and read as CBOR and Smile and that responses of different formats are cached separately
+ */
+@SpringBootTest(properties = "notes.datasource.url=jdbc:h2:mem:formats;DB_CLOSE_DELAY=-1")
+@AutoConfigureMockMvc
+class FormatTest {
+    @Autowired
+    private MockMvc mvc;
+
+    private final ObjectMapper cbor = new CBORMapper();
+    private final ObjectMapper smile = new SmileMapper();
+
+    @Test
+    void binaryFormatsAreRoundTripped() throws Exception {
+        JsonNode cborNote = send(cbor, MediaTypes.CBOR, "cbor note");
+        JsonNode smileNote = send(smile, MediaTypes.SMILE, "smile note");
+
+        MvcResult list = mvc.perform(get("/notes?content=true").accept(MediaTypes.CBOR))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaTypes.CBOR))
+                .andExpect(header().stringValues(HttpHeaders.VARY, hasItem(HttpHeaders.ACCEPT)))
+                .andReturn();
+        Map<Long, String> contents = new HashMap<>();
+        for (JsonNode note : cbor.readTree(list.getResponse().getContentAsByteArray())) {
+            contents.put(note.get("id").asLong(), note.get("content").asText());
+        }
+        assertEquals("cbor note", contents.get(cborNote.get("id").asLong()));
+        assertEquals("smile note", contents.get(smileNote.get("id").asLong()));
+
+        Set<Long> ids = new HashSet<>();
+        for (JsonNode note : smile.readTree(mvc.perform(get("/notes").accept(MediaTypes.SMILE))
+                .andExpect(content().contentType(MediaTypes.SMILE))
+                .andReturn().getResponse().getContentAsByteArray())) {
+            ids.add(note.get("id").asLong());
+        }
+        assertEquals(contents.keySet(), ids);
+
+        // The same data has the same ETag in every format, Vary tells caches to keep formats apart
+        String etag = list.getResponse().getHeader(HttpHeaders.ETAG);
+        mvc.perform(get("/notes").accept(MediaTypes.SMILE).header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().stringValues(HttpHeaders.VARY, hasItem(HttpHeaders.ACCEPT)));
+        mvc.perform(get("/notes/" + smileNote.get("id").asLong()).accept(MediaTypes.CBOR))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaTypes.CBOR))
+                .andExpect(header().stringValues(HttpHeaders.VARY, hasItem(HttpHeaders.ACCEPT)));
+        mvc.perform(get("/tags").accept(MediaTypes.SMILE))
+                .andExpect(status().isOk())
+                .andExpect(header().stringValues(HttpHeaders.VARY, hasItem(HttpHeaders.ACCEPT)));
+    }
+
+    /**
+     * Adds note in binary format and reads response in the same format
+     */
+    private JsonNode send(ObjectMapper mapper, String mediaType, String content) throws Exception {
+        Map<String, Object> note = new HashMap<>();
+        note.put("name", content);
+        note.put("content", content);
+        note.put("tags", Collections.singletonList(Collections.singletonMap("name", "binary")));
+        byte[] response = mvc.perform(put("/notes")
+                .contentType(mediaType)
+                .accept(mediaType)
+                .content(mapper.writeValueAsBytes(note)))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(mediaType))
+                .andReturn().getResponse().getContentAsByteArray();
+        JsonNode saved = mapper.readTree(response);
+        assertEquals(content, saved.get("content").asText());
+        assertEquals("binary", saved.get("tags").get(0).get("name").asText());
+        assertTrue(saved.get("id").asLong() > 0);
+        return saved;
+    }
+}
@@ -0,0 +1,122 @@
+package ru.rvr.notes.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import ru.rvr.notes.entity.Note;
+import ru.rvr.notes.repository.NoteGroupCommitter;
+import ru.rvr.notes.repository.NoteRepository;
+import ru.rvr.notes.repository.TagRepository;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Checks that notes added concurrently are committed in groups and that saves after shutdown or failure don't wait
+ */
+@SpringBootTest(properties = {
+        "notes.datasource.url=jdbc:h2:mem:group;DB_CLOSE_DELAY=-1",
+        "notes.group-commit.enabled=true",
+        "notes.group-commit.max-delay-ms=50"
+})
+@AutoConfigureMockMvc
+class GroupCommitTest {
+    private static final int THREADS = 8;
+    private static final int NOTES = 40;
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private NoteRepository noteRepository;
+
+    @Autowired
+    private TagRepository tagRepository;
+
+    @Test
+    void concurrentNotesAreCommittedTogether() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Long>> ids = new ArrayList<>();
+        try {
+            for (int i = 0; i < NOTES; i++) {
+                String content = "{\"name\":\"note " + i + "\",\"content\":\"grouped " + i + "\",\"tags\":[{\"name\":\"group\"}]}";
+                ids.add(executor.submit(() -> {
+                    start.await();
+                    String response = mvc.perform(put("/notes").contentType(MediaType.APPLICATION_JSON).content(content))
+                            .andExpect(status().isOk())
+                            .andReturn().getResponse().getContentAsString();
+                    return objectMapper.readTree(response).get("id").asLong();
+                }));
+            }
+            start.countDown();
+            Set<Long> distinct = new HashSet<>();
+            for (Future<Long> id : ids) {
+                distinct.add(id.get());
+            }
+            assertEquals(NOTES, distinct.size());
+        } finally {
+            executor.shutdownNow();
+        }
+        DistributionSummary groupSize = meterRegistry.get("notes.group.commit.size").summary();
+        assertEquals(NOTES, groupSize.totalAmount());
+        assertTrue(groupSize.count() < NOTES);
+        assertTrue(groupSize.max() > 1);
+    }
+
+    @Test
+    void notesAreNotQueuedAfterStop() throws InterruptedException {
+        NoteGroupCommitter committer = new NoteGroupCommitter(noteRepository, tagRepository, meterRegistry, 100, 5);
+        committer.start();
+        committer.stop();
+        assertThrows(IllegalStateException.class,
+                () -> committer.save("late", "late", LocalDateTime.now(), Collections.emptyList()));
+    }
+
+    @Test
+    void errorOfGroupFailsItsCallersAndKeepsWriter() throws InterruptedException {
+        NoteRepository failing = new NoteRepository(null, null, null) {
+            @Override
+            public List<Note> saveAll(List<Note> entities) {
+                throw new OutOfMemoryError("group");
+            }
+        };
+        NoteGroupCommitter committer = new NoteGroupCommitter(failing, tagRepository, meterRegistry, 100, 5);
+        committer.start();
+        try {
+            for (int i = 0; i < 2; i++) {
+                IllegalStateException e = assertThrows(IllegalStateException.class,
+                        () -> committer.save("failed", "failed", LocalDateTime.now(), Collections.emptyList()));
+                assertTrue(e.getCause() instanceof OutOfMemoryError);
+            }
+        } finally {
+            committer.stop();
+        }
+    }
+}
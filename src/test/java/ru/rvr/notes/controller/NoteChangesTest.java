@@ -0,0 +1,127 @@
+package ru.rvr.notes.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Checks that change feed returns inserts, updates and deletions after requested revision exactly once
+ */
+@SpringBootTest(properties = "notes.datasource.url=jdbc:h2:mem:changes;DB_CLOSE_DELAY=-1")
+@AutoConfigureMockMvc
+class NoteChangesTest {
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Test
+    void changesAfterRevisionAreReturnedInOrder() throws Exception {
+        long since = latestRevision();
+        long updated = add("updated", "first");
+        long deleted = add("deleted", "deleted");
+        mvc.perform(post("/notes")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"id\":" + updated + ",\"name\":\"updated\",\"content\":\"second\",\"tags\":[]}"))
+                .andExpect(status().isOk());
+        mvc.perform(delete("/notes").contentType(MediaType.APPLICATION_JSON).content("{\"id\":" + deleted + "}"))
+                .andExpect(status().isOk());
+
+        JsonNode batch = changes(since, 100);
+        JsonNode changes = batch.get("changes");
+        assertEquals(4, changes.size());
+        assertChange(changes.get(0), "INSERT", updated);
+        assertChange(changes.get(1), "INSERT", deleted);
+        assertChange(changes.get(2), "UPDATE", updated);
+        assertChange(changes.get(3), "DELETE", deleted);
+        long revision = since;
+        for (JsonNode change : changes) {
+            assertTrue(change.get("revision").asLong() > revision);
+            revision = change.get("revision").asLong();
+        }
+        assertEquals(revision, batch.get("next").asLong());
+
+        // Changed notes are sent in current state, deleted notes only by id
+        assertEquals("second", changes.get(0).get("note").get("content").asText());
+        assertEquals("second", changes.get(2).get("note").get("content").asText());
+        assertFalse(changes.get(1).has("note"));
+        assertFalse(changes.get(3).has("note"));
+
+        // Nothing changed since the last revision, the same revision is returned
+        JsonNode empty = changes(revision, 100);
+        assertEquals(0, empty.get("changes").size());
+        assertEquals(revision, empty.get("next").asLong());
+    }
+
+    @Test
+    void limitedBatchesContinueFromNext() throws Exception {
+        long since = latestRevision();
+        long first = add("first", "first");
+        long second = add("second", "second");
+        long third = add("third", "third");
+
+        JsonNode batch = changes(since, 2);
+        assertEquals(2, batch.get("changes").size());
+        assertChange(batch.get("changes").get(0), "INSERT", first);
+        assertChange(batch.get("changes").get(1), "INSERT", second);
+        JsonNode rest = changes(batch.get("next").asLong(), 2);
+        assertEquals(1, rest.get("changes").size());
+        assertChange(rest.get("changes").get(0), "INSERT", third);
+        assertEquals(rest.get("changes").get(0).get("revision").asLong(), rest.get("next").asLong());
+
+        mvc.perform(get("/notes/changes?limit=0")).andExpect(status().isBadRequest());
+    }
+
+    private void assertChange(JsonNode change, String type, long id) {
+        assertEquals(type, change.get("type").asText());
+        assertEquals(id, change.get("id").asLong());
+    }
+
+    /**
+     * Reads all existing changes, so test sees only its own ones
+     */
+    private long latestRevision() throws Exception {
+        long since = 0;
+        while (true) {
+            JsonNode batch = changes(since, 1000);
+            if (batch.get("changes").size() == 0) {
+                return since;
+            }
+            since = batch.get("next").asLong();
+        }
+    }
+
+    private JsonNode changes(long since, int limit) throws Exception {
+        return json(mvc.perform(get("/notes/changes?since=" + since + "&limit=" + limit))
+                .andExpect(status().isOk())
+                .andReturn());
+    }
+
+    private long add(String name, String content) throws Exception {
+        return json(mvc.perform(put("/notes")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(String.format("{\"name\":\"%s\",\"content\":\"%s\",\"tags\":[]}", name, content)))
+                .andExpect(status().isOk())
+                .andReturn()).get("id").asLong();
+    }
+
+    private JsonNode json(MvcResult result) throws Exception {
+        return objectMapper.readTree(result.getResponse().getContentAsString());
+    }
+}
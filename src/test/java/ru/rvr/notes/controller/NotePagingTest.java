@@ -0,0 +1,143 @@
+package ru.rvr.notes.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Checks that pages of note lists follow each other without gaps and duplicates
+ * when many notes have the same created time
+ */
+@SpringBootTest(properties = "notes.datasource.url=jdbc:h2:mem:paging;DB_CLOSE_DELAY=-1")
+@AutoConfigureMockMvc
+class NotePagingTest {
+    private static final int BATCH = 10;
+    private static final int PAGE = 3;
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private final List<Long> ids = new ArrayList<>();
+
+    private String tagId;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        for (JsonNode note : json(mvc.perform(get("/notes")).andReturn())) {
+            ids.add(note.get("id").asLong());
+        }
+        if (ids.isEmpty()) {
+            ids.add(add("{\"name\":\"first\",\"content\":\"first\",\"tags\":[{\"name\":\"paged\"}]}"));
+            // Notes of one batch have the same created time, so pages are split inside the tie
+            StringBuilder batch = new StringBuilder("[");
+            for (int i = 0; i < BATCH; i++) {
+                batch.append(i == 0 ? "" : ",").append(String.format("{\"name\":\"tie %d\",\"content\":\"tie %d\",\"tags\":[{\"name\":\"paged\"}]}", i, i));
+            }
+            batch.append("]");
+            for (JsonNode result : json(mvc.perform(put("/notes/batch").contentType(MediaType.APPLICATION_JSON).content(batch.toString()))
+                    .andExpect(status().isOk())
+                    .andReturn())) {
+                ids.add(result.get("id").asLong());
+            }
+            ids.add(add("{\"name\":\"last\",\"content\":\"last\",\"tags\":[{\"name\":\"paged\"}]}"));
+        }
+        for (JsonNode tag : json(mvc.perform(get("/tags")).andReturn())) {
+            if (tag.get("name").asText().equals("paged")) {
+                tagId = tag.get("id").asText();
+            }
+        }
+    }
+
+    @Test
+    void notesWithSameCreatedTimeAreOrderedById() throws Exception {
+        List<JsonNode> notes = walk("/notes?limit=" + PAGE);
+        for (int i = 1; i < notes.size(); i++) {
+            LocalDateTime previous = LocalDateTime.parse(notes.get(i - 1).get("createdAt").asText());
+            LocalDateTime current = LocalDateTime.parse(notes.get(i).get("createdAt").asText());
+            assertTrue(previous.isBefore(current)
+                    || previous.equals(current) && notes.get(i - 1).get("id").asLong() < notes.get(i).get("id").asLong());
+        }
+        Set<LocalDateTime> tie = new HashSet<>();
+        for (int i = 1; i <= BATCH; i++) {
+            tie.add(LocalDateTime.parse(notes.get(i).get("createdAt").asText()));
+        }
+        assertEquals(1, tie.size());
+    }
+
+    @Test
+    void everyListIsWalkedToTheEnd() throws Exception {
+        assertEquals(ids, idsOf(walk("/notes?limit=" + PAGE)));
+        assertEquals(ids, idsOf(walk("/notes?limit=" + PAGE + "&fields=id,createdAt")));
+        assertEquals(ids, idsOf(walk("/notes/tag/" + tagId + "?limit=" + PAGE)));
+        assertEquals(ids, idsOf(walk("/notes/since/2000-01-01T00:00:00?limit=" + PAGE)));
+    }
+
+    @Test
+    void lastFullPageHasNoNextCursor() throws Exception {
+        MvcResult result = mvc.perform(get("/notes?limit=" + ids.size())).andExpect(status().isOk()).andReturn();
+        assertEquals(ids.size(), json(result).size());
+        String cursor = result.getResponse().getHeader("X-Next-Cursor");
+        if (cursor != null) {
+            assertEquals(0, json(mvc.perform(get("/notes?limit=" + ids.size() + "&after=" + cursor)).andReturn()).size());
+        }
+        mvc.perform(get("/notes?after=invalid")).andExpect(status().isBadRequest());
+    }
+
+    /**
+     * Reads all pages following X-Next-Cursor header
+     */
+    private List<JsonNode> walk(String uri) throws Exception {
+        List<JsonNode> notes = new ArrayList<>();
+        String cursor = null;
+        do {
+            MvcResult result = mvc.perform(get(uri + (cursor == null ? "" : "&after=" + cursor)))
+                    .andExpect(status().isOk())
+                    .andReturn();
+            JsonNode page = json(result);
+            assertTrue(page.size() <= PAGE);
+            page.forEach(notes::add);
+            cursor = result.getResponse().getHeader("X-Next-Cursor");
+        } while (cursor != null);
+        return notes;
+    }
+
+    private static List<Long> idsOf(List<JsonNode> notes) {
+        List<Long> ids = new ArrayList<>(notes.size());
+        for (JsonNode note : notes) {
+            ids.add(note.get("id").asLong());
+        }
+        return ids;
+    }
+
+    private Long add(String note) throws Exception {
+        return json(mvc.perform(put("/notes").contentType(MediaType.APPLICATION_JSON).content(note))
+                .andExpect(status().isOk())
+                .andReturn()).get("id").asLong();
+    }
+
+    private JsonNode json(MvcResult result) throws Exception {
+        return objectMapper.readTree(result.getResponse().getContentAsString());
+    }
+}
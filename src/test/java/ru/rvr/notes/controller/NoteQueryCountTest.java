@@ -0,0 +1,295 @@
+package ru.rvr.notes.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import ru.rvr.notes.entity.Note;
+import ru.rvr.notes.entity.Tag;
+import ru.rvr.notes.repository.TagRepository;
+
+import javax.persistence.EntityManagerFactory;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Checks that number of SQL statements per list endpoint doesn't depend on number of notes
+ * and that statistics of the same notes are right
+ */
+@SpringBootTest(properties = {
+        "notes.datasource.url=jdbc:h2:mem:query-count;DB_CLOSE_DELAY=-1",
+        "notes.hibernate.statistics=true"
+})
+@AutoConfigureMockMvc
+class NoteQueryCountTest {
+    private static final int NOTES = 30;
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private TagRepository tagRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private Statistics statistics;
+
+    private Long tagId;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        if (tagRepository.getByName("common") == null) {
+            for (int i = 0; i < NOTES; i++) {
+                mvc.perform(put("/notes")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(String.format("{\"name\":\"note %d\",\"content\":\"text %d\"," +
+                                "\"tags\":[{\"name\":\"common\"},{\"name\":\"tag%d\"}]}", i, i, i)))
+                        .andExpect(status().isOk());
+            }
+        }
+        Tag tag = tagRepository.getByName("common");
+        tagId = tag.getId();
+    }
+
+    @Test
+    void getAllPage() throws Exception {
+        assertStatements(get("/notes?limit=" + NOTES), 2);
+    }
+
+    @Test
+    void getAllUnpaged() throws Exception {
+        assertStatements(get("/notes"), 2);
+    }
+
+    @Test
+    void getByTag() throws Exception {
+        assertStatements(get("/notes/tag/" + tagId + "?limit=" + NOTES), 3);
+    }
+
+    @Test
+    void getByTagsWithFacets() throws Exception {
+        statistics.clear();
+        mvc.perform(get("/notes/tags?any=" + tagId + "&limit=" + NOTES + "&fields=id&facets=" + (NOTES + 1)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.facets.length()").value(NOTES + 1))
+                .andExpect(jsonPath("$.facets[?(@.name == 'common')].count").value(NOTES))
+                .andExpect(jsonPath("$.facets[?(@.name == 'tag7')].count").value(1));
+        // Names of all facet tags are loaded together
+        assertStatementCount(2);
+    }
+
+    @Test
+    void getSinceDateTime() throws Exception {
+        assertStatements(get("/notes/since/2000-01-01T00:00:00"), 2);
+    }
+
+    @Test
+    void getBySearch() throws Exception {
+        assertStatements(get("/notes/search/text"), 1);
+        mvc.perform(get("/notes/search/text?limit=" + Integer.MAX_VALUE)).andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void projection() throws Exception {
+        statistics.clear();
+        mvc.perform(get("/notes?limit=" + NOTES + "&fields=id,name"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].name").exists())
+                .andExpect(jsonPath("$[0].createdAt").doesNotExist())
+                .andExpect(jsonPath("$[0].tags").doesNotExist());
+        assertStatementCount(1);
+        assertEquals(0, statistics.getEntityLoadCount());
+    }
+
+    @Test
+    void projectionWithTags() throws Exception {
+        statistics.clear();
+        mvc.perform(get("/notes/tag/" + tagId + "?fields=id,tags,size"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].tags[0].name").exists())
+                .andExpect(jsonPath("$[0].size").exists());
+        assertStatementCount(3);
+    }
+
+    @Test
+    void countByCreatedAt() throws Exception {
+        assertStatements(get("/notes/stats/created?interval=hour&from=2000-01-01T00:00:00&to=2100-01-01T00:00:00"), 1);
+        JsonNode buckets = objectMapper.readTree(mvc.perform(get("/notes/stats/created?interval=day&from=2000-01-01T00:00:00&to=2100-01-01T00:00:00"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString());
+        // All notes are created during the test run, so they are in one or, after midnight, two day buckets
+        assertTrue(buckets.size() >= 1 && buckets.size() <= 2);
+        long total = 0;
+        for (JsonNode bucket : buckets) {
+            assertEquals(LocalTime.MIDNIGHT, LocalDateTime.parse(bucket.get("start").asText()).toLocalTime());
+            assertTrue(bucket.get("count").asLong() > 0);
+            total += bucket.get("count").asLong();
+        }
+        assertEquals(NOTES, total);
+        mvc.perform(get("/notes/stats/created?interval=day&from=2000-01-01T00:00:00&to=2000-01-02T00:00:00"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(0));
+    }
+
+    @Test
+    void countByTag() throws Exception {
+        assertStatements(get("/notes/stats/tags?from=2000-01-01T00:00:00&to=2100-01-01T00:00:00"), 1);
+        // Every note has common tag and its own one
+        mvc.perform(get("/notes/stats/tags?from=2000-01-01T00:00:00&to=2100-01-01T00:00:00"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(NOTES + 1))
+                .andExpect(jsonPath("$[0].id").value(tagId))
+                .andExpect(jsonPath("$[0].name").value("common"))
+                .andExpect(jsonPath("$[0].count").value(NOTES))
+                .andExpect(jsonPath("$[?(@.name == 'tag7')].count").value(1));
+        mvc.perform(get("/notes/stats/tags?from=2000-01-01T00:00:00&to=2000-01-02T00:00:00"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(0));
+    }
+
+    @Test
+    void streamAll() throws Exception {
+        statistics.clear();
+        MvcResult result = mvc.perform(get("/notes").accept("application/x-ndjson")).andReturn();
+        mvc.perform(asyncDispatch(result)).andExpect(status().isOk());
+        assertStatementCount(2);
+    }
+
+    @Test
+    void notModifiedWithoutStatements() throws Exception {
+        String etag = mvc.perform(get("/notes")).andExpect(status().isOk()).andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        statistics.clear();
+        mvc.perform(get("/notes").header(HttpHeaders.IF_NONE_MATCH, etag)).andExpect(status().isNotModified());
+        assertStatementCount(0);
+    }
+
+    @Test
+    void longContentLoadedOnlyWhenRequested() throws Exception {
+        StringBuilder content = new StringBuilder();
+        while (content.length() <= Note.PREVIEW_LENGTH * 4) {
+            content.append("long content ");
+        }
+        String response = mvc.perform(put("/notes")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(String.format("{\"name\":\"long\",\"content\":\"%s\",\"tags\":[]}", content)))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        String id = response.substring(response.indexOf(':') + 1, response.indexOf(','));
+        try {
+            statistics.clear();
+            mvc.perform(get("/notes/search/long"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$[0].size").value(content.length()))
+                    .andExpect(jsonPath("$[0].preview").value(content.substring(0, Note.PREVIEW_LENGTH)))
+                    .andExpect(jsonPath("$[0].content").doesNotExist());
+            assertStatementCount(1);
+            mvc.perform(get("/notes/search/long?content=true")).andExpect(jsonPath("$[0].content").value(content.toString()));
+            mvc.perform(get("/notes/" + id)).andExpect(jsonPath("$.content").value(content.toString()));
+        } finally {
+            mvc.perform(delete("/notes").contentType(MediaType.APPLICATION_JSON).content("{\"id\":" + id + "}"))
+                    .andExpect(status().isOk());
+        }
+    }
+
+    @Test
+    void newTagKeepsCachedNotes() throws Exception {
+        String id = mvc.perform(get("/notes?limit=1&fields=id")).andReturn().getResponse().getContentAsString()
+                .replaceAll("\\D", "");
+        mvc.perform(get("/notes/" + id)).andExpect(status().isOk());
+        mvc.perform(get("/tags")).andExpect(jsonPath("$[?(@.name == 'fresh')]").doesNotExist());
+        String response = mvc.perform(put("/notes")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"name\":\"fresh\",\"content\":\"fresh\",\"tags\":[{\"name\":\"fresh\"}]}"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        String freshId = response.substring(response.indexOf(':') + 1, response.indexOf(','));
+        try {
+            mvc.perform(get("/tags")).andExpect(jsonPath("$[?(@.name == 'fresh')]").exists());
+            // Note, its tags and tag entities are still in second-level cache
+            assertStatements(get("/notes/" + id), 0);
+        } finally {
+            mvc.perform(delete("/notes").contentType(MediaType.APPLICATION_JSON).content("{\"id\":" + freshId + "}"))
+                    .andExpect(status().isOk());
+        }
+    }
+
+    @Test
+    void conditionalUpdate() throws Exception {
+        String response = mvc.perform(put("/notes")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"name\":\"versioned\",\"content\":\"first\",\"tags\":[]}"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        String id = response.substring(response.indexOf(':') + 1, response.indexOf(','));
+        try {
+            String etag = mvc.perform(get("/notes/" + id)).andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+            assertFalse(etag.startsWith("W/"));
+            mvc.perform(get("/notes/" + id).header(HttpHeaders.IF_NONE_MATCH, etag)).andExpect(status().isNotModified());
+            // If-Match is compared strongly, weak ETag of the same version doesn't match
+            mvc.perform(post("/notes")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .header(HttpHeaders.IF_MATCH, "W/" + etag)
+                    .content("{\"id\":" + id + ",\"name\":\"versioned\",\"content\":\"weak\",\"tags\":[]}"))
+                    .andExpect(status().isPreconditionFailed());
+            statistics.clear();
+            String newEtag = mvc.perform(post("/notes")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .header(HttpHeaders.IF_MATCH, etag)
+                    .content("{\"id\":" + id + ",\"name\":\"versioned\",\"content\":\"second\",\"tags\":[]}"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.content").value("second"))
+                    .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+            // Update of note row and change log entry
+            assertStatementCount(2);
+            mvc.perform(post("/notes")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .header(HttpHeaders.IF_MATCH, etag)
+                    .content("{\"id\":" + id + ",\"name\":\"versioned\",\"content\":\"stale\",\"tags\":[]}"))
+                    .andExpect(status().isPreconditionFailed());
+            mvc.perform(get("/notes/" + id))
+                    .andExpect(jsonPath("$.content").value("second"))
+                    .andExpect(header().string(HttpHeaders.ETAG, newEtag));
+        } finally {
+            mvc.perform(delete("/notes").contentType(MediaType.APPLICATION_JSON).content("{\"id\":" + id + "}"))
+                    .andExpect(status().isOk());
+        }
+    }
+
+    private void assertStatements(RequestBuilder request, long expected) throws Exception {
+        statistics.clear();
+        mvc.perform(request).andExpect(status().isOk());
+        assertStatementCount(expected);
+    }
+
+    private void assertStatementCount(long expected) {
+        long count = statistics.getPrepareStatementCount();
+        assertTrue(count <= expected, String.format("Expected at most %d statements, but was %d", expected, count));
+    }
+}
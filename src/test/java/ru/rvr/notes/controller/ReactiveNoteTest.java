@@ -0,0 +1,159 @@
+package ru.rvr.notes.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import ru.rvr.notes.entity.Note;
+import ru.rvr.notes.search.NoteSearchIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Checks that reactive endpoints send the same notes as blocking ones
+ */
+@SpringBootTest(properties = "notes.datasource.url=jdbc:h2:mem:reactive;DB_CLOSE_DELAY=-1")
+@AutoConfigureMockMvc
+class ReactiveNoteTest {
+    private static final String NDJSON = "application/x-ndjson";
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private NoteSearchIndex searchIndex;
+
+    @Test
+    void longContentIsSent() throws Exception {
+        StringBuilder content = new StringBuilder();
+        while (content.length() <= Note.PREVIEW_LENGTH * 4) {
+            content.append("long reactive content ");
+        }
+        content.append("ending");
+        String id = objectMapper.readTree(mvc.perform(put("/notes")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(String.format("{\"name\":\"long\",\"content\":\"%s\",\"tags\":[{\"name\":\"long\"}]}", content)))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString()).get("id").asText();
+        try {
+            for (JsonNode note : stream("/reactive/notes/search/ending")) {
+                assertEquals(content.toString(), note.get("content").asText());
+                assertEquals(content.length(), note.get("size").asInt());
+                assertEquals("long", note.get("tags").get(0).get("name").asText());
+            }
+            assertEquals(1, stream("/reactive/notes/search/ending").size());
+            boolean found = false;
+            for (JsonNode note : stream("/reactive/notes")) {
+                if (note.get("id").asText().equals(id)) {
+                    assertEquals(content.toString(), note.get("content").asText());
+                    found = true;
+                }
+            }
+            assertEquals(true, found);
+        } finally {
+            mvc.perform(delete("/notes").contentType(MediaType.APPLICATION_JSON).content("{\"id\":" + id + "}"))
+                    .andExpect(status().isOk());
+        }
+    }
+
+    @Test
+    void sameNotesAsBlockingEndpoints() throws Exception {
+        StringBuilder longContent = new StringBuilder();
+        while (longContent.length() <= Note.PREVIEW_LENGTH) {
+            longContent.append("compared content ");
+        }
+        for (int i = 0; i < 6; i++) {
+            String content = i % 2 == 0 ? longContent.toString() + i : "compared " + i;
+            mvc.perform(put("/notes")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content(String.format("{\"name\":\"compared %d\",\"content\":\"%s\"," +
+                            "\"tags\":[{\"name\":\"compared\"},{\"name\":\"compared%d\"}]}", i, content, i % 3)))
+                    .andExpect(status().isOk());
+        }
+        String tagId = null;
+        for (JsonNode tag : json(get("/tags"))) {
+            if (tag.get("name").asText().equals("compared")) {
+                tagId = tag.get("id").asText();
+            }
+        }
+        assertEquals(json(get("/notes?content=true")), arrayOf(stream("/reactive/notes")));
+        assertEquals(json(get("/notes/tag/" + tagId + "?content=true")), arrayOf(stream("/reactive/notes/tag/" + tagId)));
+        assertEquals(json(get("/notes/since/2000-01-01T00:00:00?content=true")),
+                arrayOf(stream("/reactive/notes/since/2000-01-01T00:00:00")));
+        JsonNode found = json(get("/notes/search/compared?content=true&limit=4"));
+        assertEquals(4, found.size());
+        assertEquals(found, arrayOf(stream("/reactive/notes/search/compared?limit=4")));
+        assertEquals(json(get("/tags")).size(), stream("/reactive/tags").size());
+
+        mvc.perform(get("/reactive/notes/search/compared?limit=" + Integer.MAX_VALUE).accept(NDJSON))
+                .andExpect(status().isBadRequest());
+        mvc.perform(get("/reactive/notes").accept(MediaType.APPLICATION_JSON)).andExpect(status().isNotAcceptable());
+
+        // Unknown tag is rejected by both endpoints
+        mvc.perform(get("/notes/tag/999999")).andExpect(status().isBadRequest());
+        MvcResult unknownTag = mvc.perform(get("/reactive/notes/tag/999999").accept(NDJSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mvc.perform(asyncDispatch(unknownTag)).andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void searchIsUnavailableWhileIndexIsBuilt() throws Exception {
+        searchIndex.setReady(false);
+        try {
+            mvc.perform(get("/notes/search/note"))
+                    .andExpect(status().isServiceUnavailable())
+                    .andExpect(header().exists(HttpHeaders.RETRY_AFTER));
+            mvc.perform(get("/reactive/notes/search/note").accept(NDJSON))
+                    .andExpect(status().isServiceUnavailable())
+                    .andExpect(header().exists(HttpHeaders.RETRY_AFTER));
+        } finally {
+            searchIndex.setReady(true);
+        }
+        mvc.perform(get("/notes/search/note")).andExpect(status().isOk());
+    }
+
+    private JsonNode json(MockHttpServletRequestBuilder request) throws Exception {
+        return objectMapper.readTree(mvc.perform(request).andExpect(status().isOk()).andReturn().getResponse().getContentAsString());
+    }
+
+    private ArrayNode arrayOf(List<JsonNode> nodes) {
+        return objectMapper.createArrayNode().addAll(nodes);
+    }
+
+    /**
+     * Reads newline delimited json streamed by reactive endpoint
+     */
+    private List<JsonNode> stream(String uri) throws Exception {
+        MvcResult result = mvc.perform(get(uri).accept(NDJSON)).andExpect(request().asyncStarted()).andReturn();
+        result.getAsyncResult();
+        List<JsonNode> notes = new ArrayList<>();
+        for (String line : result.getResponse().getContentAsString().split("\n")) {
+            if (!line.isEmpty()) {
+                notes.add(objectMapper.readTree(line));
+            }
+        }
+        return notes;
+    }
+}
@@ -0,0 +1,216 @@
+package ru.rvr.notes.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import ru.rvr.notes.entity.Note;
+import ru.rvr.notes.repository.NoteRepository;
+import ru.rvr.notes.repository.NoteShards;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Checks that notes stored in several shards are read and written as from one database
+ */
+@SpringBootTest(properties = {
+        "notes.datasource.url=jdbc:h2:mem:sharded;DB_CLOSE_DELAY=-1",
+        "notes.shards=3"
+})
+@AutoConfigureMockMvc
+class ShardedStorageTest {
+    private static final int NOTES = 30;
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private NoteShards shards;
+
+    @Autowired
+    private NoteRepository noteRepository;
+
+    private final List<Long> ids = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        for (JsonNode note : json(mvc.perform(get("/notes")).andReturn())) {
+            ids.add(note.get("id").asLong());
+        }
+        if (!ids.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < NOTES; i++) {
+            JsonNode note = json(mvc.perform(put("/notes")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content(String.format("{\"name\":\"note %d\",\"content\":\"sharded %d\"," +
+                            "\"tags\":[{\"name\":\"common\"},{\"name\":\"tag%d\"}]}", i, i, i % 2)))
+                    .andExpect(status().isOk())
+                    .andReturn());
+            ids.add(note.get("id").asLong());
+        }
+    }
+
+    @Test
+    void notesAreDistributed() {
+        Set<Integer> used = new HashSet<>();
+        for (Long id : ids) {
+            used.add(shards.shardOf(id));
+        }
+        assertEquals(shards.size(), used.size());
+    }
+
+    @Test
+    void pagesAreMerged() throws Exception {
+        List<Long> paged = new ArrayList<>();
+        String cursor = null;
+        do {
+            MvcResult result = mvc.perform(get("/notes?limit=5" + (cursor == null ? "" : "&after=" + cursor)))
+                    .andExpect(status().isOk())
+                    .andReturn();
+            for (JsonNode note : json(result)) {
+                paged.add(note.get("id").asLong());
+            }
+            cursor = result.getResponse().getHeader("X-Next-Cursor");
+        } while (cursor != null);
+        assertEquals(ids, paged);
+    }
+
+    @Test
+    void notesAreFound() throws Exception {
+        for (Long id : ids) {
+            mvc.perform(get("/notes/" + id)).andExpect(status().isOk()).andExpect(jsonPath("$.tags.length()").value(2));
+        }
+        String tagId = null;
+        for (JsonNode tag : json(mvc.perform(get("/tags")).andReturn())) {
+            if (tag.get("name").asText().equals("common")) {
+                tagId = tag.get("id").asText();
+            }
+        }
+        assertEquals(NOTES, json(mvc.perform(get("/notes/tag/" + tagId)).andReturn()).size());
+        assertEquals(NOTES, json(mvc.perform(get("/notes/search/sharded")).andReturn()).size());
+        assertEquals(NOTES, json(mvc.perform(get("/notes/stats/tags?from=2000-01-01T00:00:00&to=2100-01-01T00:00:00"))
+                .andReturn()).get(0).get("count").asInt());
+        MvcResult stream = mvc.perform(get("/notes").accept("application/x-ndjson")).andReturn();
+        String lines = mvc.perform(asyncDispatch(stream)).andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+        assertEquals(NOTES, lines.trim().split("\n").length);
+    }
+
+    @Test
+    void changesAreMerged() throws Exception {
+        JsonNode changes = json(mvc.perform(get("/notes/changes")).andReturn()).get("changes");
+        long revision = 0;
+        Set<Long> changed = new HashSet<>();
+        for (JsonNode change : changes) {
+            assertTrue(change.get("revision").asLong() > revision);
+            revision = change.get("revision").asLong();
+            changed.add(change.get("id").asLong());
+        }
+        assertTrue(changed.containsAll(ids));
+    }
+
+    @Test
+    void conditionalUpdateAndRemove() throws Exception {
+        JsonNode note = json(mvc.perform(put("/notes")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"name\":\"versioned\",\"content\":\"first\",\"tags\":[{\"name\":\"new tag\"}]}"))
+                .andExpect(status().isOk())
+                .andReturn());
+        String id = note.get("id").asText();
+        String etag = mvc.perform(get("/notes/" + id)).andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        mvc.perform(post("/notes")
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.IF_MATCH, etag)
+                .content("{\"id\":" + id + ",\"name\":\"versioned\",\"content\":\"second\",\"tags\":[{\"name\":\"new tag\"}]}"))
+                .andExpect(status().isOk());
+        mvc.perform(post("/notes")
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.IF_MATCH, etag)
+                .content("{\"id\":" + id + ",\"name\":\"versioned\",\"content\":\"stale\",\"tags\":[]}"))
+                .andExpect(status().isPreconditionFailed());
+        mvc.perform(get("/notes/" + id))
+                .andExpect(jsonPath("$.content").value("second"))
+                .andExpect(jsonPath("$.tags[0].name").value("new tag"));
+        mvc.perform(delete("/notes").contentType(MediaType.APPLICATION_JSON).content("{\"id\":" + id + "}"))
+                .andExpect(status().isOk());
+        mvc.perform(get("/notes/" + id)).andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void longContentIsLoadedOnlyWhenSent() throws Exception {
+        StringBuilder content = new StringBuilder();
+        while (content.length() < 1000) {
+            content.append("long content ");
+        }
+        content.append("ending");
+        Map<String, Object> longNote = new HashMap<>();
+        longNote.put("name", "long");
+        longNote.put("content", content.toString());
+        longNote.put("tags", Collections.singletonList(Collections.singletonMap("name", "long")));
+        JsonNode note = json(mvc.perform(put("/notes")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(longNote)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.content").value(content.toString()))
+                .andReturn());
+        long id = note.get("id").asLong();
+        long tagId = note.get("tags").get(0).get("id").asLong();
+        try {
+            Note listed = null;
+            for (Note page : noteRepository.getPage(null, 1000)) {
+                if (page.getId() == id) {
+                    listed = page;
+                }
+            }
+            assertNotNull(listed);
+            assertFalse(listed.isContentLoaded());
+            assertEquals(content.toString(), noteRepository.withContent(Collections.singletonList(listed)).get(0).getContent());
+
+            mvc.perform(get("/notes/" + id)).andExpect(jsonPath("$.content").value(content.toString()));
+            mvc.perform(get("/notes?limit=1000&content=true"))
+                    .andExpect(jsonPath("$[?(@.id == " + id + ")].content").value(content.toString()));
+            mvc.perform(get("/notes/search/ending?content=true")).andExpect(jsonPath("$[0].content").value(content.toString()));
+            mvc.perform(get("/notes/tag/" + tagId + "?content=true")).andExpect(jsonPath("$[0].content").value(content.toString()));
+            mvc.perform(get("/notes/tags?all=" + tagId + "&content=true"))
+                    .andExpect(jsonPath("$.notes[0].content").value(content.toString()));
+            mvc.perform(get("/notes/tags?all=" + tagId)).andExpect(jsonPath("$.notes[0].content").doesNotExist());
+            MvcResult stream = mvc.perform(get("/notes").accept("application/x-ndjson")).andReturn();
+            assertTrue(mvc.perform(asyncDispatch(stream)).andReturn().getResponse().getContentAsString().contains(content));
+        } finally {
+            mvc.perform(delete("/notes").contentType(MediaType.APPLICATION_JSON).content("{\"id\":" + id + "}"))
+                    .andExpect(status().isOk());
+        }
+    }
+
+    private JsonNode json(MvcResult result) throws Exception {
+        return objectMapper.readTree(result.getResponse().getContentAsString());
+    }
+}
@@ -0,0 +1,76 @@
+package ru.rvr.notes.search;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NoteSearchIndexTest {
+
+    @Test
+    void tokenizeSplitsByNonLetters() {
+        assertEquals(Arrays.asList("hello", "world", "42"), NoteSearchIndex.tokenize("Hello, World! 42"));
+        assertEquals(Collections.emptyList(), NoteSearchIndex.tokenize(null));
+    }
+
+    @Test
+    void searchRequiresAllTermsAndRanksByRelevance() {
+        NoteSearchIndex index = new NoteSearchIndex();
+        index.index(1L, "shopping", "buy milk and bread");
+        index.index(2L, "milk", "milk milk milk");
+        index.index(3L, "work", "write report");
+
+        assertEquals(Arrays.asList(2L, 1L), index.search("milk", 10));
+        assertEquals(Collections.singletonList(1L), index.search("milk bread", 10));
+        assertEquals(Collections.singletonList(2L), index.search("milk", 1));
+        assertEquals(Collections.emptyList(), index.search("milk report", 10));
+        assertEquals(Arrays.asList(2L, 1L), index.search("milk", Integer.MAX_VALUE));
+    }
+
+    @Test
+    void lastTermMatchesAsPrefix() {
+        NoteSearchIndex index = new NoteSearchIndex();
+        index.index(1L, null, "report for monday");
+        index.index(2L, null, "reporting tool");
+
+        assertEquals(2, index.search("rep", 10).size());
+        assertEquals(Collections.emptyList(), index.search("rep tool", 10));
+    }
+
+    @Test
+    void reindexAndRemoveReplacePostings() {
+        NoteSearchIndex index = new NoteSearchIndex();
+        index.index(1L, "old", "text");
+        index.index(1L, "new", "text");
+
+        assertEquals(Collections.emptyList(), index.search("old", 10));
+        assertEquals(Collections.singletonList(1L), index.search("new", 10));
+
+        index.remove(1L);
+        assertEquals(Collections.emptyList(), index.search("text", 10));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    void writesDuringRebuildAreNotOverwrittenByScan() {
+        NoteSearchIndex index = new NoteSearchIndex();
+        index.index(1L, "old", "text");
+        index.index(2L, "removed", "text");
+        index.startRebuild();
+        index.index(1L, "new", "text");
+        index.remove(2L);
+        index.indexScanned(1L, "old", "text");
+        index.indexScanned(2L, "removed", "text");
+        index.indexScanned(3L, "scanned", "text");
+        index.finishRebuild();
+
+        assertTrue(index.isReady());
+        assertEquals(Collections.emptyList(), index.search("old", 10));
+        assertEquals(Collections.emptyList(), index.search("removed", 10));
+        assertEquals(Collections.singletonList(1L), index.search("new", 10));
+        assertEquals(2, index.size());
+    }
+}
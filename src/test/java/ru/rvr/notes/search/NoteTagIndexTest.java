@@ -0,0 +1,87 @@
+package ru.rvr.notes.search;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NoteTagIndexTest {
+    private static final List<Long> NONE = Collections.emptyList();
+
+    @Test
+    void findCombinesAllAnyAndNone() {
+        NoteTagIndex index = index();
+
+        assertEquals(Arrays.asList(1L, 2L), index.find(Arrays.asList(10L, 20L), NONE, NONE, null, 10, 0).getIds());
+        assertEquals(Arrays.asList(1L, 2L, 3L), index.find(NONE, Arrays.asList(20L, 30L), NONE, null, 10, 0).getIds());
+        assertEquals(Arrays.asList(3L, 4L), index.find(NONE, NONE, Collections.singletonList(10L), null, 10, 0).getIds());
+        assertEquals(Collections.singletonList(3L), index.find(Collections.singletonList(20L), NONE, Collections.singletonList(10L), null, 10, 0).getIds());
+        assertEquals(Collections.emptyList(), index.find(Collections.singletonList(99L), NONE, NONE, null, 10, 0).getIds());
+    }
+
+    @Test
+    void findReturnsPagesTotalAndFacets() {
+        NoteTagIndex index = index();
+
+        NoteTagIndex.Match first = index.find(NONE, NONE, NONE, null, 3, 2);
+        assertEquals(Arrays.asList(1L, 2L, 3L), first.getIds());
+        assertEquals(4, first.getTotal());
+        assertEquals(Arrays.asList(20L, 10L), Arrays.asList(first.getFacets().keySet().toArray()));
+        assertEquals(Long.valueOf(3), first.getFacets().get(20L));
+
+        NoteTagIndex.Match second = index.find(NONE, NONE, NONE, 3L, 3, 0);
+        assertEquals(Collections.singletonList(4L), second.getIds());
+        assertNull(second.getFacets());
+    }
+
+    @Test
+    void reindexAndRemoveReplaceTags() {
+        NoteTagIndex index = index();
+        index.index(1L, Collections.singletonList(30L));
+        index.remove(2L);
+
+        assertEquals(Collections.emptyList(), index.find(Collections.singletonList(10L), NONE, NONE, null, 10, 0).getIds());
+        assertEquals(Arrays.asList(1L, 3L), index.find(Collections.singletonList(30L), NONE, NONE, null, 10, 0).getIds());
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    void writesDuringRebuildAreNotOverwrittenByScan() {
+        NoteTagIndex index = index();
+        index.startRebuild();
+        assertFalse(index.isReady());
+        index.indexScanned(1L, Arrays.asList(10L, 20L));
+        index.index(1L, Collections.singletonList(30L));
+        index.remove(2L);
+        // Rows read by scan before the writes were committed
+        index.indexScanned(1L, Arrays.asList(10L, 20L));
+        index.indexScanned(2L, Arrays.asList(10L, 20L));
+        index.indexScanned(3L, Arrays.asList(20L, 30L));
+        index.finishRebuild();
+
+        assertTrue(index.isReady());
+        assertEquals(Arrays.asList(1L, 3L), index.find(Collections.singletonList(30L), NONE, NONE, null, 10, 0).getIds());
+        assertEquals(Collections.emptyList(), index.find(Collections.singletonList(10L), NONE, NONE, null, 10, 0).getIds());
+        assertEquals(2, index.find(NONE, NONE, NONE, null, 10, 0).getTotal());
+        // Scan rows are indexed as usual after rebuild
+        index.startRebuild();
+        index.indexScanned(2L, Collections.singletonList(10L));
+        index.finishRebuild();
+        assertEquals(Collections.singletonList(2L), index.find(NONE, NONE, NONE, null, 10, 0).getIds());
+    }
+
+    private static NoteTagIndex index() {
+        NoteTagIndex index = new NoteTagIndex();
+        index.index(1L, Arrays.asList(10L, 20L));
+        index.index(2L, Arrays.asList(10L, 20L));
+        index.index(3L, Arrays.asList(20L, 30L));
+        index.index(4L, Collections.emptyList());
+        return index;
+    }
+}